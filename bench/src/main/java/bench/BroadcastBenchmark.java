@@ -0,0 +1,61 @@
+package bench;
+
+import broadcasting.BroadcastResult;
+import broadcasting.Master;
+import broadcasting.SlowConsumerPolicy;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time for one broadcast to be acknowledged by every worker, against the number of workers,
+ * the Master's I/O mode and whether it sends to every worker or through a relay tree.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BroadcastBenchmark {
+    @Param({"1", "16", "128"})
+    public int workers;
+
+    @Param({"BLOCKING", "NIO"})
+    public Master.IoMode ioMode;
+
+    // 0 broadcasts to every worker directly, otherwise children per node in the relay tree
+    @Param({"0", "4"})
+    public int treeFanOut;
+
+    private Master master;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        System.setProperty("pingpong.broadcast.period", "0");
+        System.setProperty("pingpong.stats.period", "0");
+        Loopback.silenceConsole();
+        int port = Loopback.freePort();
+        master = new Master(port, ioMode, SlowConsumerPolicy.BUFFER, 1024 * 1024, treeFanOut);
+        Loopback.startDaemon("broadcast-master", master::startServer);
+        Loopback.await(master::isListening, "the Master to listen");
+
+        for (int i = 0; i < workers; i++) {
+            Loopback.startDaemon("broadcast-worker-" + i, () -> new broadcasting.Worker("localhost", port).start());
+        }
+        Loopback.await(() -> master.connectedWorkers() == workers, workers + " workers to connect");
+        if (treeFanOut > 0) {
+            Loopback.await(() -> master.relayingWorkers() == workers, workers + " workers to join the relay tree");
+        }
+    }
+
+    @Benchmark
+    public BroadcastResult broadcastToAll() {
+        BroadcastResult result = master.broadcastMessage("bench").join();
+        if (!result.succeeded()) {
+            throw new IllegalStateException("Broadcast timed out: " + result);
+        }
+        return result;
+    }
+}
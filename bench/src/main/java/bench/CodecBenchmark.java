@@ -0,0 +1,59 @@
+package bench;
+
+import common.Codec;
+import common.Frame;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encode and decode cost of one frame with reusable buffers.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+    @Param({"binary", "text"})
+    public String protocol;
+
+    @Param({"16", "1024"})
+    public int payloadSize;
+
+    private Codec codec;
+    private final Frame frame = new Frame();
+    private final Frame decoded = new Frame();
+    private ByteBuffer buffer;
+    private ByteBuffer encoded;
+
+    @Setup
+    public void setUp() {
+        codec = Codec.forName(protocol);
+        byte[] payload = new byte[payloadSize];
+        // Printable bytes without a newline, so the text codec sees exactly one line
+        Arrays.fill(payload, (byte) 'x');
+        frame.set(Frame.PING, 42, System.nanoTime()).payload(ByteBuffer.wrap(payload));
+        buffer = ByteBuffer.allocate(codec.encodedSize(frame));
+        encoded = codec.encode(frame);
+    }
+
+    @Benchmark
+    public int encode() {
+        buffer.clear();
+        codec.encode(frame, buffer);
+        return buffer.position();
+    }
+
+    @Benchmark
+    public void decode(Blackhole blackhole) throws IOException {
+        encoded.rewind();
+        blackhole.consume(codec.decode(encoded, decoded));
+        blackhole.consume(decoded.sequence());
+    }
+}
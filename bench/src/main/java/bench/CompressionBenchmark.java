@@ -0,0 +1,92 @@
+package bench;
+
+import common.Compression;
+import common.Frame;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CPU cost of compressing and inflating one payload with reused Deflater and Inflater instances, for
+ * config-like text of growing size at the fastest and the default deflate level. The savedBytes
+ * counter of the compress benchmark is the wire bytes compression saved over the iteration, to weigh
+ * against the time per payload.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressionBenchmark {
+    /**
+     * A payload, its compressed frame and a compression instance, as kept by one connection.
+     */
+    @State(Scope.Thread)
+    public static class Payload {
+        @Param({"4096", "65536", "1048576"})
+        public int payloadSize;
+
+        @Param({"1", "6"})
+        public int level;
+
+        private Compression compression;
+        private ByteBuffer payload;
+        private final Frame compressed = new Frame();
+        private final Frame decompressed = new Frame();
+        private int compressedSize;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            Loopback.silenceConsole();
+            // Read once per JVM, and every parameter combination runs in a fork of its own
+            System.setProperty(Compression.LEVEL_PROPERTY, Integer.toString(level));
+            compression = new Compression();
+            StringBuilder text = new StringBuilder(payloadSize + 64);
+            for (int i = 0; text.length() < payloadSize; i++) {
+                text.append("service.node").append(i % 97).append(".timeout.ms = ").append(1000 + i * 37 % 5000).append('\n');
+            }
+            payload = ByteBuffer.wrap(text.substring(0, payloadSize).getBytes(StandardCharsets.US_ASCII));
+            compressed.set(Frame.BROADCAST, 1, 0).payload(payload);
+            if (!compression.compress(compressed)) {
+                throw new IllegalStateException("The payload does not compress");
+            }
+            compressedSize = compressed.payloadLength();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            compression.close();
+        }
+    }
+
+    /**
+     * Bytes compression took off the payloads during one iteration.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Savings {
+        public long savedBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            savedBytes = 0;
+        }
+    }
+
+    @Benchmark
+    public int compress(Payload state, Savings savings) {
+        ByteBuffer compressed = state.compression.compress(state.payload);
+        savings.savedBytes += state.payload.remaining() - compressed.remaining();
+        return compressed.remaining();
+    }
+
+    @Benchmark
+    public int decompress(Payload state) throws IOException {
+        state.decompressed.set(Frame.BROADCAST, 1, 0).flags(Compression.COMPRESSED).payload(state.compressed.payload());
+        state.compression.decompress(state.decompressed);
+        return state.decompressed.payloadLength() + state.compressedSize;
+    }
+}
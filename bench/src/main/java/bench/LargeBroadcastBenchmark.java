@@ -0,0 +1,89 @@
+package bench;
+
+import broadcasting.BroadcastResult;
+import broadcasting.Master;
+import broadcasting.SlowConsumerPolicy;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Time until every worker stored a large payload, sent in chunks from one shared direct buffer,
+ * against the payload size, the number of workers and the Master's I/O mode.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LargeBroadcastBenchmark {
+    @Param({"4", "16"})
+    public int workers;
+
+    @Param({"16", "64"})
+    public int megabytes;
+
+    @Param({"BLOCKING", "NIO"})
+    public Master.IoMode ioMode;
+
+    private Master master;
+    private ByteBuffer content;
+    private Path transferRoot;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        System.setProperty("pingpong.broadcast.period", "0");
+        System.setProperty("pingpong.stats.period", "0");
+        Loopback.silenceConsole();
+        byte[] bytes = new byte[megabytes * 1024 * 1024];
+        ThreadLocalRandom.current().nextBytes(bytes);
+        content = ByteBuffer.allocateDirect(bytes.length).put(bytes).flip();
+        transferRoot = Files.createTempDirectory("pingpong-transfers");
+
+        int port = Loopback.freePort();
+        master = new Master(port, ioMode, SlowConsumerPolicy.BUFFER, 1024 * 1024);
+        Loopback.startDaemon("broadcast-master", master::startServer);
+        Loopback.await(master::isListening, "the Master to listen");
+        for (int i = 0; i < workers; i++) {
+            Path dir = transferRoot.resolve("worker" + i);
+            Loopback.startDaemon("broadcast-worker-" + i, () -> new broadcasting.Worker("localhost", port, dir).start());
+        }
+        Loopback.await(() -> master.connectedWorkers() == workers, workers + " workers to connect");
+    }
+
+    @Benchmark
+    public BroadcastResult broadcastPayload() {
+        BroadcastResult result = master.broadcastPayload("payload.bin", content, Master.ALL_ACKS, 2, TimeUnit.MINUTES).join();
+        if (!result.succeeded()) {
+            throw new IllegalStateException("Large broadcast timed out: " + result);
+        }
+        return result;
+    }
+
+    /**
+     * Deletes the stored copies, otherwise every worker would report the payload as complete right away.
+     */
+    @TearDown(Level.Invocation)
+    public void deleteCopies() throws IOException {
+        try (Stream<Path> files = Files.list(transferRoot)) {
+            for (Path dir : (Iterable<Path>) files::iterator) {
+                Files.deleteIfExists(dir.resolve("payload.bin"));
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(transferRoot)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}
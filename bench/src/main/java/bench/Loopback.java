@@ -0,0 +1,65 @@
+package bench;
+
+import common.Log;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Helpers for running Masters and Workers over loopback inside the benchmark JVM.
+ */
+final class Loopback {
+    private static final long DEFAULT_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    private Loopback() {
+    }
+
+    /**
+     * Returns a port that was free a moment ago.
+     * @return A free TCP port.
+     * @throws IOException if no port can be bound.
+     */
+    static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * Runs a blocking start method on a daemon thread so it dies with the benchmark fork.
+     * @param name Thread name.
+     * @param task The blocking start method.
+     */
+    static void startDaemon(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Turns the nodes' logging off and sends any remaining console output nowhere so it does not distort the measurement.
+     */
+    static void silenceConsole() {
+        Log.setLevel(Log.Level.OFF);
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    /**
+     * Spins until the condition holds.
+     * @param condition The condition to wait for.
+     * @param what Description used in the timeout message.
+     */
+    static void await(BooleanSupplier condition, String what) {
+        long deadline = System.nanoTime() + DEFAULT_TIMEOUT_NANOS;
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() - deadline > 0) {
+                throw new IllegalStateException("Timed out waiting for " + what);
+            }
+            Thread.onSpinWait();
+        }
+    }
+}
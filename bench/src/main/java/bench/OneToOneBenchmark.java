@@ -0,0 +1,70 @@
+package bench;
+
+import common.Codec;
+import common.Frame;
+import common.FrameReader;
+import common.FrameWriter;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One-to-one round-trip time against a real one_to_one.Worker over loopback.
+ * The one_to_one Master runs its own ping loop, so the benchmark takes the Master's side of the
+ * connection with the same codec and measures one ping/pong per operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OneToOneBenchmark {
+    private static final ByteBuffer PING = ByteBuffer.wrap("ping".getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+
+    @Param({"binary", "text"})
+    public String protocol;
+
+    private ServerSocket serverSocket;
+    private Socket socket;
+    private FrameWriter out;
+    private FrameReader in;
+    private final Frame frame = new Frame();
+    private long sequence;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        System.setProperty(Codec.PROTOCOL_PROPERTY, protocol);
+        Loopback.silenceConsole();
+        serverSocket = new ServerSocket(0);
+        int port = serverSocket.getLocalPort();
+        Loopback.startDaemon("one-to-one-worker", () -> new one_to_one.Worker("localhost", port).start());
+
+        socket = serverSocket.accept();
+        socket.setTcpNoDelay(true);
+        Codec codec = Codec.configured();
+        out = new FrameWriter(new BufferedOutputStream(socket.getOutputStream()), codec);
+        in = new FrameReader(socket.getInputStream(), codec);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        socket.close();
+        serverSocket.close();
+    }
+
+    @Benchmark
+    public long pingPong() throws IOException {
+        out.write(frame.set(Frame.PING, ++sequence, System.nanoTime()).payload(PING));
+        if (!in.read(frame)) {
+            throw new IOException("Worker disconnected");
+        }
+        return frame.sequence();
+    }
+}
@@ -0,0 +1,55 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of one token lap around the round_robin ring, against the ring size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RingBenchmark {
+    @Param({"2", "8", "32"})
+    public int ringSize;
+
+    private round_robin.Master master;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        Loopback.silenceConsole();
+        int masterPort = Loopback.freePort();
+        // Workers listen on consecutive ports starting here
+        int startPort = 20000 + (int) (Math.random() * 30000);
+
+        master = new round_robin.Master(masterPort);
+        Loopback.startDaemon("ring-master", master::startServer);
+        Loopback.await(master::isListening, "the Master to listen");
+
+        for (int i = 0; i < ringSize; i++) {
+            int index = i;
+            round_robin.Worker worker = new round_robin.Worker("localhost", masterPort, "localhost", startPort, index, ringSize);
+            Loopback.startDaemon("ring-worker-" + i, () -> {
+                try {
+                    worker.start();
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+        }
+        Loopback.await(() -> master.ringSize() == ringSize, ringSize + " workers to join the ring");
+    }
+
+    @Benchmark
+    public long lap() {
+        long target = master.completedLaps() + 1;
+        master.initiateRoundRobin();
+        Loopback.await(() -> master.completedLaps() >= target, "the token to complete its lap");
+        return target;
+    }
+}
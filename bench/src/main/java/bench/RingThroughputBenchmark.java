@@ -0,0 +1,63 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ring throughput in laps per second while the Master keeps a number of tokens circulating.
+ * Each operation waits for the next completed lap, so the score is the lap rate of the whole ring.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RingThroughputBenchmark {
+    @Param({"8"})
+    public int ringSize;
+
+    @Param({"1", "4", "16", "64"})
+    public int tokens;
+
+    private round_robin.Master master;
+    private long lastLap;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        System.setProperty("pingpong.stats.period", "0");
+        Loopback.silenceConsole();
+        int masterPort = Loopback.freePort();
+        // Workers listen on consecutive ports starting here
+        int startPort = 20000 + (int) (Math.random() * 30000);
+
+        master = new round_robin.Master(masterPort);
+        Loopback.startDaemon("ring-master", master::startServer);
+        Loopback.await(master::isListening, "the Master to listen");
+
+        for (int i = 0; i < ringSize; i++) {
+            round_robin.Worker worker = new round_robin.Worker("localhost", masterPort, "localhost", startPort, i, ringSize);
+            Loopback.startDaemon("ring-worker-" + i, () -> {
+                try {
+                    worker.start();
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+        }
+        Loopback.await(() -> master.ringSize() == ringSize, ringSize + " workers to join the ring");
+        master.saturate(tokens);
+        lastLap = master.completedLaps();
+    }
+
+    @Benchmark
+    public long lap() {
+        long target = ++lastLap;
+        while (master.completedLaps() < target) {
+            Thread.onSpinWait();
+        }
+        return target;
+    }
+}
@@ -0,0 +1,182 @@
+package bench;
+
+import common.SocketTuning;
+import common.Tls;
+import common.TlsChannel;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of encrypting node connections with TLS 1.3 over loopback, with a self-signed certificate
+ * generated for the run: connections set up per second with plain TCP, full handshakes and resumed
+ * handshakes, and steady-state throughput of a stream of chunks with and without TLS.
+ * Throughput is reported in chunks per second; multiply by the chunk size for bytes.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TlsBenchmark {
+    private static final String PASSWORD = "pingpong";
+
+    /**
+     * A server that answers one byte on each connection, for measuring connection setup.
+     */
+    @State(Scope.Benchmark)
+    public static class Handshakes {
+        // tls_full disables session resumption, so every connection does the full certificate exchange
+        @Param({"plain", "tls_full", "tls_resumed"})
+        public String transport;
+
+        private ServerSocket serverSocket;
+        private int port;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException, InterruptedException {
+            configure(!transport.equals("plain"));
+            System.setProperty(Tls.RESUMPTION_PROPERTY, Boolean.toString(transport.equals("tls_resumed")));
+            serverSocket = SocketTuning.listen(0);
+            port = serverSocket.getLocalPort();
+            Loopback.startDaemon("handshake-server", this::serve);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            serverSocket.close();
+        }
+
+        /**
+         * Accepts connections and echoes the first byte of each; the TLS handshake runs on the way.
+         */
+        private void serve() {
+            while (!serverSocket.isClosed()) {
+                try (Socket socket = serverSocket.accept()) {
+                    SocketTuning.apply(socket);
+                    int b = socket.getInputStream().read();
+                    OutputStream out = socket.getOutputStream();
+                    out.write(b);
+                    out.flush();
+                } catch (IOException e) {
+                    // The client went away or the server socket was closed
+                }
+            }
+        }
+    }
+
+    /**
+     * A connection whose server side drains everything the client sends, through a {@link TlsChannel} when encrypted.
+     */
+    @State(Scope.Benchmark)
+    public static class Stream {
+        @Param({"plain", "tls"})
+        public String transport;
+
+        @Param({"16384"})
+        public int chunkSize;
+
+        private ServerSocketChannel serverChannel;
+        private Socket socket;
+        private OutputStream out;
+        private byte[] chunk;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException, InterruptedException {
+            boolean tls = transport.equals("tls");
+            configure(tls);
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress("localhost", 0));
+            Loopback.startDaemon("stream-server", () -> drain(tls));
+
+            socket = SocketTuning.connect("localhost", ((InetSocketAddress) serverChannel.getLocalAddress()).getPort());
+            out = socket.getOutputStream();
+            chunk = new byte[chunkSize];
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            socket.close();
+            serverChannel.close();
+        }
+
+        /**
+         * Accepts the one connection and reads it until the client closes it.
+         * @param tls Whether the connection is encrypted.
+         */
+        private void drain(boolean tls) {
+            try (SocketChannel channel = serverChannel.accept()) {
+                SocketTuning.apply(channel);
+                ByteChannel in = channel;
+                if (tls) {
+                    TlsChannel tlsChannel = new TlsChannel(channel, Tls.newEngine(false, null, 0));
+                    tlsChannel.handshake();
+                    in = tlsChannel;
+                }
+                ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+                while (in.read(buffer) >= 0) {
+                    buffer.clear();
+                }
+            } catch (IOException e) {
+                // The client closed the connection
+            }
+        }
+    }
+
+    @Benchmark
+    public int connect(Handshakes server) throws IOException {
+        try (Socket socket = SocketTuning.connect("localhost", server.port)) {
+            // Reading the answer also takes in the session ticket a resumed handshake needs
+            socket.getOutputStream().write(1);
+            socket.getOutputStream().flush();
+            InputStream in = socket.getInputStream();
+            return in.read();
+        }
+    }
+
+    @Benchmark
+    public void stream(Stream connection) throws IOException {
+        connection.out.write(connection.chunk);
+    }
+
+    /**
+     * Selects plain or encrypted connections for this fork, creating a self-signed keystore for TLS.
+     * Must run before the first connection, as the TLS settings are read once.
+     * @param tls Whether to encrypt connections.
+     * @throws IOException if the keystore cannot be created.
+     * @throws InterruptedException if interrupted while keytool runs.
+     */
+    private static void configure(boolean tls) throws IOException, InterruptedException {
+        Loopback.silenceConsole();
+        System.setProperty(Tls.ENABLED_PROPERTY, Boolean.toString(tls));
+        if (!tls) {
+            return;
+        }
+        Path keystore = Files.createTempDirectory("pingpong-tls").resolve("node.p12");
+        Process keytool = new ProcessBuilder(Path.of(System.getProperty("java.home"), "bin", "keytool").toString(),
+                "-genkeypair", "-alias", "pingpong", "-keyalg", "EC", "-groupname", "secp256r1", "-validity", "1",
+                "-dname", "CN=localhost", "-storetype", "PKCS12", "-keystore", keystore.toString(),
+                "-storepass", PASSWORD, "-keypass", PASSWORD)
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .start();
+        if (keytool.waitFor() != 0) {
+            throw new IOException("keytool could not create " + keystore);
+        }
+        keystore.toFile().deleteOnExit();
+        System.setProperty(Tls.KEYSTORE_PROPERTY, keystore.toString());
+        System.setProperty(Tls.PASSWORD_PROPERTY, PASSWORD);
+    }
+}
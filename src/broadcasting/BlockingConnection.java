@@ -0,0 +1,147 @@
+package broadcasting;
+
+import common.Log;
+import common.TlsChannel;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A blocking worker connection whose writes are drained by a pooled task instead of the caller.
+ * Senders only queue bytes; at most one writer task per connection is active at any time.
+ */
+class BlockingConnection implements WorkerConnection {
+    // Queued buffers handed to the kernel in one gathering write
+    private static final int MAX_GATHER = 64;
+
+    private volatile int id;
+    private final SocketChannel channel;
+    // null on a plain connection
+    private final TlsChannel tls;
+    private final SocketAddress remoteAddress;
+    private final OutboundQueue outbound;
+    private final Executor writerExecutor;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final ByteBuffer[] batch = new ByteBuffer[MAX_GATHER];
+    private volatile boolean closed;
+
+    /**
+     * Constructor to initialize the connection for an accepted blocking channel.
+     * @param id The id assigned to the connection.
+     * @param channel The accepted socket channel in blocking mode.
+     * @param tls The TLS session over the channel with its handshake completed, null for a plain connection.
+     * @param outbound The queue holding bytes not yet written to the worker.
+     * @param writerExecutor Executor running the writer tasks.
+     * @throws IOException if the remote address cannot be read.
+     */
+    BlockingConnection(int id, SocketChannel channel, TlsChannel tls, OutboundQueue outbound, Executor writerExecutor)
+            throws IOException {
+        this.id = id;
+        this.channel = channel;
+        this.tls = tls;
+        this.remoteAddress = channel.getRemoteAddress();
+        this.outbound = outbound;
+        this.writerExecutor = writerExecutor;
+    }
+
+    /**
+     * Returns the channel the reader consumes the worker's responses from, decrypting them with TLS.
+     * @return The readable channel.
+     */
+    ReadableByteChannel input() {
+        return tls == null ? channel : tls;
+    }
+
+    public int id() {
+        return id;
+    }
+
+    public void adoptId(int id) {
+        this.id = id;
+    }
+
+    public SocketAddress remoteAddress() {
+        return remoteAddress;
+    }
+
+    public long queuedBytes() {
+        return outbound.pendingBytes();
+    }
+
+    public boolean send(ByteBuffer buffer) {
+        if (closed) {
+            return false;
+        }
+        if (!outbound.offer(buffer)) {
+            if (outbound.policy() == SlowConsumerPolicy.DISCONNECT) {
+                close();
+            }
+            return false;
+        }
+        scheduleFlush();
+        return true;
+    }
+
+    public void sendControl(ByteBuffer... buffers) {
+        if (!closed) {
+            outbound.add(buffers);
+            scheduleFlush();
+        }
+    }
+
+    /**
+     * Starts a writer task unless one is already draining the queue.
+     */
+    private void scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            writerExecutor.execute(this::flush);
+        }
+    }
+
+    /**
+     * Writes queued buffers until the queue is empty, up to {@value #MAX_GATHER} per gathering write.
+     */
+    private void flush() {
+        try {
+            while (true) {
+                int count;
+                while ((count = outbound.peek(batch)) > 0) {
+                    // A partial write leaves the unwritten buffers at the head for the next round
+                    outbound.written(tls == null ? channel.write(batch, 0, count) : tls.write(batch, 0, count));
+                    Arrays.fill(batch, 0, count, null);
+                }
+                flushScheduled.set(false);
+                // A sender may have queued a buffer after the last peek but before the flag was cleared
+                if (outbound.isEmpty() || !flushScheduled.compareAndSet(false, true)) {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            Log.warn("Failed to send message to {}", remoteAddress);
+            close();
+        }
+    }
+
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        outbound.clear();
+        try {
+            if (tls != null) {
+                tls.close();
+            } else {
+                channel.close();
+            }
+        } catch (IOException e) {
+            Log.error("Could not close the connection to {}", remoteAddress, e);
+        }
+    }
+}
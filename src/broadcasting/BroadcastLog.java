@@ -0,0 +1,337 @@
+package broadcasting;
+
+import common.BinaryCodec;
+import common.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Append-only log of broadcast messages, kept in memory-mapped segment files so that workers that
+ * connect late or come back after a drop can catch up on what they missed.
+ *
+ * Records are the encoded BROADCAST frames themselves and a record's offset is its broadcast's
+ * sequence id, so offsets only grow, possibly with gaps. Replaying a range hands out a read-only view
+ * of the mapped segment: nothing is copied or encoded again and the bytes go to the socket straight
+ * from the page cache. Segments are named after their first offset and preallocated as sparse files;
+ * on recovery a segment ends at the first record that is not valid. The offset and position of a
+ * record every {@value #INDEX_INTERVAL} bytes are kept in memory, so finding an offset is a binary
+ * search followed by a short scan of record headers.
+ *
+ * Old segments are deleted once the log is larger than its size limit or their last record is older
+ * than the retention time; the segment being written is never deleted. Records are left to the OS to
+ * write back, so the log survives a Master restart but not necessarily a machine crash.
+ */
+class BroadcastLog {
+    // Directory of the log, empty keeps no log
+    static final String DIR_PROPERTY = "pingpong.broadcast.log.dir";
+    // Bytes preallocated per segment file
+    static final String SEGMENT_BYTES_PROPERTY = "pingpong.broadcast.log.segment";
+    // Bytes of records kept at most, the oldest segments are deleted first
+    static final String RETENTION_BYTES_PROPERTY = "pingpong.broadcast.log.retention.bytes";
+    // Milliseconds a segment is kept after its last record was appended
+    static final String RETENTION_MS_PROPERTY = "pingpong.broadcast.log.retention.ms";
+    // Flag of a BROADCAST frame sent from the log rather than live, and of a REPLAY frame from a Master with a log
+    static final byte REPLAYED = 1;
+
+    private static final String SUFFIX = ".log";
+    private static final int INDEX_INTERVAL = 4096;
+    private static final long RETENTION_CHECK_INTERVAL_MILLIS = 1000;
+    // Byte of the flags field in an encoded frame
+    private static final int FLAGS_POSITION = BinaryCodec.LENGTH_FIELD + 1;
+    private static final int SEQUENCE_POSITION = BinaryCodec.LENGTH_FIELD + 2;
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final long retentionBytes;
+    private final long retentionMillis;
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private Segment active;
+    private long sizeBytes;
+    private long lastOffset;
+    private long lastRetentionCheckMillis;
+
+    /**
+     * Constructor to open the log in a directory with the limits from the {@value #SEGMENT_BYTES_PROPERTY},
+     * {@value #RETENTION_BYTES_PROPERTY} and {@value #RETENTION_MS_PROPERTY} properties.
+     * @param dir Directory of the segment files, created if missing.
+     * @throws IOException if the directory or an existing segment cannot be opened.
+     */
+    BroadcastLog(Path dir) throws IOException {
+        this(dir, Integer.getInteger(SEGMENT_BYTES_PROPERTY, 64 * 1024 * 1024),
+                Long.getLong(RETENTION_BYTES_PROPERTY, 1024L * 1024 * 1024),
+                Long.getLong(RETENTION_MS_PROPERTY, 24 * 60 * 60 * 1000L));
+    }
+
+    /**
+     * Constructor to open the log in a directory and recover the segments already there.
+     * @param dir Directory of the segment files, created if missing.
+     * @param segmentBytes Bytes preallocated per segment; a larger record gets a segment of its own size.
+     * @param retentionBytes Bytes of records kept at most.
+     * @param retentionMillis Milliseconds a segment is kept after its last append.
+     * @throws IOException if the directory or an existing segment cannot be opened.
+     */
+    BroadcastLog(Path dir, int segmentBytes, long retentionBytes, long retentionMillis) throws IOException {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.retentionBytes = retentionBytes;
+        this.retentionMillis = retentionMillis;
+        Files.createDirectories(dir);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                long baseOffset = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+                Segment segment = Segment.recover(file, baseOffset);
+                segments.put(baseOffset, segment);
+                sizeBytes += segment.size;
+            }
+        }
+        if (!segments.isEmpty()) {
+            active = segments.lastEntry().getValue();
+            lastOffset = active.size > 0 ? active.lastOffset : active.baseOffset - 1;
+            Log.info("Recovered broadcast log in {}: {} segments, {} bytes, offsets up to {}", dir, segments.size(), sizeBytes, lastOffset);
+        }
+    }
+
+    /**
+     * Appends an encoded BROADCAST frame, marked as replayed for when it is read back.
+     * @param offset Sequence id of the broadcast; must be larger than every offset appended before.
+     * @param encoded The encoded frame, from its position to its limit; not modified.
+     * @throws IOException if a new segment cannot be created.
+     */
+    synchronized void append(long offset, ByteBuffer encoded) throws IOException {
+        if (offset <= lastOffset) {
+            throw new IllegalArgumentException("Offset " + offset + " is not after " + lastOffset);
+        }
+        int length = encoded.remaining();
+        if (active == null || active.map.capacity() - active.size < length) {
+            roll(offset, length);
+        }
+        MappedByteBuffer map = active.map;
+        int position = active.size;
+        // The length field goes last, so a record cut short by a crash is not taken for a complete one
+        map.put(position + BinaryCodec.LENGTH_FIELD, encoded, encoded.position() + BinaryCodec.LENGTH_FIELD, length - BinaryCodec.LENGTH_FIELD);
+        map.put(position + FLAGS_POSITION, (byte) (map.get(position + FLAGS_POSITION) | REPLAYED));
+        map.putInt(position, encoded.getInt(encoded.position()));
+        active.appended(offset, position, length, System.currentTimeMillis());
+        sizeBytes += length;
+        lastOffset = offset;
+        if (active.lastAppendMillis - lastRetentionCheckMillis >= RETENTION_CHECK_INTERVAL_MILLIS) {
+            enforceRetention(active.lastAppendMillis);
+        }
+    }
+
+    /**
+     * Returns the records from an offset on, up to a number of bytes and within one segment.
+     * @param from The first offset wanted; records before the oldest kept one are gone.
+     * @param maxBytes Bytes returned at most, unless the first record alone is larger.
+     * @return A read-only view of the records, or null if there is no record at or after the offset.
+     */
+    synchronized Slice read(long from, int maxBytes) {
+        if (from > lastOffset || segments.isEmpty()) {
+            return null;
+        }
+        Map.Entry<Long, Segment> entry = segments.floorEntry(from);
+        Segment segment = entry == null ? segments.firstEntry().getValue() : entry.getValue();
+        int start = segment.positionOf(from);
+        while (start == segment.size) {
+            Map.Entry<Long, Segment> next = segments.higherEntry(segment.baseOffset);
+            if (next == null) {
+                return null;
+            }
+            segment = next.getValue();
+            start = 0;
+        }
+        MappedByteBuffer map = segment.map;
+        int end = start;
+        long last;
+        do {
+            last = map.getLong(end + SEQUENCE_POSITION);
+            end += BinaryCodec.LENGTH_FIELD + map.getInt(end);
+        } while (end < segment.size && end + BinaryCodec.LENGTH_FIELD + map.getInt(end) - start <= maxBytes);
+        return new Slice(map.slice(start, end - start).asReadOnlyBuffer(), map.getLong(start + SEQUENCE_POSITION), last);
+    }
+
+    /**
+     * Returns the offset of the last record appended.
+     * @return The last offset, 0 for a log that never held a record.
+     */
+    synchronized long lastOffset() {
+        return lastOffset;
+    }
+
+    /**
+     * Returns the offset of the oldest record still kept.
+     * @return The first offset, or the next one to be appended if the log is empty.
+     */
+    synchronized long firstOffset() {
+        return segments.isEmpty() ? lastOffset + 1 : segments.firstKey();
+    }
+
+    /**
+     * Returns the bytes of records kept.
+     * @return The log size.
+     */
+    synchronized long sizeBytes() {
+        return sizeBytes;
+    }
+
+    /**
+     * Returns the number of segment files.
+     * @return The segment count.
+     */
+    synchronized int segmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Starts a new segment for records from an offset on.
+     * @param baseOffset Offset of the first record of the segment.
+     * @param minBytes Size of that record.
+     * @throws IOException if the segment file cannot be created.
+     */
+    private void roll(long baseOffset, int minBytes) throws IOException {
+        Path file = dir.resolve(String.format("%020d%s", baseOffset, SUFFIX));
+        active = Segment.create(file, baseOffset, Math.max(segmentBytes, minBytes));
+        segments.put(baseOffset, active);
+        enforceRetention(System.currentTimeMillis());
+    }
+
+    /**
+     * Deletes the oldest segments while the log is over its size limit or they are past the retention time.
+     * Views handed out earlier stay readable, the mapping outlives the file.
+     * @param nowMillis The current time.
+     */
+    private void enforceRetention(long nowMillis) {
+        lastRetentionCheckMillis = nowMillis;
+        Iterator<Segment> iterator = segments.values().iterator();
+        while (iterator.hasNext()) {
+            Segment segment = iterator.next();
+            if (segment == active || (sizeBytes <= retentionBytes && nowMillis - segment.lastAppendMillis <= retentionMillis)) {
+                return;
+            }
+            iterator.remove();
+            sizeBytes -= segment.size;
+            try {
+                Files.deleteIfExists(segment.file);
+                Log.info("Deleted broadcast log segment {} with offsets {} to {}", segment.file.getFileName(), segment.baseOffset, segment.lastOffset);
+            } catch (IOException e) {
+                Log.warn("Could not delete broadcast log segment {}: {}", segment.file, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Consecutive records of one segment.
+     */
+    static final class Slice {
+        final ByteBuffer bytes;
+        final long firstOffset;
+        final long lastOffset;
+
+        Slice(ByteBuffer bytes, long firstOffset, long lastOffset) {
+            this.bytes = bytes;
+            this.firstOffset = firstOffset;
+            this.lastOffset = lastOffset;
+        }
+    }
+
+    /**
+     * One mapped segment file and the sparse index of its records.
+     */
+    private static final class Segment {
+        private final Path file;
+        private final long baseOffset;
+        private final MappedByteBuffer map;
+        private int size;
+        private long lastOffset;
+        private long lastAppendMillis;
+        private long[] indexOffsets = new long[16];
+        private int[] indexPositions = new int[16];
+        private int indexCount;
+
+        private Segment(Path file, long baseOffset, MappedByteBuffer map, long lastAppendMillis) {
+            this.file = file;
+            this.baseOffset = baseOffset;
+            this.map = map;
+            this.lastAppendMillis = lastAppendMillis;
+        }
+
+        /**
+         * Creates and maps an empty segment file.
+         */
+        static Segment create(Path file, long baseOffset, int bytes) throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                // Mapping past the end grows the file without writing the zeros, so it stays sparse
+                return new Segment(file, baseOffset, channel.map(FileChannel.MapMode.READ_WRITE, 0, bytes), System.currentTimeMillis());
+            }
+        }
+
+        /**
+         * Maps an existing segment file and finds its records.
+         */
+        static Segment recover(Path file, long baseOffset) throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+                Segment segment = new Segment(file, baseOffset, map, Files.getLastModifiedTime(file).toMillis());
+                int position = 0;
+                long previous = baseOffset - 1;
+                while (map.capacity() - position >= BinaryCodec.HEADER_SIZE) {
+                    int length = map.getInt(position);
+                    long offset = map.getLong(position + SEQUENCE_POSITION);
+                    if (length < BinaryCodec.HEADER_SIZE - BinaryCodec.LENGTH_FIELD
+                            || length > map.capacity() - position - BinaryCodec.LENGTH_FIELD || offset <= previous) {
+                        break;
+                    }
+                    segment.appended(offset, position, BinaryCodec.LENGTH_FIELD + length, segment.lastAppendMillis);
+                    previous = offset;
+                    position += BinaryCodec.LENGTH_FIELD + length;
+                }
+                return segment;
+            }
+        }
+
+        /**
+         * Records a record written at the end of the segment.
+         */
+        void appended(long offset, int position, int length, long nowMillis) {
+            if (indexCount == 0 || position - indexPositions[indexCount - 1] >= INDEX_INTERVAL) {
+                if (indexCount == indexOffsets.length) {
+                    indexOffsets = Arrays.copyOf(indexOffsets, indexCount * 2);
+                    indexPositions = Arrays.copyOf(indexPositions, indexCount * 2);
+                }
+                indexOffsets[indexCount] = offset;
+                indexPositions[indexCount] = position;
+                indexCount++;
+            }
+            size = position + length;
+            lastOffset = offset;
+            lastAppendMillis = nowMillis;
+        }
+
+        /**
+         * Returns the position of the first record at or after an offset, or the segment size if there is none.
+         */
+        int positionOf(long offset) {
+            int slot = Arrays.binarySearch(indexOffsets, 0, indexCount, offset);
+            if (slot < 0) {
+                slot = -slot - 2;
+            }
+            int position = slot < 0 ? 0 : indexPositions[slot];
+            while (position < size && map.getLong(position + SEQUENCE_POSITION) < offset) {
+                position += BinaryCodec.LENGTH_FIELD + map.getInt(position);
+            }
+            return position;
+        }
+    }
+}
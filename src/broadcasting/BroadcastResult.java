@@ -0,0 +1,82 @@
+package broadcasting;
+
+import java.net.SocketAddress;
+import java.util.List;
+
+/**
+ * Outcome of one broadcast: how many workers acknowledged it and which ones did not.
+ */
+public class BroadcastResult {
+    private final long broadcastId;
+    private final int targets;
+    private final int required;
+    private final int acked;
+    private final List<SocketAddress> stragglers;
+    private final long elapsedNanos;
+    private final long masterBytes;
+
+    BroadcastResult(long broadcastId, int targets, int required, int acked, List<SocketAddress> stragglers,
+                    long elapsedNanos, long masterBytes) {
+        this.broadcastId = broadcastId;
+        this.targets = targets;
+        this.required = required;
+        this.acked = acked;
+        this.stragglers = stragglers;
+        this.elapsedNanos = elapsedNanos;
+        this.masterBytes = masterBytes;
+    }
+
+    public long broadcastId() {
+        return broadcastId;
+    }
+
+    /**
+     * Returns the number of workers the broadcast was queued on.
+     * @return The number of targets.
+     */
+    public int targets() {
+        return targets;
+    }
+
+    public int acked() {
+        return acked;
+    }
+
+    /**
+     * Tells whether the required number of acks arrived before the timeout.
+     * @return True if the broadcast reached its quorum.
+     */
+    public boolean succeeded() {
+        return acked >= required;
+    }
+
+    /**
+     * Returns the workers that had not acknowledged when the result was produced.
+     * @return The addresses of the stragglers.
+     */
+    public List<SocketAddress> stragglers() {
+        return stragglers;
+    }
+
+    /**
+     * Returns the time from sending until the result was produced. When every target had to ack,
+     * this is the time until the last worker acknowledged the broadcast.
+     * @return The elapsed time in nanoseconds.
+     */
+    public long elapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * Returns the bytes the Master itself queued for this broadcast; relays send the rest.
+     * @return The Master's egress bytes.
+     */
+    public long masterBytes() {
+        return masterBytes;
+    }
+
+    public String toString() {
+        return String.format("Broadcast %d %s: %d/%d acks (required %d) in %.1f us, master sent %d bytes, stragglers %s",
+                broadcastId, succeeded() ? "completed" : "timed out", acked, targets, required, elapsedNanos / 1e3, masterBytes, stragglers);
+    }
+}
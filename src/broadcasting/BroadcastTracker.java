@@ -0,0 +1,234 @@
+package broadcasting;
+
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Correlates acks with the broadcasts they answer and completes each broadcast's future once
+ * enough workers have acked or its timeout expires.
+ *
+ * Each in-flight broadcast keeps the sorted ids of the workers it was sent to and one bit per
+ * worker, so tracking costs about four bytes plus one bit per worker. Acks are counted with
+ * atomic operations only; duplicates and acks from workers that were not targeted are ignored.
+ */
+class BroadcastTracker {
+    private final Map<Long, Pending> pending = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService timer;
+
+    /**
+     * Constructor to initialize the BroadcastTracker.
+     * @param timer Scheduler used to expire broadcasts that do not reach their required acks; it should
+     *              remove cancelled timeouts, so broadcasts acked early do not stay queued until they expire.
+     */
+    BroadcastTracker(ScheduledExecutorService timer) {
+        this.timer = timer;
+    }
+
+    /**
+     * Returns the number of acks that form a majority of the targets.
+     * @param targets Number of workers the broadcast reached.
+     * @return The quorum size.
+     */
+    static int quorum(int targets) {
+        return targets / 2 + 1;
+    }
+
+    /**
+     * Starts recording acks for a broadcast that is about to be sent.
+     * The broadcast cannot complete before {@link #arm} tells how many acks it needs.
+     * @param broadcastId Sequence id of the broadcast.
+     * @param connections The connections the broadcast will be offered to.
+     * @param sendNanos Monotonic send time.
+     */
+    void open(long broadcastId, List<WorkerConnection> connections, long sendNanos) {
+        pending.put(broadcastId, new Pending(broadcastId, connections, sendNanos));
+    }
+
+    /**
+     * Sets the connections that accepted the broadcast and the acks it needs, then waits for them.
+     * @param broadcastId Sequence id of the broadcast.
+     * @param accepted The connections that accepted the broadcast.
+     * @param required Number of acks needed; clamped to the number of accepting connections.
+     * @param masterBytes Bytes the Master queued for the broadcast.
+     * @param timeout How long to wait for the acks.
+     * @param unit Unit of the timeout.
+     * @return A future completed when enough acks arrived or the timeout expired.
+     */
+    CompletableFuture<BroadcastResult> arm(long broadcastId, List<WorkerConnection> accepted, int required,
+                                           long masterBytes, long timeout, TimeUnit unit) {
+        Pending broadcast = pending.get(broadcastId);
+        broadcast.arm(accepted, Math.min(required, accepted.size()), masterBytes);
+        // Acks that arrived while the broadcast was being sent may already be enough
+        if (broadcast.reachedRequired()) {
+            finish(broadcast);
+        } else {
+            broadcast.timeout = timer.schedule(() -> finish(broadcast), timeout, unit);
+            // The last ack may have come in before the timeout was stored
+            if (pending.get(broadcastId) != broadcast) {
+                broadcast.timeout.cancel(false);
+            }
+        }
+        return broadcast.future;
+    }
+
+    /**
+     * Adds bytes the Master queued for a broadcast after it was armed, such as the chunks of a large broadcast.
+     * @param broadcastId Sequence id of the broadcast.
+     * @param bytes Number of bytes queued.
+     */
+    void sent(long broadcastId, long bytes) {
+        Pending broadcast = pending.get(broadcastId);
+        if (broadcast != null) {
+            broadcast.masterBytes.addAndGet(bytes);
+        }
+    }
+
+    /**
+     * Records an ack from a worker.
+     * @param broadcastId Sequence id carried by the ack.
+     * @param connection The connection the ack arrived on.
+     */
+    void ack(long broadcastId, WorkerConnection connection) {
+        Pending broadcast = pending.get(broadcastId);
+        if (broadcast != null && broadcast.ack(connection.id()) && broadcast.reachedRequired()) {
+            finish(broadcast);
+        }
+    }
+
+    /**
+     * Tells whether a broadcast is still waiting for a worker's ack.
+     * @param broadcastId Sequence id of the broadcast.
+     * @param connectionId Id of the worker's connection.
+     * @return True if the worker is a target of the in-flight broadcast and has not acked yet.
+     */
+    boolean awaits(long broadcastId, int connectionId) {
+        Pending broadcast = pending.get(broadcastId);
+        return broadcast != null && Arrays.binarySearch(broadcast.targetIds, connectionId) >= 0
+                && !broadcast.hasAcked(connectionId);
+    }
+
+    /**
+     * Returns the number of broadcasts still waiting for acks.
+     * @return The in-flight broadcast count.
+     */
+    int pendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Completes every in-flight broadcast with the acks received so far, for a Master that shuts down.
+     */
+    void finishAll() {
+        for (Pending broadcast : pending.values()) {
+            // A broadcast still being sent is completed by its own timeout once armed
+            if (broadcast.accepted != null) {
+                finish(broadcast);
+            }
+        }
+    }
+
+    /**
+     * Completes a broadcast with the acks received so far; only the first caller wins.
+     * @param broadcast The broadcast to complete.
+     */
+    private void finish(Pending broadcast) {
+        if (pending.remove(broadcast.broadcastId, broadcast)) {
+            ScheduledFuture<?> timeout = broadcast.timeout;
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+            broadcast.complete();
+        }
+    }
+
+    /**
+     * State of one in-flight broadcast.
+     */
+    private static class Pending {
+        private final long broadcastId;
+        private final int[] targetIds;
+        private final AtomicLongArray ackedBits;
+        private final AtomicInteger acked = new AtomicInteger();
+        private final long sendNanos;
+        private final AtomicLong masterBytes = new AtomicLong();
+        private final CompletableFuture<BroadcastResult> future = new CompletableFuture<>();
+        private volatile List<WorkerConnection> accepted;
+        private volatile ScheduledFuture<?> timeout;
+        private volatile int required = Integer.MAX_VALUE;
+
+        Pending(long broadcastId, List<WorkerConnection> connections, long sendNanos) {
+            this.broadcastId = broadcastId;
+            // Sorted so an ack finds its worker's bit with a binary search
+            this.targetIds = new int[connections.size()];
+            for (int i = 0; i < targetIds.length; i++) {
+                targetIds[i] = connections.get(i).id();
+            }
+            Arrays.sort(targetIds);
+            this.ackedBits = new AtomicLongArray((targetIds.length + 63) / 64);
+            this.sendNanos = sendNanos;
+        }
+
+        void arm(List<WorkerConnection> accepted, int required, long masterBytes) {
+            this.masterBytes.addAndGet(masterBytes);
+            this.accepted = accepted;
+            this.required = required;
+        }
+
+        boolean reachedRequired() {
+            return acked.get() >= required;
+        }
+
+        /**
+         * Sets the bit of the acking worker.
+         * @param connectionId Id of the acking connection.
+         * @return True if this is the worker's first ack for the broadcast.
+         */
+        boolean ack(int connectionId) {
+            int position = Arrays.binarySearch(targetIds, connectionId);
+            if (position < 0) {
+                return false;
+            }
+            int word = position >>> 6;
+            long bit = 1L << (position & 63);
+            long current;
+            do {
+                current = ackedBits.get(word);
+                if ((current & bit) != 0) {
+                    return false;
+                }
+            } while (!ackedBits.compareAndSet(word, current, current | bit));
+            acked.incrementAndGet();
+            return true;
+        }
+
+        private boolean hasAcked(int connectionId) {
+            int position = Arrays.binarySearch(targetIds, connectionId);
+            return position >= 0 && (ackedBits.get(position >>> 6) & (1L << (position & 63))) != 0;
+        }
+
+        /**
+         * Completes the future with the current ack state.
+         */
+        void complete() {
+            List<SocketAddress> stragglers = new ArrayList<>();
+            for (WorkerConnection connection : accepted) {
+                if (!hasAcked(connection.id())) {
+                    stragglers.add(connection.remoteAddress());
+                }
+            }
+            future.complete(new BroadcastResult(broadcastId, accepted.size(), required, acked.get(), stragglers,
+                    System.nanoTime() - sendNanos, masterBytes.get()));
+        }
+    }
+}
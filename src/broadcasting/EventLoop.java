@@ -0,0 +1,179 @@
+package broadcasting;
+
+import common.Log;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A single selector thread that owns a subset of the worker connections.
+ * All reads, writes and interest-set changes for a connection happen on the loop that owns it,
+ * other threads hand work over through {@link #execute(Runnable)}.
+ */
+class EventLoop implements Runnable {
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // Only touched by the loop thread
+    private final ArrayDeque<Runnable> idleTasks = new ArrayDeque<>();
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    /**
+     * Constructor to initialize the EventLoop with its own selector and thread.
+     * @param name Name of the loop thread.
+     * @throws IOException if the selector cannot be opened.
+     */
+    EventLoop(String name) throws IOException {
+        this.selector = Selector.open();
+        this.thread = new Thread(this, name);
+    }
+
+    /**
+     * Starts the loop thread.
+     */
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * Stops the loop thread and closes the selector.
+     */
+    void stop() {
+        running = false;
+        selector.wakeup();
+    }
+
+    /**
+     * Returns the selector so that channels can be registered from the loop thread.
+     * @return The selector of this loop.
+     */
+    Selector selector() {
+        return selector;
+    }
+
+    /**
+     * Checks whether the caller is running on this loop's thread.
+     * @return True if called from the loop thread, false otherwise.
+     */
+    boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Queues a task to be run on the loop thread and wakes the selector up.
+     * @param task The task to run.
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Defers a task until the loop has handled every ready key of the current iteration.
+     * Must be called on the loop thread.
+     * @param task The task to run.
+     */
+    void executeWhenIdle(Runnable task) {
+        idleTasks.add(task);
+    }
+
+    /**
+     * Main loop: waits for ready keys, dispatches them to their handlers, runs queued tasks
+     * and finally the tasks deferred until the loop is idle. A handler or task that throws only
+     * costs its own connection, never the loop and the other connections it owns.
+     */
+    public void run() {
+        while (running) {
+            try {
+                selector.select();
+                runTasks();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    Handler handler = (Handler) key.attachment();
+                    try {
+                        handler.handle(key);
+                    } catch (RuntimeException e) {
+                        Log.error("Handler on {} failed, dropping its connection", thread.getName(), e);
+                        handler.abort();
+                    }
+                }
+            } catch (ClosedChannelException e) {
+                // The channel was closed by another handler, nothing to do
+            } catch (IOException e) {
+                Log.error("Event loop {} failed: {}", thread.getName(), e.getMessage());
+            }
+            runIdleTasks();
+        }
+        try {
+            for (SelectionKey key : selector.keys()) {
+                key.channel().close();
+            }
+            selector.close();
+        } catch (IOException e) {
+            Log.error("Could not close the selector of {}", thread.getName(), e);
+        }
+    }
+
+    /**
+     * Runs every task queued by other threads since the last iteration.
+     */
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            runSafely(task);
+        }
+    }
+
+    /**
+     * Runs the tasks deferred during this iteration, including any they defer themselves.
+     */
+    private void runIdleTasks() {
+        Runnable task;
+        while ((task = idleTasks.poll()) != null) {
+            runSafely(task);
+        }
+    }
+
+    /**
+     * Runs a task, logging instead of propagating what it throws so the loop keeps going.
+     * @param task The task to run.
+     */
+    private void runSafely(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            Log.error("Task on {} failed", thread.getName(), e);
+        }
+    }
+
+    /**
+     * Callback attached to every selection key owned by a loop.
+     */
+    interface Handler {
+        /**
+         * Handles the ready operations of the key.
+         * @param key The selected key.
+         * @throws IOException if an I/O error occurs.
+         */
+        void handle(SelectionKey key) throws IOException;
+
+        /**
+         * Releases whatever the key stands for after {@link #handle(SelectionKey)} threw unexpectedly.
+         * By default nothing is released, which suits the server channel.
+         */
+        default void abort() {
+        }
+    }
+}
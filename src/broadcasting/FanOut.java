@@ -0,0 +1,99 @@
+package broadcasting;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Hands one encoded payload to every connected worker.
+ * Each connection receives a read-only view of the same bytes and writes it on its own,
+ * so a slow worker only holds up its own queue and never the broadcast or the other workers.
+ */
+class FanOut {
+    private final Set<WorkerConnection> connections = ConcurrentHashMap.newKeySet();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder egressBytes = new LongAdder();
+
+    /**
+     * Adds a connection to the broadcast set.
+     * @param connection The connection to add.
+     */
+    void add(WorkerConnection connection) {
+        connections.add(connection);
+    }
+
+    /**
+     * Removes a connection from the broadcast set.
+     * @param connection The connection to remove.
+     */
+    void remove(WorkerConnection connection) {
+        connections.remove(connection);
+    }
+
+    /**
+     * Returns the number of connected workers.
+     * @return The number of connections.
+     */
+    int size() {
+        return connections.size();
+    }
+
+    /**
+     * Returns a copy of the current broadcast set.
+     * @return The connected workers.
+     */
+    List<WorkerConnection> connections() {
+        return new ArrayList<>(connections);
+    }
+
+    /**
+     * Queues the payload on every given connection.
+     * @param payload The encoded message, shared by all connections.
+     * @param targets The connections to send to, usually taken from {@link #connections()}.
+     * @return The connections that accepted the payload.
+     */
+    List<WorkerConnection> broadcast(ByteBuffer payload, List<WorkerConnection> targets) {
+        ByteBuffer shared = payload.asReadOnlyBuffer();
+        List<WorkerConnection> accepted = new ArrayList<>(targets.size());
+        int dropped = 0;
+        for (WorkerConnection connection : targets) {
+            if (connection.send(shared.duplicate())) {
+                accepted.add(connection);
+            } else {
+                dropped++;
+            }
+        }
+        delivered.add(accepted.size());
+        rejected.add(dropped);
+        egressBytes.add((long) shared.remaining() * accepted.size());
+        return accepted;
+    }
+
+    /**
+     * Returns the number of messages queued on connections since start.
+     * @return The delivered message count.
+     */
+    long deliveredCount() {
+        return delivered.sum();
+    }
+
+    /**
+     * Returns the number of messages rejected by the slow consumer policy since start.
+     * @return The rejected message count.
+     */
+    long rejectedCount() {
+        return rejected.sum();
+    }
+
+    /**
+     * Returns the number of broadcast bytes queued on connections since start.
+     * @return The egress byte count.
+     */
+    long egressBytes() {
+        return egressBytes.sum();
+    }
+}
@@ -1,113 +1,1128 @@
 package broadcasting;
 
+import common.Codec;
+import common.Compression;
+import common.DrainReport;
+import common.Frame;
+import common.FrameReader;
+import common.Lifecycle;
+import common.Liveness;
+import common.Log;
+import common.Metrics;
+import common.PendingPings;
+import common.RttStats;
+import common.Sessions;
+import common.Shutdown;
+import common.SocketTuning;
+import common.ThreadMode;
+import common.Tls;
+import common.TlsChannel;
+
 import java.io.*;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntUnaryOperator;
+
+public class Master implements Lifecycle {
+    /**
+     * How worker connections are served.
+     * BLOCKING uses one thread per worker, NIO multiplexes all workers over a few selector threads.
+     */
+    public enum IoMode { BLOCKING, NIO }
+
+    // Number of acks a broadcast needs, given the number of workers it was queued on
+    public static final IntUnaryOperator ALL_ACKS = targets -> targets;
+    public static final IntUnaryOperator QUORUM_ACKS = BroadcastTracker::quorum;
+
+    private static final long DEFAULT_MAX_BUFFERED_BYTES = 1024 * 1024;
+    // Seconds between periodic broadcasts, 0 disables them (benchmarks broadcast on their own)
+    private static final String BROADCAST_PERIOD_PROPERTY = "pingpong.broadcast.period";
+    // File sent by the periodic broadcasts instead of a short message
+    private static final String BROADCAST_FILE_PROPERTY = "pingpong.broadcast.file";
+    // Topic the periodic broadcasts are published on instead of going to every worker
+    private static final String PUBLISH_TOPIC_PROPERTY = "pingpong.publish.topic";
+    // Broadcasts whose send time is kept for matching acks
+    private static final int TRACKED_BROADCASTS = 1024;
+    private static final long DEFAULT_ACK_TIMEOUT_MILLIS = 5000;
+    private static final long DEFAULT_TRANSFER_TIMEOUT_MILLIS = 60_000;
+    // Bytes of logged broadcasts queued on a catching-up worker at a time
+    private static final int REPLAY_CHUNK_BYTES = 4 * 1024 * 1024;
+    private static final long REPLAY_POLL_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+    // Index of the reference among the forms a message is sent in
+    private static final int REFERENCE_FORM = 4;
 
-public class Master {
     private int port;
-    private List<Socket> workerSockets;
+    private IoMode ioMode;
+    private SlowConsumerPolicy slowConsumerPolicy;
+    private long maxBufferedBytes;
+    private int treeFanOut;
+    private Codec codec;
+    private AtomicLong broadcastSequence = new AtomicLong();
+    private PendingPings broadcastTimes = new PendingPings(TRACKED_BROADCASTS);
+    private AtomicInteger connectionIds = new AtomicInteger();
+    private BroadcastTracker tracker;
+    private Map<Long, Transfer> transfers = new ConcurrentHashMap<>();
+    // Broadcasts kept for workers to catch up on, null without a log directory
+    private BroadcastLog broadcastLog;
+    // Appending to the log and fanning out are serialized, so a worker going live in between misses nothing
+    private final Object broadcastLock = new Object();
+    // Workers still replaying the log, live broadcasts skip them
+    private Set<WorkerConnection> catchingUp = ConcurrentHashMap.newKeySet();
+    private LongAdder replayedBytes;
+    // Connection id of each worker session, and the session of each connection that named one
+    private Sessions<Integer> sessions = new Sessions<>(null);
+    private Map<WorkerConnection, String> sessionIds = new ConcurrentHashMap<>();
+    private RelayTree relayTree;
+    // Workers that take compressed payloads, and the payloads held by workers that deduplicate
+    private Set<WorkerConnection> compressing = ConcurrentHashMap.newKeySet();
+    private Map<WorkerConnection, PayloadCache> payloadCaches = new ConcurrentHashMap<>();
+    // Only used with the broadcast lock held
+    private final Compression compression = new Compression();
+    private LongAdder compressionSavedBytes;
+    private LongAdder dedupHits;
+    private LongAdder dedupSavedBytes;
+    private SubscriptionIndex subscriptions = new SubscriptionIndex();
+    private LongAdder publishDeliveries;
+    private Liveness<WorkerConnection> liveness;
+    private RttStats stats = new RttStats();
+    private Metrics metrics;
+    private Metrics.Traffic traffic;
+    private LongAdder evictions;
+    private ScheduledExecutorService statsScheduler;
+    private ScheduledExecutorService ackTimer;
+    private FanOut fanOut;
     private ExecutorService executorService;
+    private NioServer nioServer;
+    private volatile ServerSocketChannel serverChannel;
+    private Future<?> periodicBroadcasts;
+    private volatile boolean listening;
+    private volatile boolean stopping;
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private DrainReport drainReport;
 
     /**
      * Constructor to initialize the Master class with the specified port.
      * @param port Port number on which the Master node listens for connections.
      */
     public Master(int port) {
+        this(port, IoMode.BLOCKING, SlowConsumerPolicy.BUFFER, DEFAULT_MAX_BUFFERED_BYTES);
+    }
+
+    /**
+     * Constructor to initialize the Master class with the specified port, I/O mode and slow consumer handling.
+     * @param port Port number on which the Master node listens for connections.
+     * @param ioMode How worker connections are served.
+     * @param slowConsumerPolicy What to do with broadcasts for a worker that is falling behind.
+     * @param maxBufferedBytes Maximum unsent bytes per worker under the BUFFER policy.
+     */
+    public Master(int port, IoMode ioMode, SlowConsumerPolicy slowConsumerPolicy, long maxBufferedBytes) {
+        this(port, ioMode, slowConsumerPolicy, maxBufferedBytes, 0);
+    }
+
+    /**
+     * Constructor to initialize the Master class, optionally broadcasting through a tree of relaying workers.
+     * @param port Port number on which the Master node listens for connections.
+     * @param ioMode How worker connections are served.
+     * @param slowConsumerPolicy What to do with broadcasts for a worker that is falling behind.
+     * @param maxBufferedBytes Maximum unsent bytes per worker under the BUFFER policy.
+     * @param treeFanOut Children per node in the relay tree, 0 sends every broadcast to every worker directly.
+     */
+    public Master(int port, IoMode ioMode, SlowConsumerPolicy slowConsumerPolicy, long maxBufferedBytes, int treeFanOut) {
         this.port = port;
-        this.workerSockets = new ArrayList<>();
-        this.executorService = Executors.newCachedThreadPool();
+        this.ioMode = ioMode;
+        this.slowConsumerPolicy = slowConsumerPolicy;
+        this.maxBufferedBytes = maxBufferedBytes;
+        this.treeFanOut = treeFanOut;
+        this.codec = Codec.configured();
+        if (treeFanOut > 0 && codec.isText()) {
+            // Relay control frames have no text representation
+            Log.warn("Relay tree needs the binary protocol, broadcasting to every worker directly.");
+            this.treeFanOut = 0;
+        }
+        if (this.treeFanOut > 0) {
+            this.relayTree = new RelayTree(this.treeFanOut);
+        }
+        openLog(System.getProperty(BroadcastLog.DIR_PROPERTY, ""));
+        this.fanOut = new FanOut();
+        this.executorService = ThreadMode.configured().newExecutor("broadcast-worker");
+        this.liveness = new Liveness<>("broadcast-liveness", codec, new Liveness.Listener<WorkerConnection>() {
+            public void sendHeartbeat(WorkerConnection connection) {
+                // Queued bytes are on their way already and prove the connection alive when they are acked
+                if (connection.queuedBytes() == 0) {
+                    connection.sendControl(codec.encode(new Frame().set(Frame.HEARTBEAT, 0, System.nanoTime())));
+                }
+            }
+
+            public void onDead(WorkerConnection connection) {
+                Log.warn("Worker {} stopped responding, disconnecting it.", connection.remoteAddress());
+                evictions.increment();
+                connection.close();
+            }
+        });
+        ScheduledThreadPoolExecutor ackTimer = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "broadcast-timeout");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Broadcasts are mostly acked long before their timeout, which would otherwise keep them queued
+        ackTimer.setRemoveOnCancelPolicy(true);
+        this.ackTimer = ackTimer;
+        this.tracker = new BroadcastTracker(ackTimer);
+        registerMetrics();
+    }
+
+    /**
+     * Opens the broadcast log and continues numbering broadcasts after its last offset.
+     * @param dir Directory of the log, empty for none.
+     */
+    private void openLog(String dir) {
+        if (dir.isEmpty()) {
+            return;
+        }
+        if (codec.isText()) {
+            Log.warn("Broadcast log needs the binary protocol, not keeping one.");
+        } else if (relayTree != null) {
+            // Relayed workers receive live broadcasts from their parent, which cannot hold them back during a replay
+            Log.warn("Broadcast log needs direct fan-out, not keeping one with a relay tree.");
+        } else {
+            try {
+                broadcastLog = new BroadcastLog(Paths.get(dir));
+                broadcastSequence.set(broadcastLog.lastOffset());
+            } catch (IOException e) {
+                Log.error("Could not open the broadcast log in {}", dir, e);
+            }
+        }
+    }
+
+    /**
+     * Exports the Master's connections, queues, traffic and broadcast round-trip times.
+     */
+    private void registerMetrics() {
+        metrics = Metrics.register("broadcasting", "master", Integer.toString(port));
+        traffic = metrics.traffic();
+        evictions = metrics.counter("pingpong_workers_evicted_total", "Workers disconnected because they stopped responding");
+        metrics.gauge("pingpong_connected_workers", "Workers currently connected", fanOut::size);
+        metrics.gauge("pingpong_outbound_queued_bytes", "Bytes queued for all workers and not yet written", this::queuedBytes);
+        metrics.gauge("pingpong_worker_outbound_queued_bytes", "Bytes queued for a worker and not yet written", "worker", () -> {
+            Map<String, Long> queued = new TreeMap<>();
+            for (WorkerConnection connection : fanOut.connections()) {
+                queued.put(connection.remoteAddress().toString(), connection.queuedBytes());
+            }
+            return queued;
+        });
+        metrics.gauge("pingpong_transfers_in_progress", "Large broadcasts still being sent", transfers::size);
+        replayedBytes = metrics.counter("pingpong_replayed_bytes_total", "Bytes of logged broadcasts queued for catching-up workers");
+        metrics.gauge("pingpong_workers_catching_up", "Workers replaying the broadcast log", catchingUp::size);
+        if (broadcastLog != null) {
+            metrics.gauge("pingpong_broadcast_log_bytes", "Bytes of broadcasts kept in the log", broadcastLog::sizeBytes);
+            metrics.gauge("pingpong_broadcast_log_segments", "Segment files of the broadcast log", broadcastLog::segmentCount);
+        }
+        metrics.gauge("pingpong_subscriptions", "Topic patterns workers are subscribed to", subscriptions::size);
+        publishDeliveries = metrics.counter("pingpong_publish_deliveries_total", "Published messages queued for matching workers");
+        metrics.gauge("pingpong_workers_compressing", "Workers that negotiated compressed payloads", compressing::size);
+        compressionSavedBytes = metrics.counter("pingpong_broadcast_compression_saved_bytes_total",
+                "Bytes compression took off broadcasts and published messages, over every worker they were queued for");
+        dedupHits = metrics.counter("pingpong_dedup_hits_total", "Broadcasts and published messages sent as a reference to a payload the worker holds");
+        dedupSavedBytes = metrics.counter("pingpong_dedup_saved_bytes_total", "Bytes saved by sending references instead of payloads");
+        metrics.gauge("pingpong_sessions", "Worker sessions kept, connected or not", sessions::size);
+        metrics.counter("pingpong_sessions_resumed_total", "Connections that resumed an existing worker session", sessions::resumedCount);
+        stats.register(metrics);
+    }
+
+    /**
+     * Returns an ack requirement of K out of however many workers a broadcast reaches.
+     * @param required Number of acks needed; broadcasts reaching fewer workers need all of them.
+     * @return The ack requirement to pass to {@link #broadcastMessage(String, IntUnaryOperator, long, TimeUnit)}.
+     */
+    public static IntUnaryOperator acksFrom(int required) {
+        return targets -> Math.min(required, targets);
+    }
+
+    /**
+     * Returns a snapshot of the round-trip times measured so far.
+     * @return The global and per-worker RTT statistics.
+     */
+    public RttStats.Snapshot stats() {
+        return stats.snapshot();
+    }
+
+    /**
+     * Tells whether the server socket is bound and accepting workers.
+     * @return True once the Master is listening.
+     */
+    public boolean isListening() {
+        return listening;
+    }
+
+    /**
+     * Returns the number of acks received so far; cheaper than a full stats snapshot.
+     * @return The number of matched acks.
+     */
+    public long acksReceived() {
+        return stats.receivedCount();
+    }
+
+    /**
+     * Returns the number of workers currently connected.
+     * @return The number of connections.
+     */
+    public int connectedWorkers() {
+        return fanOut.size();
+    }
+
+    /**
+     * Returns the number of workers that joined the relay tree.
+     * @return The tree size, 0 when broadcasting directly.
+     */
+    public int relayingWorkers() {
+        return relayTree == null ? 0 : relayTree.members().size();
+    }
+
+    /**
+     * Returns the broadcast bytes the Master queued on worker connections since start.
+     * @return The Master's egress bytes.
+     */
+    public long egressBytes() {
+        return fanOut.egressBytes();
+    }
+
+    /**
+     * Returns the bytes queued on all worker connections and not yet written.
+     * @return The queued bytes.
+     */
+    private long queuedBytes() {
+        long queued = 0;
+        for (WorkerConnection connection : fanOut.connections()) {
+            queued += connection.queuedBytes();
+        }
+        return queued;
+    }
+
+    /**
+     * Starts the Master server and serves workers until it is drained, in either I/O mode.
+     */
+    public void start() {
+        startServer();
+        if (!listening) {
+            return;
+        }
+        try {
+            stopped.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
     /**
      * Starts the Master server to accept connections from worker nodes and handle broadcasting.
+     * In NIO mode this returns once the event loops run, in blocking mode once the Master is drained.
      */
     public void startServer() {
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
-            System.out.println("Master node is running on port " + port);
+        statsScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "stats-dump");
+            thread.setDaemon(true);
+            return thread;
+        });
+        stats.dumpEvery(statsScheduler, RttStats.configuredDumpPeriodSeconds());
 
-            // Thread to handle periodic tasks like broadcasting messages
-            executorService.submit(() -> {
+        // Thread to handle periodic tasks like broadcasting messages
+        long broadcastPeriod = Long.getLong(BROADCAST_PERIOD_PROPERTY, 10);
+        String broadcastFile = System.getProperty(BROADCAST_FILE_PROPERTY, "");
+        String publishTopic = System.getProperty(PUBLISH_TOPIC_PROPERTY, "");
+        if (broadcastPeriod > 0) {
+            periodicBroadcasts = executorService.submit(() -> {
                 try {
-                    while (true) {
-                        Thread.sleep(10000); // For example, broadcasting a message every 10 seconds
-                        broadcastMessage("broadcast: ping");
+                    while (!stopping) {
+                        Thread.sleep(broadcastPeriod * 1000); // For example, broadcasting a message every 10 seconds
+                        if (!publishTopic.isEmpty()) {
+                            publish(publishTopic, "broadcast: ping").thenAccept(result -> Log.info("{}", result));
+                        } else if (broadcastFile.isEmpty()) {
+                            broadcastMessage("broadcast: ping").thenAccept(result -> Log.info("{}", result));
+                        } else {
+                            // Workers that already hold the file ack at once, interrupted ones resume
+                            broadcastFile(Paths.get(broadcastFile)).thenAccept(result -> Log.info("{}", result));
+                        }
                     }
                 } catch (InterruptedException e) {
                     Thread.currentThread().interrupt();
                 }
             });
+        }
+
+        if (ioMode == IoMode.NIO) {
+            startNioServer();
+        } else {
+            startBlockingServer();
+        }
+    }
 
-            // Accept connections from worker nodes
-            while (true) {
-                Socket workerSocket = serverSocket.accept();
-                synchronized (workerSockets) {
-                    workerSockets.add(workerSocket);
+    /**
+     * Serves workers from one event loop per core instead of one thread per worker.
+     */
+    private void startNioServer() {
+        int loops = Runtime.getRuntime().availableProcessors();
+        try {
+            nioServer = new NioServer(port, loops, new NioServer.Listener() {
+                public void onConnect(NioConnection connection) {
+                    fanOut.add(connection);
+                    liveness.register(connection);
+                    Log.info("Connected to worker: {}", connection.remoteAddress());
                 }
-                System.out.println("Connected to worker: " + workerSocket.getInetAddress());
 
-                // Handle responses from worker in a separate thread
-                executorService.submit(() -> handleResponse(workerSocket));
+                public void onMessage(NioConnection connection, Frame frame) {
+                    handleMessage(connection, frame);
+                }
+
+                public void onDisconnect(NioConnection connection) {
+                    disconnected(connection);
+                    Log.info("Worker disconnected: {}", connection.remoteAddress());
+                }
+            }, slowConsumerPolicy, maxBufferedBytes, codec, traffic);
+            nioServer.start();
+            listening = true;
+            Log.info("Master node is running on port {} with {} event loops", port, loops);
+        } catch (IOException e) {
+            Log.error("Could not start the Master on port {}", port, e);
+        }
+    }
+
+    /**
+     * Accepts workers on a server socket and reads each worker's responses on its own thread.
+     * Broadcasts are written by pooled writer tasks, one per connection with pending data.
+     */
+    private void startBlockingServer() {
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            this.serverChannel = serverChannel;
+            SocketTuning.apply(serverChannel);
+            serverChannel.bind(new InetSocketAddress(port));
+            listening = true;
+            Log.info("Master node is running on port {}", port);
+
+            // Accept connections from worker nodes; a drain closes the server channel
+            while (!stopping) {
+                SocketChannel workerChannel = serverChannel.accept();
+                SocketTuning.apply(workerChannel);
+                // Handle responses from worker in a separate thread, which also runs the TLS handshake
+                executorService.submit(() -> serve(workerChannel));
+            }
+        } catch (IOException e) {
+            if (!stopping) {
+                Log.error("Master on port {} stopped accepting workers", port, e);
+            }
+        }
+    }
+
+    /**
+     * Stops broadcasting and accepting workers, waits for the acks of the broadcasts in flight and for
+     * the outbound queues to be written, then disconnects every worker. Broadcasts still short of their
+     * acks at the deadline are completed with their stragglers and counted as dropped; workers catching
+     * up on the log stop replaying.
+     * @param timeout How long to wait for acks and queued bytes.
+     * @param unit Unit of the timeout.
+     * @return What was completed and dropped while draining.
+     */
+    public synchronized DrainReport drain(long timeout, TimeUnit unit) {
+        if (drainReport != null) {
+            return drainReport;
+        }
+        long startNanos = System.nanoTime();
+        int inFlight = tracker.pendingCount();
+        stopping = true;
+        Shutdown.unregister(this);
+        if (periodicBroadcasts != null) {
+            periodicBroadcasts.cancel(true);
+        }
+        if (nioServer != null) {
+            nioServer.stopAccepting();
+        } else if (serverChannel != null) {
+            try {
+                serverChannel.close();
+            } catch (IOException e) {
+                Log.error("Could not close the server channel on port {}", port, e);
+            }
+        }
+        catchingUp.clear();
+        Shutdown.await(() -> tracker.pendingCount() == 0 && queuedBytes() == 0, startNanos + unit.toNanos(timeout));
+        int dropped = tracker.pendingCount();
+        long unsent = queuedBytes();
+        if (unsent > 0) {
+            Log.warn("Dropping {} bytes still queued for workers", unsent);
+        }
+        tracker.finishAll();
+        synchronized (broadcastLock) {
+            compression.close();
+        }
+
+        for (WorkerConnection connection : fanOut.connections()) {
+            connection.close();
+        }
+        if (nioServer != null) {
+            nioServer.stop();
+        }
+        liveness.stop();
+        executorService.shutdownNow();
+        ackTimer.shutdownNow();
+        if (statsScheduler != null) {
+            statsScheduler.shutdownNow();
+        }
+        metrics.close();
+        drainReport = new DrainReport(System.nanoTime() - startNanos, Math.max(0, inFlight - dropped), dropped);
+        stopped.countDown();
+        return drainReport;
+    }
+
+    /**
+     * Sets up an accepted worker's connection and reads its responses until it disconnects.
+     * @param workerChannel The accepted channel.
+     */
+    private void serve(SocketChannel workerChannel) {
+        BlockingConnection connection;
+        try {
+            TlsChannel tls = null;
+            if (Tls.enabled()) {
+                tls = new TlsChannel(workerChannel, Tls.newEngine(false, null, 0));
+                tls.handshake();
             }
+            connection = new BlockingConnection(connectionIds.getAndIncrement(), workerChannel, tls,
+                    new OutboundQueue(slowConsumerPolicy, maxBufferedBytes, traffic), executorService);
         } catch (IOException e) {
-            e.printStackTrace();
+            Log.warn("Could not set up the connection to a worker: {}", e.getMessage());
+            try {
+                workerChannel.close();
+            } catch (IOException closeFailure) {
+                Log.error("Could not close a worker channel", closeFailure);
+            }
+            return;
         }
+        fanOut.add(connection);
+        liveness.register(connection);
+        Log.info("Connected to worker: {}", connection.remoteAddress());
+        handleResponse(connection);
     }
 
     /**
      * Handles responses from the worker node.
-     * @param workerSocket The socket connected to the worker node.
+     * @param connection The connection to the worker node.
      */
-    private void handleResponse(Socket workerSocket) {
+    private void handleResponse(BlockingConnection connection) {
         try {
-            BufferedReader reader = new BufferedReader(new InputStreamReader(workerSocket.getInputStream()));
-            String response;
-            while ((response = reader.readLine()) != null) {
-                System.out.println("Received response from " + workerSocket.getInetAddress() + ": " + response);
+            FrameReader reader = new FrameReader(Channels.newInputStream(connection.input()), codec, traffic);
+            Frame frame = new Frame();
+            while (reader.read(frame)) {
+                handleMessage(connection, frame);
             }
         } catch (IOException e) {
-            System.out.println("Error reading response from " + workerSocket.getInetAddress());
-            e.printStackTrace();
+            if (!stopping) {
+                Log.warn("Error reading response from {}", connection.remoteAddress());
+            }
+        } finally {
+            connection.close();
+            disconnected(connection);
+        }
+    }
+
+    /**
+     * Forgets a worker that disconnected and re-parents the workers that relayed through it.
+     * @param connection The closed connection.
+     */
+    private void disconnected(WorkerConnection connection) {
+        fanOut.remove(connection);
+        catchingUp.remove(connection);
+        compressing.remove(connection);
+        payloadCaches.remove(connection);
+        subscriptions.unsubscribeAll(connection);
+        liveness.unregister(connection);
+        stats.remove(connection.remoteAddress().toString());
+        String workerId = sessionIds.remove(connection);
+        if (workerId != null) {
+            sessions.disconnect(workerId);
+        }
+        if (relayTree != null) {
+            assignParents(relayTree.leave(connection));
+        }
+    }
+
+    /**
+     * Records what a worker announced in the flags of its SESSION frame: whether it takes compressed
+     * payloads and whether it keeps a cache of payloads to be referenced. Either only applies if this
+     * Master compresses or deduplicates too; the worker's cache starts empty with the connection.
+     * @param connection The connection the session frame arrived on.
+     * @param flags Flags of the session frame.
+     */
+    private void negotiate(WorkerConnection connection, byte flags) {
+        if (Compression.negotiated(flags)) {
+            compressing.add(connection);
+        }
+        if (PayloadCache.enabled() && (flags & PayloadCache.REFERENCE) != 0) {
+            payloadCaches.putIfAbsent(connection, new PayloadCache());
+        }
+    }
+
+    /**
+     * Opens or resumes the session a worker named in its SESSION frame. A resumed worker takes over
+     * the connection id of its session, so acks it still owes for earlier broadcasts count, and large
+     * broadcasts it has not stored yet are announced again so it continues them from its part files.
+     * @param connection The connection the session frame arrived on.
+     * @param workerId The id the worker sent.
+     */
+    private void openSession(WorkerConnection connection, String workerId) {
+        if (sessionIds.putIfAbsent(connection, workerId) != null) {
+            return;
+        }
+        int id = sessions.connect(workerId, connection.id());
+        if (id == connection.id()) {
+            return;
+        }
+        connection.adoptId(id);
+        Log.info("Worker {} resumed session {}", connection.remoteAddress(), workerId);
+        for (Transfer transfer : transfers.values()) {
+            if (tracker.awaits(transfer.id(), id)) {
+                connection.sendControl(transfer.announce());
+            }
+        }
+    }
+
+    /**
+     * Subscribes a worker to the topic pattern of its SUBSCRIBE frame. Subscriptions end with the
+     * connection; a reconnecting worker subscribes again.
+     * @param connection The connection the subscription arrived on.
+     * @param pattern The topic pattern.
+     */
+    private void subscribe(WorkerConnection connection, String pattern) {
+        try {
+            subscriptions.subscribe(connection, pattern);
+            Log.info("Worker {} subscribed to {}", connection.remoteAddress(), pattern);
+        } catch (IllegalArgumentException e) {
+            Log.warn("Ignoring subscription of {}: {}", connection.remoteAddress(), e.getMessage());
+        }
+    }
+
+    /**
+     * Adds a worker to the relay tree once it reported the port of its relay server.
+     * @param connection The connection the hello arrived on.
+     * @param frame The hello frame, carrying the relay port.
+     */
+    private void joinTree(WorkerConnection connection, Frame frame) {
+        SocketAddress address = connection.remoteAddress();
+        int relayPort = Integer.parseInt(frame.payloadAsString());
+        InetSocketAddress relay = new InetSocketAddress(((InetSocketAddress) address).getAddress(), relayPort);
+        assignParents(relayTree.join(connection, relay));
+    }
+
+    /**
+     * Tells workers which relay to receive broadcasts from.
+     * @param assignments The new parent of each affected worker.
+     */
+    private void assignParents(List<RelayTree.Assignment> assignments) {
+        for (RelayTree.Assignment assignment : assignments) {
+            String parent = assignment.parent == null ? ""
+                    : assignment.parent.getHostString() + ":" + assignment.parent.getPort();
+            Frame frame = new Frame().set(Frame.PARENT, 0, System.nanoTime()).payload(parent);
+            assignment.worker.sendControl(codec.encode(frame));
+        }
+    }
+
+    /**
+     * Handles one message from a worker: acks are matched to their broadcast by sequence id,
+     * the round-trip time is recorded and the ack is counted towards the broadcast's future.
+     * @param connection The connection the message arrived on.
+     * @param frame The received frame.
+     */
+    private void handleMessage(WorkerConnection connection, Frame frame) {
+        long receiveNanos = System.nanoTime();
+        liveness.heard(connection);
+        if (frame.type() == Frame.HEARTBEAT) {
+            return;
+        }
+        if (frame.type() == Frame.SESSION) {
+            negotiate(connection, frame.flags());
+            openSession(connection, frame.payloadAsString());
+            return;
+        }
+        if (frame.type() == Frame.SUBSCRIBE) {
+            subscribe(connection, frame.payloadAsString());
+            return;
+        }
+        if (frame.type() == Frame.HELLO) {
+            if (relayTree != null) {
+                joinTree(connection, frame);
+            }
+            return;
+        }
+        if (frame.type() == Frame.REPLAY) {
+            replay(connection, frame.payload().getLong());
+            return;
+        }
+        if (frame.type() == Frame.RESUME) {
+            resumeTransfer(connection, frame);
+            return;
+        }
+        if (frame.type() == Frame.ACK && transfers.containsKey(frame.sequence())) {
+            // Transfer acks measure how long the content took to arrive, not a round trip
+            tracker.ack(frame.sequence(), connection);
+        } else if (frame.type() == Frame.ACK) {
+            long sendNanos = broadcastTimes.sendTime(frame.sequence());
+            if (sendNanos < 0) {
+                stats.unmatched();
+            } else {
+                stats.record(connection.remoteAddress().toString(), receiveNanos - sendNanos);
+            }
+            tracker.ack(frame.sequence(), connection);
+        }
+        if (Log.sampled()) {
+            Log.debug("Received response from {}: {}", connection.remoteAddress(), frame.payloadAsString());
         }
     }
 
     /**
      * Broadcasts a message to all connected worker nodes.
+     * The message is encoded once and queued on every connection without waiting for any worker.
      * @param message The message to broadcast.
+     * @return A future completed once every worker acked, or with the stragglers after the default timeout.
      */
-    public void broadcastMessage(String message) {
-        synchronized (workerSockets) {
-            System.out.println("Broadcasting message to all workers.");
-            for (Socket socket : workerSockets) {
+    public CompletableFuture<BroadcastResult> broadcastMessage(String message) {
+        return broadcastMessage(message, ALL_ACKS, DEFAULT_ACK_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Broadcasts a message to all connected worker nodes and tracks the acks it needs.
+     * Only workers that accepted the broadcast count as targets. With a relay tree the Master
+     * sends to the roots only and every tree member counts as a target. Acks carry the broadcast id,
+     * so they can only be correlated with the binary protocol; text broadcasts always time out.
+     * @param message The message to broadcast.
+     * @param requiredAcks Number of acks needed, given the number of workers the broadcast reached.
+     * @param timeout How long to wait for the acks.
+     * @param unit Unit of the timeout.
+     * @return A future completed once enough workers acked, or with the stragglers when the timeout expires.
+     */
+    public CompletableFuture<BroadcastResult> broadcastMessage(String message, IntUnaryOperator requiredAcks, long timeout, TimeUnit unit) {
+        if (stopping) {
+            return CompletableFuture.failedFuture(new IllegalStateException("The Master is shutting down"));
+        }
+        Log.debug("Broadcasting message to {} workers.", fanOut.size());
+        long sequence;
+        ByteBuffer payload;
+        List<WorkerConnection> connections;
+        List<WorkerConnection> direct;
+        List<WorkerConnection> accepted;
+        Delivery delivery;
+        synchronized (broadcastLock) {
+            sequence = broadcastSequence.incrementAndGet();
+            long sendNanos = System.nanoTime();
+            Frame frame = new Frame().set(Frame.BROADCAST, sequence, sendNanos).payload(message);
+            payload = codec.encode(frame);
+            if (broadcastLog != null) {
                 try {
-                    PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-                    out.println(message);
+                    broadcastLog.append(sequence, payload);
                 } catch (IOException e) {
-                    System.out.println("Failed to send message to " + socket.getInetAddress());
-                    e.printStackTrace();
+                    Log.error("Could not log broadcast {}", sequence, e);
+                }
+            }
+            broadcastTimes.register(sequence, sendNanos);
+            // Tracking starts before sending because fast workers may ack before the fan-out returns
+            connections = relayTree == null ? liveConnections() : relayTree.members();
+            tracker.open(sequence, connections, sendNanos);
+            direct = relayTree == null ? connections : relayTree.roots();
+            delivery = send(frame, payload, direct);
+            accepted = delivery.accepted;
+        }
+        if (accepted.size() < direct.size()) {
+            Log.warn("Slow consumer policy {} skipped {} workers.", slowConsumerPolicy, direct.size() - accepted.size());
+        }
+        // Relayed workers are reached through the roots, a skipped root shows its subtree as stragglers
+        List<WorkerConnection> targets = relayTree == null ? accepted : connections;
+        stats.sent(targets.size());
+        return tracker.arm(sequence, targets, requiredAcks.applyAsInt(targets.size()), delivery.bytes, timeout, unit);
+    }
+
+    /**
+     * Returns the connected workers that are not catching up on the log.
+     * @return The workers live broadcasts go to.
+     */
+    private List<WorkerConnection> liveConnections() {
+        List<WorkerConnection> connections = fanOut.connections();
+        if (!catchingUp.isEmpty()) {
+            connections.removeAll(catchingUp);
+        }
+        return connections;
+    }
+
+    /**
+     * Answers a worker's REPLAY request. With a log the worker is sent every logged broadcast from the
+     * offset it asked for, then switched to live delivery; either way it gets a REPLAY frame carrying
+     * the offset live delivery continues after, flagged {@link BroadcastLog#REPLAYED} if there is a log.
+     * @param connection The connection of the worker.
+     * @param from The first offset the worker is missing, negative to only go live.
+     */
+    private void replay(WorkerConnection connection, long from) {
+        if (broadcastLog == null) {
+            connection.sendControl(codec.encode(new Frame().set(Frame.REPLAY, 0, System.nanoTime())));
+            return;
+        }
+        if (from < 0) {
+            synchronized (broadcastLock) {
+                goLive(connection, broadcastLog.lastOffset());
+            }
+            return;
+        }
+        if (from > 0 && from < broadcastLog.firstOffset()) {
+            Log.warn("Worker {} asked for offset {}, the log only starts at {}", connection.remoteAddress(), from, broadcastLog.firstOffset());
+        }
+        catchingUp.add(connection);
+        executorService.execute(() -> catchUp(connection, from));
+    }
+
+    /**
+     * Streams the log to a worker in chunks, keeping at most about one chunk queued ahead of its socket,
+     * and switches it to live delivery once it has everything and its queue is empty.
+     * @param connection The connection of the worker.
+     * @param from The first offset the worker is missing.
+     */
+    private void catchUp(WorkerConnection connection, long from) {
+        long next = from;
+        long bytes = 0;
+        long startNanos = System.nanoTime();
+        while (catchingUp.contains(connection)) {
+            long queued = connection.queuedBytes();
+            if (queued > REPLAY_CHUNK_BYTES) {
+                LockSupport.parkNanos(REPLAY_POLL_NANOS);
+                continue;
+            }
+            BroadcastLog.Slice slice = broadcastLog.read(next, REPLAY_CHUNK_BYTES);
+            if (slice != null) {
+                bytes += slice.bytes.remaining();
+                replayedBytes.add(slice.bytes.remaining());
+                connection.sendControl(slice.bytes);
+                next = slice.lastOffset + 1;
+                continue;
+            }
+            if (queued > 0) {
+                // Live broadcasts are only accepted by an empty queue under most slow consumer policies
+                LockSupport.parkNanos(REPLAY_POLL_NANOS);
+                continue;
+            }
+            synchronized (broadcastLock) {
+                if (broadcastLog.lastOffset() < next) {
+                    goLive(connection, next - 1);
+                    Log.info("Worker {} caught up from offset {} to {}, {} bytes in {} ms", connection.remoteAddress(), from,
+                            next - 1, bytes, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Tells a worker where live delivery continues and includes it in live broadcasts from now on.
+     * Called with the broadcast lock held.
+     * @param connection The connection of the worker.
+     * @param offset The last offset the worker has been sent.
+     */
+    private void goLive(WorkerConnection connection, long offset) {
+        Frame frame = new Frame().set(Frame.REPLAY, offset, System.nanoTime()).flags(BroadcastLog.REPLAYED);
+        connection.sendControl(codec.encode(frame));
+        catchingUp.remove(connection);
+    }
+
+    /**
+     * Publishes a message on a topic, waiting up to the default timeout for every subscriber to ack.
+     * @param topic The topic, dot-separated levels without wildcards.
+     * @param message The message to publish.
+     * @return A future completed once every matching worker acked, or with the stragglers after the timeout.
+     */
+    public CompletableFuture<BroadcastResult> publish(String topic, String message) {
+        return publish(topic, message, ALL_ACKS, DEFAULT_ACK_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Publishes a message on a topic to the workers subscribed to a matching pattern, see {@link SubscriptionIndex}.
+     * The cost grows with the number of matching workers only: the message is encoded once and queued on
+     * those connections, and only they are tracked for acks. Published messages go to the subscribers
+     * directly even with a relay tree, since relays forward everything to their whole subtree.
+     * @param topic The topic, dot-separated levels without wildcards.
+     * @param message The message to publish.
+     * @param requiredAcks Number of acks needed, given the number of workers the message reached.
+     * @param timeout How long to wait for the acks.
+     * @param unit Unit of the timeout.
+     * @return A future completed once enough subscribers acked, or with the stragglers when the timeout expires.
+     */
+    public CompletableFuture<BroadcastResult> publish(String topic, String message, IntUnaryOperator requiredAcks,
+                                                      long timeout, TimeUnit unit) {
+        if (codec.isText()) {
+            return CompletableFuture.failedFuture(new IllegalStateException("Topics need the binary protocol"));
+        }
+        if (stopping) {
+            return CompletableFuture.failedFuture(new IllegalStateException("The Master is shutting down"));
+        }
+        List<WorkerConnection> subscribers;
+        try {
+            subscribers = subscriptions.match(topic);
+        } catch (IllegalArgumentException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        if (Log.sampled()) {
+            Log.debug("Publishing on {} to {} of {} workers.", topic, subscribers.size(), fanOut.size());
+        }
+        long sequence = broadcastSequence.incrementAndGet();
+        long sendNanos = System.nanoTime();
+        // The topic travels as the first line so a worker subscribed to several patterns knows which one fired
+        Frame frame = new Frame().set(Frame.PUBLISH, sequence, sendNanos).payload(topic + "\n" + message);
+        ByteBuffer payload = codec.encode(frame);
+        broadcastTimes.register(sequence, sendNanos);
+        tracker.open(sequence, subscribers, sendNanos);
+        Delivery delivery;
+        synchronized (broadcastLock) {
+            // Frames change the workers' payload caches, so they are queued in the order the caches are updated
+            delivery = send(frame, payload, subscribers);
+        }
+        List<WorkerConnection> accepted = delivery.accepted;
+        if (accepted.size() < subscribers.size()) {
+            Log.warn("Slow consumer policy {} skipped {} subscribers.", slowConsumerPolicy, subscribers.size() - accepted.size());
+        }
+        publishDeliveries.add(accepted.size());
+        stats.sent(accepted.size());
+        return tracker.arm(sequence, accepted, requiredAcks.applyAsInt(accepted.size()), delivery.bytes, timeout, unit);
+    }
+
+    /**
+     * Queues a broadcast or published message on the given connections, each in the cheapest form its
+     * worker negotiated: a reference to a payload the worker holds, the compressed frame or the frame as
+     * is, flagged to be cached by workers that deduplicate. Each form is encoded at most once and shared by
+     * every worker it goes to, so the payload is compressed once however many workers take it.
+     * Called with the broadcast lock held; the payload caches are only updated for connections that
+     * accepted the frame, as the worker's cache only sees frames that were queued.
+     * @param frame The message with its payload as is.
+     * @param plain The frame encoded as is, for workers that negotiated nothing.
+     * @param targets The connections to send to.
+     * @return The connections that accepted the message and the bytes queued on them.
+     */
+    private Delivery send(Frame frame, ByteBuffer plain, List<WorkerConnection> targets) {
+        if (compressing.isEmpty() && payloadCaches.isEmpty()) {
+            List<WorkerConnection> accepted = fanOut.broadcast(plain, targets);
+            return new Delivery(accepted, (long) plain.remaining() * accepted.size());
+        }
+        ByteBuffer payload = frame.payload();
+        ByteBuffer digest = PayloadCache.eligible(payload.remaining()) && !payloadCaches.isEmpty()
+                ? PayloadCache.digest(payload) : null;
+        // Forms by index: bit 0 compressed, bit 1 flagged to be cached, REFERENCE_FORM a reference
+        ByteBuffer[] forms = new ByteBuffer[REFERENCE_FORM + 1];
+        List<List<WorkerConnection>> groups = new ArrayList<>(forms.length);
+        for (int i = 0; i < forms.length; i++) {
+            groups.add(new ArrayList<>());
+        }
+        forms[0] = plain;
+        ByteBuffer compressed = null;
+        boolean compressionTried = false;
+        for (WorkerConnection connection : targets) {
+            PayloadCache cache = digest == null ? null : payloadCaches.get(connection);
+            if (cache != null && cache.contains(digest)) {
+                groups.get(REFERENCE_FORM).add(connection);
+                continue;
+            }
+            int form = cache != null ? 2 : 0;
+            if (compressing.contains(connection)) {
+                if (!compressionTried) {
+                    compressionTried = true;
+                    compressed = compression.compress(payload);
+                }
+                if (compressed != null) {
+                    form |= 1;
+                }
+            }
+            groups.get(form).add(connection);
+        }
+
+        List<WorkerConnection> accepted = new ArrayList<>(targets.size());
+        long bytes = 0;
+        for (int form = 0; form < forms.length; form++) {
+            List<WorkerConnection> group = groups.get(form);
+            if (group.isEmpty()) {
+                continue;
+            }
+            if (forms[form] == null) {
+                forms[form] = encodeForm(frame, form, compressed, digest);
+            }
+            List<WorkerConnection> reached = fanOut.broadcast(forms[form], group);
+            accepted.addAll(reached);
+            bytes += (long) forms[form].remaining() * reached.size();
+            long saved = (long) (plain.remaining() - forms[form].remaining()) * reached.size();
+            if (form == REFERENCE_FORM) {
+                dedupHits.add(reached.size());
+                dedupSavedBytes.add(saved);
+            } else if ((form & 1) != 0) {
+                compressionSavedBytes.add(saved);
+            }
+            for (WorkerConnection connection : reached) {
+                PayloadCache cache = digest == null ? null : payloadCaches.get(connection);
+                if (cache == null) {
+                    continue;
                 }
+                if (form == REFERENCE_FORM) {
+                    cache.get(digest);
+                } else if ((form & 2) != 0) {
+                    cache.put(digest, payload);
+                }
+            }
+        }
+        return new Delivery(accepted, bytes);
+    }
+
+    /**
+     * Encodes one form of a broadcast or published message.
+     * @param frame The message with its payload as is.
+     * @param form Index of the form, see {@link #send(Frame, ByteBuffer, List)}.
+     * @param compressed The compressed payload, for the compressed forms.
+     * @param digest Digest of the payload, for the cached forms and the reference.
+     * @return The encoded frame, in read mode.
+     */
+    private ByteBuffer encodeForm(Frame frame, int form, ByteBuffer compressed, ByteBuffer digest) {
+        Frame encoded = new Frame().set(frame.type(), frame.sequence(), frame.timestamp());
+        byte flags = frame.flags();
+        if (form == REFERENCE_FORM) {
+            encoded.payload(digest);
+            flags |= PayloadCache.REFERENCE;
+        } else {
+            encoded.payload((form & 1) != 0 ? compressed : frame.payload());
+            if ((form & 1) != 0) {
+                flags |= Compression.COMPRESSED;
+            }
+            if ((form & 2) != 0) {
+                flags |= PayloadCache.STORE;
+            }
+        }
+        return codec.encode(encoded.flags(flags));
+    }
+
+    /**
+     * Broadcasts a file to all connected worker nodes, waiting up to a minute for every worker to store it.
+     * @param file The file to send; mapped once and shared by every connection.
+     * @return A future completed once every worker stored the file, or with the stragglers after the timeout.
+     */
+    public CompletableFuture<BroadcastResult> broadcastFile(Path file) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("File larger than 2 GiB: " + file);
             }
+            ByteBuffer content = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return broadcastPayload(file.getFileName().toString(), content, ALL_ACKS, DEFAULT_TRANSFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Broadcasts a large payload to all connected worker nodes in chunks, see {@link Transfer}.
+     * The payload is never copied per worker: each connection queues read-only views of it, regardless
+     * of the slow consumer policy. Workers that already hold part of the payload under the same name
+     * only receive the rest. With a relay tree the payload still goes to every worker directly.
+     * @param name Name the workers store the payload under.
+     * @param content The payload, from its position to its limit; must not be modified until the future completes.
+     * @param requiredAcks Number of workers that must store the payload, given the number of workers it was sent to.
+     * @param timeout How long to wait for the workers.
+     * @param unit Unit of the timeout.
+     * @return A future completed once enough workers stored the payload, or with the stragglers when the timeout expires.
+     */
+    public CompletableFuture<BroadcastResult> broadcastPayload(String name, ByteBuffer content, IntUnaryOperator requiredAcks,
+                                                               long timeout, TimeUnit unit) {
+        if (codec.isText()) {
+            return CompletableFuture.failedFuture(new IllegalStateException("Large broadcasts need the binary protocol"));
+        }
+        if (stopping) {
+            return CompletableFuture.failedFuture(new IllegalStateException("The Master is shutting down"));
+        }
+        long sequence = broadcastSequence.incrementAndGet();
+        long sendNanos = System.nanoTime();
+        Transfer transfer = new Transfer(sequence, name, content);
+        List<WorkerConnection> connections = fanOut.connections();
+        Log.info("Broadcasting {} ({} bytes) to {} workers.", name, transfer.size(), connections.size());
+        transfers.put(sequence, transfer);
+        tracker.open(sequence, connections, sendNanos);
+        ByteBuffer announce = transfer.announce();
+        for (WorkerConnection connection : connections) {
+            connection.sendControl(announce.duplicate());
+        }
+        long masterBytes = (long) announce.remaining() * connections.size();
+        return tracker.arm(sequence, connections, requiredAcks.applyAsInt(connections.size()), masterBytes, timeout, unit)
+                .whenComplete((result, failure) -> transfers.remove(sequence));
+    }
+
+    /**
+     * Streams a transfer to a worker from the offset it reported.
+     * @param connection The connection of the worker.
+     * @param frame The RESUME frame, carrying the number of bytes the worker already holds.
+     */
+    private void resumeTransfer(WorkerConnection connection, Frame frame) {
+        Transfer transfer = transfers.get(frame.sequence());
+        if (transfer == null) {
+            return;
+        }
+        long offset = frame.payload().getLong();
+        if (offset > 0 && offset < transfer.size()) {
+            Log.info("Worker {} resumes transfer {} at byte {}", connection.remoteAddress(), frame.sequence(), offset);
+        }
+        tracker.sent(frame.sequence(), transfer.sendFrom(connection, offset));
+    }
+
+    /**
+     * The connections a message was queued on and the bytes that took.
+     */
+    private static final class Delivery {
+        final List<WorkerConnection> accepted;
+        final long bytes;
+
+        Delivery(List<WorkerConnection> accepted, long bytes) {
+            this.accepted = accepted;
+            this.bytes = bytes;
         }
     }
 
     /**
      * Main method to initialize and start the Master node.
-     * @param args Command-line arguments (not used).
+     * @param args Command-line arguments: port number, optional I/O mode (blocking or nio),
+     *             optional slow consumer policy (drop, disconnect or buffer), buffer limit in bytes
+     *             and relay tree fan-out (0 broadcasts to every worker directly).
      */
     public static void main(String[] args) {
         if (args.length < 1) {
-            System.out.println("Usage: java Master <port> ");
+            System.out.println("Usage: java Master <port> [blocking|nio] [drop|disconnect|buffer] [max_buffered_bytes] [tree_fanout]");
             return;
         }
 
         // Parse the command-line arguments
         int port = Integer.parseInt(args[0]);
+        IoMode ioMode = args.length > 1 ? IoMode.valueOf(args[1].toUpperCase()) : IoMode.BLOCKING;
+        SlowConsumerPolicy policy = args.length > 2 ? SlowConsumerPolicy.valueOf(args[2].toUpperCase()) : SlowConsumerPolicy.BUFFER;
+        long maxBufferedBytes = args.length > 3 ? Long.parseLong(args[3]) : DEFAULT_MAX_BUFFERED_BYTES;
+        int treeFanOut = args.length > 4 ? Integer.parseInt(args[4]) : 0;
 
-        Master masterNode = new Master(port); // Create a Master node listening on port 8000
-        masterNode.startServer(); // Start the server to accept connections
+        Master masterNode = new Master(port, ioMode, policy, maxBufferedBytes, treeFanOut); // Create a Master node listening on port 8000
+        Shutdown.register(masterNode, "Master on port " + port); // Drain when the JVM is stopped
+        masterNode.start(); // Start the server to accept connections
     }
 }
@@ -0,0 +1,266 @@
+package broadcasting;
+
+import common.Codec;
+import common.Frame;
+import common.Log;
+import common.Metrics;
+import common.TlsChannel;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A non-blocking worker connection owned by one {@link EventLoop}.
+ * Incoming bytes are decoded into frames and handed to the server listener,
+ * outgoing buffers are queued and written whenever the socket is writable.
+ * With TLS the bytes pass through a {@link TlsChannel}, which also runs the handshake on the loop thread.
+ */
+class NioConnection implements EventLoop.Handler, WorkerConnection {
+    private static final int INITIAL_READ_BUFFER = 512;
+    private static final int MAX_READ_BUFFER = 16 * 1024 * 1024;
+    // Queued buffers handed to the kernel in one gathering write
+    private static final int MAX_GATHER = 64;
+
+    private volatile int id;
+    private final SocketChannel channel;
+    // null on a plain connection
+    private final TlsChannel tls;
+    private final EventLoop loop;
+    private final NioServer server;
+    private final SocketAddress remoteAddress;
+    private final OutboundQueue outbound;
+    private final Codec codec;
+    private final Metrics.Traffic traffic;
+    private final Frame frame = new Frame();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final ByteBuffer[] batch = new ByteBuffer[MAX_GATHER];
+    private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER);
+    private SelectionKey key;
+    // Whether the server was told that the TLS handshake completed
+    private boolean announced;
+    private volatile boolean closed;
+
+    /**
+     * Constructor to initialize the connection for an accepted channel.
+     * @param id The id assigned to the connection.
+     * @param channel The accepted, non-blocking socket channel.
+     * @param tls The TLS session over the channel, null for a plain connection.
+     * @param loop The event loop that owns this connection.
+     * @param server The server to notify about messages and disconnects.
+     * @param outbound The queue holding bytes not yet written to the worker.
+     * @param codec The codec used to decode incoming frames.
+     * @param traffic Counters of the Master, the received frames are counted in.
+     * @throws IOException if the remote address cannot be read.
+     */
+    NioConnection(int id, SocketChannel channel, TlsChannel tls, EventLoop loop, NioServer server, OutboundQueue outbound,
+                  Codec codec, Metrics.Traffic traffic) throws IOException {
+        this.id = id;
+        this.channel = channel;
+        this.tls = tls;
+        this.loop = loop;
+        this.server = server;
+        this.outbound = outbound;
+        this.codec = codec;
+        this.traffic = traffic;
+        this.remoteAddress = channel.getRemoteAddress();
+    }
+
+    /**
+     * Registers the channel with the loop selector. Must be called on the loop thread.
+     * @throws IOException if the channel cannot be registered.
+     */
+    void register() throws IOException {
+        key = channel.register(loop.selector(), SelectionKey.OP_READ, this);
+    }
+
+    public int id() {
+        return id;
+    }
+
+    public void adoptId(int id) {
+        this.id = id;
+    }
+
+    public SocketAddress remoteAddress() {
+        return remoteAddress;
+    }
+
+    public long queuedBytes() {
+        return outbound.pendingBytes();
+    }
+
+    public boolean send(ByteBuffer buffer) {
+        if (closed) {
+            return false;
+        }
+        if (!outbound.offer(buffer)) {
+            if (outbound.policy() == SlowConsumerPolicy.DISCONNECT) {
+                close();
+            }
+            return false;
+        }
+        scheduleFlush();
+        return true;
+    }
+
+    public void sendControl(ByteBuffer... buffers) {
+        if (!closed) {
+            outbound.add(buffers);
+            scheduleFlush();
+        }
+    }
+
+    /**
+     * Flushes on the loop thread unless a flush is already pending.
+     * Sends made on the loop thread, for example while handling a frame, are flushed once the loop
+     * has handled every ready key, so replies to a burst of frames leave in one write.
+     */
+    private void scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            if (loop.inLoop()) {
+                loop.executeWhenIdle(this::flush);
+            } else {
+                loop.execute(this::flush);
+            }
+        }
+    }
+
+    /**
+     * Handles readiness events from the selector.
+     * @param key The selected key of this connection.
+     */
+    public void handle(SelectionKey key) {
+        try {
+            if (key.isReadable()) {
+                read();
+                // Reading may have completed the handshake or produced a handshake reply
+                if (tls != null && !closed) {
+                    announce();
+                    if (tls.hasPendingOutput() || !outbound.isEmpty()) {
+                        flush();
+                    }
+                }
+            }
+            if (key.isValid() && key.isWritable()) {
+                flush();
+            }
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    /**
+     * Reads everything currently available and dispatches each complete frame.
+     * @throws IOException if an I/O error occurs.
+     */
+    private void read() throws IOException {
+        int n;
+        while ((n = tls == null ? channel.read(readBuffer) : tls.read(readBuffer)) > 0) {
+            if (tls != null) {
+                announce();
+            }
+            readBuffer.flip();
+            int start = readBuffer.position();
+            while (codec.decode(readBuffer, frame)) {
+                traffic.received(readBuffer.position() - start);
+                server.onMessage(this, frame);
+                start = readBuffer.position();
+            }
+            readBuffer.compact();
+
+            if (!readBuffer.hasRemaining()) {
+                if (readBuffer.capacity() >= MAX_READ_BUFFER) {
+                    throw new IOException("Frame too large from " + remoteAddress);
+                }
+                ByteBuffer bigger = ByteBuffer.allocate(readBuffer.capacity() * 2);
+                readBuffer.flip();
+                bigger.put(readBuffer);
+                readBuffer = bigger;
+            }
+        }
+        if (n < 0) {
+            close();
+        }
+    }
+
+    /**
+     * Tells the server about a TLS connection the first time its handshake is seen completed.
+     */
+    private void announce() {
+        if (!announced && !tls.isHandshaking()) {
+            announced = true;
+            server.onHandshake(this);
+        }
+    }
+
+    /**
+     * Writes queued buffers until the queue is empty or the socket buffer is full.
+     * Up to {@value #MAX_GATHER} buffers go out in a single gathering write.
+     * Runs on the loop thread only.
+     */
+    private void flush() {
+        if (closed) {
+            return;
+        }
+        try {
+            if (tls != null && (!tls.handshake() || !tls.flush())) {
+                // Queued frames wait for the handshake, encrypted records for room in the socket buffer
+                key.interestOps(tls.hasPendingOutput() ? key.interestOps() | SelectionKey.OP_WRITE
+                        : key.interestOps() & ~SelectionKey.OP_WRITE);
+                flushScheduled.set(false);
+                return;
+            }
+            while (true) {
+                int count;
+                while ((count = outbound.peek(batch)) > 0) {
+                    outbound.written(tls == null ? channel.write(batch, 0, count) : tls.write(batch, 0, count));
+                    boolean full = batch[count - 1].hasRemaining() || tls != null && tls.hasPendingOutput();
+                    Arrays.fill(batch, 0, count, null);
+                    if (full) {
+                        // Socket buffer is full, continue once the selector reports it writable again
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                flushScheduled.set(false);
+                // A sender may have queued a buffer after the last poll but before the flag was cleared
+                if (outbound.isEmpty() || !flushScheduled.compareAndSet(false, true)) {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    public void abort() {
+        close();
+    }
+
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        outbound.clear();
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            if (tls != null) {
+                tls.close();
+            } else {
+                channel.close();
+            }
+        } catch (IOException e) {
+            Log.error("Could not close the connection to {}", remoteAddress, e);
+        }
+        server.onDisconnect(this);
+    }
+}
@@ -0,0 +1,184 @@
+package broadcasting;
+
+import common.Codec;
+import common.Frame;
+import common.Log;
+import common.Metrics;
+import common.SocketTuning;
+import common.Tls;
+import common.TlsChannel;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Selector based server that serves all workers from a fixed number of event loops.
+ * The first loop also accepts new connections and hands them to the loops in turn,
+ * so the number of threads does not grow with the number of workers.
+ */
+class NioServer {
+    private final int port;
+    private final Listener listener;
+    private final SlowConsumerPolicy policy;
+    private final long maxBufferedBytes;
+    private final Codec codec;
+    private final Metrics.Traffic traffic;
+    private final EventLoop[] loops;
+    private final Set<NioConnection> connections = ConcurrentHashMap.newKeySet();
+    private ServerSocketChannel serverChannel;
+    private int nextLoop;
+    private int nextConnectionId;
+
+    /**
+     * Constructor to initialize the NioServer.
+     * @param port Port number on which the server listens for connections.
+     * @param loopCount Number of event loop threads.
+     * @param listener Listener notified about connections and messages.
+     * @param policy What to do with messages for a worker that is falling behind.
+     * @param maxBufferedBytes Maximum unsent bytes per worker under the BUFFER policy.
+     * @param codec The codec used to decode incoming frames.
+     * @param traffic Counters of the Master.
+     * @throws IOException if a selector cannot be opened.
+     */
+    NioServer(int port, int loopCount, Listener listener, SlowConsumerPolicy policy, long maxBufferedBytes, Codec codec,
+              Metrics.Traffic traffic) throws IOException {
+        this.port = port;
+        this.listener = listener;
+        this.policy = policy;
+        this.maxBufferedBytes = maxBufferedBytes;
+        this.codec = codec;
+        this.traffic = traffic;
+        this.loops = new EventLoop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            loops[i] = new EventLoop("nio-loop-" + i);
+        }
+    }
+
+    /**
+     * Binds the server socket and starts the event loops.
+     * @throws IOException if the port cannot be bound.
+     */
+    void start() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.configureBlocking(false);
+        SocketTuning.apply(serverChannel);
+        // A large backlog lets thousands of workers connect at once without being refused
+        serverChannel.bind(new InetSocketAddress(port), 4096);
+
+        EventLoop acceptLoop = loops[0];
+        acceptLoop.execute(() -> {
+            try {
+                serverChannel.register(acceptLoop.selector(), SelectionKey.OP_ACCEPT, (EventLoop.Handler) key -> accept());
+            } catch (IOException e) {
+                Log.error("Could not register the server channel", e);
+            }
+        });
+        for (EventLoop loop : loops) {
+            loop.start();
+        }
+    }
+
+    /**
+     * Stops accepting connections; the open ones are served as before.
+     */
+    void stopAccepting() {
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            Log.error("Could not close the server channel", e);
+        }
+    }
+
+    /**
+     * Stops accepting connections and shuts every event loop down, closing the channels they own.
+     */
+    void stop() {
+        stopAccepting();
+        for (EventLoop loop : loops) {
+            loop.stop();
+        }
+    }
+
+    /**
+     * Returns a read-only view of the currently open connections.
+     * @return The open connections.
+     */
+    Set<NioConnection> connections() {
+        return Collections.unmodifiableSet(connections);
+    }
+
+    /**
+     * Accepts every pending connection and assigns each to an event loop in turn.
+     * @throws IOException if accepting fails.
+     */
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            SocketTuning.apply(channel);
+            TlsChannel tls = Tls.enabled() ? new TlsChannel(channel, Tls.newEngine(false, null, 0)) : null;
+
+            EventLoop loop = loops[nextLoop];
+            nextLoop = (nextLoop + 1) % loops.length;
+
+            NioConnection connection = new NioConnection(nextConnectionId++, channel, tls, loop, this,
+                    new OutboundQueue(policy, maxBufferedBytes, traffic), codec, traffic);
+            loop.execute(() -> {
+                try {
+                    connection.register();
+                    connections.add(connection);
+                    // A TLS connection announces itself once its handshake has completed
+                    if (tls == null) {
+                        listener.onConnect(connection);
+                    }
+                } catch (IOException e) {
+                    connection.close();
+                }
+            });
+        }
+    }
+
+    /**
+     * Called by a TLS connection when its handshake has completed, before any of its frames.
+     * @param connection The connection.
+     */
+    void onHandshake(NioConnection connection) {
+        listener.onConnect(connection);
+    }
+
+    /**
+     * Called by a connection for every complete frame it receives.
+     * @param connection The connection the frame was received on.
+     * @param frame The received frame, only valid for the duration of the call.
+     */
+    void onMessage(NioConnection connection, Frame frame) {
+        listener.onMessage(connection, frame);
+    }
+
+    /**
+     * Called by a connection once it has been closed.
+     * @param connection The closed connection.
+     */
+    void onDisconnect(NioConnection connection) {
+        if (connections.remove(connection)) {
+            listener.onDisconnect(connection);
+        }
+    }
+
+    /**
+     * Callbacks invoked on the event loop threads.
+     */
+    interface Listener {
+        void onConnect(NioConnection connection);
+
+        void onMessage(NioConnection connection, Frame frame);
+
+        void onDisconnect(NioConnection connection);
+    }
+}
@@ -0,0 +1,129 @@
+package broadcasting;
+
+import common.Metrics;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded queue of buffers waiting to be written to one worker or relay child.
+ * Senders offer from any thread, a single writer peeks, writes and removes.
+ * Senders are serialized so that the buffers of one frame are never interleaved with another sender's.
+ */
+class OutboundQueue {
+    private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private final SlowConsumerPolicy policy;
+    private final long maxBufferedBytes;
+    private final Metrics.Traffic traffic;
+
+    /**
+     * Constructor to initialize the OutboundQueue.
+     * @param policy What to do with messages for a worker that is falling behind.
+     * @param maxBufferedBytes Maximum unsent bytes kept under the BUFFER policy.
+     * @param traffic Counters of the sending node, the queued messages are counted as sent.
+     */
+    OutboundQueue(SlowConsumerPolicy policy, long maxBufferedBytes, Metrics.Traffic traffic) {
+        this.policy = policy;
+        this.maxBufferedBytes = maxBufferedBytes;
+        this.traffic = traffic;
+    }
+
+    /**
+     * Returns the policy applied when the queue cannot accept a message.
+     * @return The slow consumer policy.
+     */
+    SlowConsumerPolicy policy() {
+        return policy;
+    }
+
+    /**
+     * Queues a buffer if the policy allows it.
+     * The writer drains concurrently, so the bound is checked against a slightly stale byte count.
+     * @param buffer The bytes to queue.
+     * @return True if the buffer was queued, false if it was rejected.
+     */
+    synchronized boolean offer(ByteBuffer buffer) {
+        int size = buffer.remaining();
+        long pending = pendingBytes.get();
+        if (pending > 0) {
+            if (policy != SlowConsumerPolicy.BUFFER || pending + size > maxBufferedBytes) {
+                return false;
+            }
+        }
+        pendingBytes.addAndGet(size);
+        buffers.add(buffer);
+        traffic.sent(1, size);
+        return true;
+    }
+
+    /**
+     * Queues buffers back to back without consulting the policy, for control messages that must not
+     * be dropped and for frames sent in several parts.
+     * @param parts The bytes to queue, in order.
+     */
+    synchronized void add(ByteBuffer... parts) {
+        long size = 0;
+        for (ByteBuffer buffer : parts) {
+            size += buffer.remaining();
+            buffers.add(buffer);
+        }
+        pendingBytes.addAndGet(size);
+        traffic.sent(1, size);
+    }
+
+    /**
+     * Copies the buffers at the head of the queue into an array for one gathering write, without removing them.
+     * @param batch The array to fill.
+     * @return The number of buffers copied, 0 if the queue is empty.
+     */
+    int peek(ByteBuffer[] batch) {
+        int count = 0;
+        for (ByteBuffer buffer : buffers) {
+            if (count == batch.length) {
+                break;
+            }
+            batch[count++] = buffer;
+        }
+        return count;
+    }
+
+    /**
+     * Removes the buffers at the head of the queue that have been written completely
+     * and records the bytes that were written to the socket.
+     * @param bytes Number of bytes written.
+     */
+    void written(long bytes) {
+        pendingBytes.addAndGet(-bytes);
+        ByteBuffer head;
+        while ((head = buffers.peek()) != null && !head.hasRemaining()) {
+            buffers.poll();
+        }
+    }
+
+    /**
+     * Checks whether there is nothing left to write.
+     * @return True if the queue is empty.
+     */
+    boolean isEmpty() {
+        return buffers.isEmpty();
+    }
+
+    /**
+     * Returns the number of bytes still waiting to be written.
+     * @return Unsent bytes.
+     */
+    long pendingBytes() {
+        return pendingBytes.get();
+    }
+
+    /**
+     * Discards everything still queued.
+     */
+    void clear() {
+        buffers.clear();
+        pendingBytes.set(0);
+    }
+}
@@ -0,0 +1,151 @@
+package broadcasting;
+
+import common.Frame;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The large payloads recently sent on one connection, so that a repeated one goes out as a short reference.
+ *
+ * The Master and the worker each keep one per connection and apply the same operations in the same
+ * order: the Master when it queues a frame, the worker when it reads it. A full frame flagged
+ * {@link #STORE} adds its payload, a frame flagged {@link #REFERENCE} carries only the payload's digest
+ * and marks it as recently used, and both sides evict the least recently used payloads beyond the same
+ * fixed limits. The Master can therefore tell which payloads the worker holds without asking; queued
+ * frames are never dropped, and both caches start empty with every connection.
+ * The Master keeps shared views of its broadcasts, so its caches cost no copies.
+ */
+class PayloadCache {
+    // true to send repeated broadcasts and published messages as references, false (default) to always send them in full
+    static final String ENABLED_PROPERTY = "pingpong.dedup";
+    // Payload bytes from which a payload is cached for deduplication, 1024 by default
+    static final String THRESHOLD_PROPERTY = "pingpong.dedup.threshold";
+
+    // Frame flag: keep the payload under its digest
+    static final byte STORE = 0x20;
+    // Frame flag: the payload is the digest of a stored payload; on a SESSION frame, the worker keeps a cache
+    static final byte REFERENCE = 0x10;
+
+    // Limits shared by both ends, so they evict the same payloads
+    static final int MAX_ENTRIES = 64;
+    static final long MAX_BYTES = 32L * 1024 * 1024;
+    static final int DIGEST_LENGTH = 16;
+
+    private static final boolean ENABLED = Boolean.getBoolean(ENABLED_PROPERTY);
+    private static final int THRESHOLD = Math.max(DIGEST_LENGTH + 1, Integer.getInteger(THRESHOLD_PROPERTY, 1024));
+
+    // Digest to payload, least recently used first
+    private final LinkedHashMap<ByteBuffer, ByteBuffer> payloads = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+
+    /**
+     * Returns whether this node deduplicates payloads.
+     * @return true if {@value #ENABLED_PROPERTY} is set.
+     */
+    static boolean enabled() {
+        return ENABLED;
+    }
+
+    /**
+     * Tells whether a payload is large enough to be cached.
+     * @param length The payload length.
+     * @return true if the payload goes out flagged {@link #STORE} or as a reference.
+     */
+    static boolean eligible(int length) {
+        return ENABLED && length >= THRESHOLD && length <= MAX_BYTES;
+    }
+
+    /**
+     * Computes the digest a payload is stored and referenced under: the leading bytes of its SHA-256.
+     * @param payload The payload from its position to its limit; not consumed.
+     * @return The digest.
+     */
+    static ByteBuffer digest(ByteBuffer payload) {
+        try {
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            sha.update(payload.duplicate());
+            byte[] digest = new byte[DIGEST_LENGTH];
+            System.arraycopy(sha.digest(), 0, digest, 0, DIGEST_LENGTH);
+            return ByteBuffer.wrap(digest).asReadOnlyBuffer();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * Tells whether a payload is cached without marking it as used, for deciding how to send it
+     * before knowing whether the connection accepts the frame.
+     * @param digest The payload's digest.
+     * @return true if the payload is cached.
+     */
+    synchronized boolean contains(ByteBuffer digest) {
+        return payloads.containsKey(digest);
+    }
+
+    /**
+     * Looks up a payload and marks it as recently used.
+     * @param digest The payload's digest.
+     * @return The payload, or null if it is not cached.
+     */
+    synchronized ByteBuffer get(ByteBuffer digest) {
+        ByteBuffer payload = payloads.get(digest);
+        return payload == null ? null : payload.duplicate();
+    }
+
+    /**
+     * Stores a payload as the most recently used one and evicts the least recently used beyond the limits.
+     * @param digest The payload's digest.
+     * @param payload The payload, from its position to its limit; must not be modified afterwards.
+     */
+    synchronized void put(ByteBuffer digest, ByteBuffer payload) {
+        ByteBuffer previous = payloads.put(digest, payload);
+        if (previous != null) {
+            bytes -= previous.remaining();
+        }
+        bytes += payload.remaining();
+        Iterator<Map.Entry<ByteBuffer, ByteBuffer>> eldest = payloads.entrySet().iterator();
+        while (payloads.size() > MAX_ENTRIES || bytes > MAX_BYTES) {
+            bytes -= eldest.next().getValue().remaining();
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Restores the payload of a frame flagged {@link #REFERENCE}. Other frames are left untouched.
+     * @param frame The received frame.
+     * @throws IOException if the referenced payload is not cached, which means the two ends disagree.
+     */
+    void resolve(Frame frame) throws IOException {
+        if ((frame.flags() & REFERENCE) == 0) {
+            return;
+        }
+        ByteBuffer payload = get(frame.payload());
+        if (payload == null) {
+            throw new IOException("Reference to a payload that is not cached");
+        }
+        byte flags = frame.flags();
+        frame.payload(payload).flags((byte) (flags & ~REFERENCE));
+    }
+
+    /**
+     * Stores a copy of the payload of a frame flagged {@link #STORE} and clears the flag.
+     * Other frames are left untouched.
+     * @param frame The received frame, with its payload already inflated.
+     */
+    void store(Frame frame) {
+        if ((frame.flags() & STORE) == 0) {
+            return;
+        }
+        ByteBuffer payload = frame.payload();
+        ByteBuffer copy = ByteBuffer.allocate(payload.remaining()).put(payload.duplicate()).flip();
+        put(digest(copy), copy);
+        byte flags = frame.flags();
+        frame.flags((byte) (flags & ~STORE));
+    }
+}
@@ -0,0 +1,131 @@
+package broadcasting;
+
+import common.Log;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A worker that receives broadcasts through this worker's relay server, written to by a pooled task.
+ * Relaying only queues bytes, so a child that stops reading fills its own queue under the slow consumer
+ * policy instead of stalling its siblings, the relay's own acks and the reads from the master.
+ */
+class RelayChild {
+    // Queued buffers written before one flush of the stream
+    private static final int MAX_GATHER = 64;
+
+    private final Socket socket;
+    private final OutputStream out;
+    private final SocketAddress remoteAddress;
+    private final OutboundQueue outbound;
+    private final Executor writerExecutor;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final ByteBuffer[] batch = new ByteBuffer[MAX_GATHER];
+    private volatile boolean closed;
+
+    /**
+     * Constructor to initialize the RelayChild for an accepted relay connection.
+     * @param socket The accepted socket, with its TLS handshake done on first write if TLS is enabled.
+     * @param outbound The queue holding bytes not yet written to the child.
+     * @param writerExecutor Executor running the writer tasks.
+     * @throws IOException if the output stream cannot be opened.
+     */
+    RelayChild(Socket socket, OutboundQueue outbound, Executor writerExecutor) throws IOException {
+        this.socket = socket;
+        this.out = socket.getOutputStream();
+        this.remoteAddress = socket.getRemoteSocketAddress();
+        this.outbound = outbound;
+        this.writerExecutor = writerExecutor;
+    }
+
+    /**
+     * Queues an encoded broadcast for the child. The buffer must be array-backed and must not be
+     * modified afterwards; callers relaying one frame to several children pass a duplicate to each.
+     * @param buffer The bytes to send.
+     * @return True if the bytes were queued, false if the slow consumer policy rejected them.
+     */
+    boolean send(ByteBuffer buffer) {
+        if (closed) {
+            return false;
+        }
+        if (!outbound.offer(buffer)) {
+            if (outbound.policy() == SlowConsumerPolicy.DISCONNECT) {
+                Log.warn("Dropping relay child {} that fell behind", remoteAddress);
+                close();
+            }
+            return false;
+        }
+        scheduleFlush();
+        return true;
+    }
+
+    /**
+     * Checks whether everything queued has been written.
+     * @return True if nothing is left to write.
+     */
+    boolean isIdle() {
+        return outbound.isEmpty();
+    }
+
+    /**
+     * Starts a writer task unless one is already draining the queue.
+     */
+    private void scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            writerExecutor.execute(this::flush);
+        }
+    }
+
+    /**
+     * Writes queued buffers until the queue is empty, flushing the stream after every {@value #MAX_GATHER} buffers.
+     */
+    private void flush() {
+        try {
+            while (true) {
+                int count;
+                while ((count = outbound.peek(batch)) > 0) {
+                    long written = 0;
+                    for (int i = 0; i < count; i++) {
+                        ByteBuffer buffer = batch[i];
+                        out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                        written += buffer.remaining();
+                        buffer.position(buffer.limit());
+                    }
+                    out.flush();
+                    outbound.written(written);
+                    Arrays.fill(batch, 0, count, null);
+                }
+                flushScheduled.set(false);
+                // A sender may have queued a buffer after the last peek but before the flag was cleared
+                if (outbound.isEmpty() || !flushScheduled.compareAndSet(false, true)) {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            // The child is gone, its watcher removes it
+            close();
+        }
+    }
+
+    /**
+     * Closes the connection to the child. Safe to call more than once.
+     */
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        outbound.clear();
+        try {
+            socket.close();
+        } catch (IOException e) {
+            Log.error("Could not close the relay connection to {}", remoteAddress, e);
+        }
+    }
+}
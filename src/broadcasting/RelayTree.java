@@ -0,0 +1,113 @@
+package broadcasting;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A k-ary dissemination tree over the workers that can relay broadcasts.
+ * The Master sends to the first k workers only, every other worker receives from its parent,
+ * so a broadcast reaches N workers in about log_k(N) hops while the Master writes k copies.
+ *
+ * Workers are kept in heap order: the children of position p are k(p+1) .. k(p+1)+k-1 and the
+ * roots fed by the Master are 0 .. k-1. A leaving worker is replaced by the last one, which is
+ * always a leaf, so only the moved worker and the children of the vacated position get a new parent.
+ */
+class RelayTree {
+    private final int fanOut;
+    private final List<WorkerConnection> nodes = new ArrayList<>();
+    private final Map<WorkerConnection, InetSocketAddress> relays = new HashMap<>();
+
+    /**
+     * Constructor to initialize the RelayTree.
+     * @param fanOut Number of children per node, including the Master.
+     */
+    RelayTree(int fanOut) {
+        this.fanOut = fanOut;
+    }
+
+    /**
+     * Appends a worker to the tree.
+     * @param connection The worker's connection to the Master.
+     * @param relay Address on which the worker accepts its children.
+     * @return The parent assignment to send to the new worker.
+     */
+    synchronized List<Assignment> join(WorkerConnection connection, InetSocketAddress relay) {
+        if (relays.containsKey(connection)) {
+            return Collections.emptyList();
+        }
+        relays.put(connection, relay);
+        nodes.add(connection);
+        return Collections.singletonList(new Assignment(connection, parentRelay(nodes.size() - 1)));
+    }
+
+    /**
+     * Removes a worker and moves the last worker into its position.
+     * @param connection The connection of the worker that left.
+     * @return The parent assignments to send to the workers whose parent changed.
+     */
+    synchronized List<Assignment> leave(WorkerConnection connection) {
+        int position = nodes.indexOf(connection);
+        if (position < 0) {
+            return Collections.emptyList();
+        }
+        relays.remove(connection);
+        WorkerConnection last = nodes.remove(nodes.size() - 1);
+        if (last == connection) {
+            return Collections.emptyList();
+        }
+        nodes.set(position, last);
+
+        List<Assignment> assignments = new ArrayList<>();
+        assignments.add(new Assignment(last, parentRelay(position)));
+        InetSocketAddress lastRelay = relays.get(last);
+        int firstChild = fanOut * (position + 1);
+        for (int child = firstChild; child < firstChild + fanOut && child < nodes.size(); child++) {
+            assignments.add(new Assignment(nodes.get(child), lastRelay));
+        }
+        return assignments;
+    }
+
+    /**
+     * Returns the workers the Master sends to directly.
+     * @return The roots of the tree.
+     */
+    synchronized List<WorkerConnection> roots() {
+        return new ArrayList<>(nodes.subList(0, Math.min(fanOut, nodes.size())));
+    }
+
+    /**
+     * Returns every worker in the tree.
+     * @return The members of the tree.
+     */
+    synchronized List<WorkerConnection> members() {
+        return new ArrayList<>(nodes);
+    }
+
+    /**
+     * Returns the relay address of the parent of a position.
+     * @param position Position in heap order.
+     * @return The parent's relay address, or null if the Master feeds the position.
+     */
+    private InetSocketAddress parentRelay(int position) {
+        int parent = position / fanOut - 1;
+        return parent < 0 ? null : relays.get(nodes.get(parent));
+    }
+
+    /**
+     * A worker and the relay it should receive broadcasts from.
+     */
+    static class Assignment {
+        final WorkerConnection worker;
+        // Null when the worker receives broadcasts from the Master
+        final InetSocketAddress parent;
+
+        Assignment(WorkerConnection worker, InetSocketAddress parent) {
+            this.worker = worker;
+            this.parent = parent;
+        }
+    }
+}
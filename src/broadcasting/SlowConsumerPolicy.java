@@ -0,0 +1,21 @@
+package broadcasting;
+
+/**
+ * What a connection does with a new message while the worker has not yet read the previous ones.
+ */
+public enum SlowConsumerPolicy {
+    /**
+     * Skip the new message for this worker while an earlier one is still unsent.
+     */
+    DROP,
+
+    /**
+     * Close the connection to a worker that still has an unsent message when the next one arrives.
+     */
+    DISCONNECT,
+
+    /**
+     * Queue messages up to the configured number of bytes and drop anything beyond that.
+     */
+    BUFFER
+}
@@ -0,0 +1,150 @@
+package broadcasting;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The topic patterns workers subscribed to, indexed so a publish only visits the subscribers it matches.
+ *
+ * Topics are dot-separated levels such as "orders.eu.created". In a pattern "*" matches exactly one
+ * level and "#", only allowed as the last level, matches any number of remaining levels including none.
+ * Patterns are kept in a trie with one node per level, so matching a topic walks at most one literal,
+ * one "*" and one "#" branch per level and costs time in the topic's depth and the number of matching
+ * subscribers, not in the number of workers or patterns. Nodes are safe for concurrent subscribes and
+ * lookups; they are never pruned, so their number is bounded by the distinct patterns ever subscribed.
+ */
+class SubscriptionIndex {
+    static final String ONE_LEVEL = "*";
+    static final String ANY_LEVELS = "#";
+
+    private final Node root = new Node();
+    // The nodes each connection is subscribed at, to drop them when it disconnects
+    private final Map<WorkerConnection, Set<Node>> byConnection = new ConcurrentHashMap<>();
+
+    /**
+     * Subscribes a worker to a topic pattern; subscribing twice to the same pattern has no effect.
+     * @param connection The worker's connection.
+     * @param pattern The topic pattern.
+     * @throws IllegalArgumentException if the pattern has an empty level or "#" before its last level.
+     */
+    void subscribe(WorkerConnection connection, String pattern) {
+        String[] levels = split(pattern);
+        for (int i = 0; i < levels.length - 1; i++) {
+            if (levels[i].equals(ANY_LEVELS)) {
+                throw new IllegalArgumentException("\"" + ANY_LEVELS + "\" must be the last level of " + pattern);
+            }
+        }
+        Node node = root;
+        for (String level : levels) {
+            node = node.children.computeIfAbsent(level, key -> new Node());
+        }
+        node.subscribers.add(connection);
+        byConnection.computeIfAbsent(connection, key -> ConcurrentHashMap.newKeySet()).add(node);
+    }
+
+    /**
+     * Drops every subscription of a worker.
+     * @param connection The worker's connection.
+     */
+    void unsubscribeAll(WorkerConnection connection) {
+        Set<Node> nodes = byConnection.remove(connection);
+        if (nodes != null) {
+            for (Node node : nodes) {
+                node.subscribers.remove(connection);
+            }
+        }
+    }
+
+    /**
+     * Returns the workers with at least one pattern matching a topic, each once.
+     * @param topic The published topic, without wildcards.
+     * @return The matching workers.
+     * @throws IllegalArgumentException if the topic has an empty level or a wildcard level.
+     */
+    List<WorkerConnection> match(String topic) {
+        String[] levels = split(topic);
+        for (String level : levels) {
+            if (level.equals(ONE_LEVEL) || level.equals(ANY_LEVELS)) {
+                throw new IllegalArgumentException("Published topics cannot contain wildcards: " + topic);
+            }
+        }
+        // A worker whose patterns overlap is reached through several nodes but receives one copy
+        Set<WorkerConnection> matched = new LinkedHashSet<>();
+        collect(root, levels, 0, matched);
+        return new ArrayList<>(matched);
+    }
+
+    /**
+     * Returns the number of worker subscriptions, counting a pattern once per subscribed worker.
+     * @return The subscription count.
+     */
+    int size() {
+        int count = 0;
+        for (Set<Node> nodes : byConnection.values()) {
+            count += nodes.size();
+        }
+        return count;
+    }
+
+    /**
+     * Adds the subscribers of every pattern below a node that matches the rest of a topic.
+     * @param node The node reached by the levels before {@code depth}.
+     * @param levels The topic's levels.
+     * @param depth Index of the next level to match.
+     * @param matched Where matching subscribers are added.
+     */
+    private static void collect(Node node, String[] levels, int depth, Set<WorkerConnection> matched) {
+        Node rest = node.children.get(ANY_LEVELS);
+        if (rest != null) {
+            matched.addAll(rest.subscribers);
+        }
+        if (depth == levels.length) {
+            matched.addAll(node.subscribers);
+            return;
+        }
+        Node literal = node.children.get(levels[depth]);
+        if (literal != null) {
+            collect(literal, levels, depth + 1, matched);
+        }
+        Node single = node.children.get(ONE_LEVEL);
+        if (single != null) {
+            collect(single, levels, depth + 1, matched);
+        }
+    }
+
+    /**
+     * Splits a topic or pattern into its levels.
+     * @param topic The topic or pattern.
+     * @return Its levels.
+     * @throws IllegalArgumentException if a level is empty.
+     */
+    private static String[] split(String topic) {
+        List<String> levels = new ArrayList<>();
+        int start = 0;
+        while (true) {
+            int dot = topic.indexOf('.', start);
+            String level = dot < 0 ? topic.substring(start) : topic.substring(start, dot);
+            if (level.isEmpty()) {
+                throw new IllegalArgumentException("Empty level in topic \"" + topic + "\"");
+            }
+            levels.add(level);
+            if (dot < 0) {
+                return levels.toArray(new String[0]);
+            }
+            start = dot + 1;
+        }
+    }
+
+    /**
+     * One level of the trie: the workers subscribed to the pattern ending here and the next levels.
+     */
+    private static final class Node {
+        private final Map<String, Node> children = new ConcurrentHashMap<>();
+        private final Set<WorkerConnection> subscribers = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    }
+}
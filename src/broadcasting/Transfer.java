@@ -0,0 +1,108 @@
+package broadcasting;
+
+import common.BinaryCodec;
+import common.Frame;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A large payload broadcast in chunks from one shared buffer.
+ *
+ * The content is mapped or wrapped once and every worker is sent read-only views of it, so a
+ * transfer holds the content once no matter how many workers receive it, and a mapped file is
+ * written to the sockets straight from the page cache. Chunks start at multiples of the chunk size,
+ * which lets all workers share one encoded header per chunk.
+ *
+ * Wire protocol: the Master announces the transfer with a TRANSFER frame (size, then name).
+ * Each worker answers with a RESUME frame carrying the number of bytes it already holds, and the
+ * Master streams CHUNK frames (offset, then data) from there. The worker acks once it has everything.
+ */
+class Transfer {
+    // Bytes of content per CHUNK frame
+    static final String CHUNK_PROPERTY = "pingpong.transfer.chunk";
+    private static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+
+    private final long id;
+    private final String name;
+    private final ByteBuffer content;
+    private final int chunkSize;
+    private final ByteBuffer[] headers;
+
+    /**
+     * Constructor to initialize the Transfer and encode its chunk headers.
+     * @param id Sequence id of the broadcast.
+     * @param name Name the workers store the content under.
+     * @param content The content, from its position to its limit; not modified.
+     */
+    Transfer(long id, String name, ByteBuffer content) {
+        this.id = id;
+        this.name = name;
+        this.content = content.slice().asReadOnlyBuffer();
+        this.chunkSize = Integer.getInteger(CHUNK_PROPERTY, DEFAULT_CHUNK_SIZE);
+        this.headers = new ByteBuffer[(this.content.capacity() + chunkSize - 1) / chunkSize];
+        for (int i = 0; i < headers.length; i++) {
+            long offset = (long) i * chunkSize;
+            headers[i] = header(offset, (int) Math.min(chunkSize, size() - offset));
+        }
+    }
+
+    /**
+     * Returns the sequence id of the broadcast.
+     * @return The transfer id.
+     */
+    long id() {
+        return id;
+    }
+
+    /**
+     * Returns the number of content bytes.
+     * @return The size of the content.
+     */
+    long size() {
+        return content.capacity();
+    }
+
+    /**
+     * Encodes the TRANSFER frame announcing the content.
+     * @return A buffer in read mode to share between connections.
+     */
+    ByteBuffer announce() {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(Long.BYTES + nameBytes.length).putLong(size()).put(nameBytes).flip();
+        return BinaryCodec.INSTANCE.encode(new Frame().set(Frame.TRANSFER, id, System.nanoTime()).payload(payload)).asReadOnlyBuffer();
+    }
+
+    /**
+     * Queues the content from the given offset on a connection, one header and one content view per chunk.
+     * @param connection The connection of the worker.
+     * @param offset Number of bytes the worker already holds.
+     * @return The number of bytes queued.
+     */
+    long sendFrom(WorkerConnection connection, long offset) {
+        long queued = 0;
+        long position = Math.max(0, offset);
+        while (position < size()) {
+            int index = (int) (position / chunkSize);
+            int end = (int) Math.min((long) (index + 1) * chunkSize, size());
+            int length = end - (int) position;
+            // Only a worker resuming in the middle of a chunk needs a header of its own
+            ByteBuffer header = position % chunkSize == 0 ? headers[index].duplicate() : header(position, length);
+            queued += header.remaining() + length;
+            connection.sendControl(header, content.slice((int) position, length));
+            position = end;
+        }
+        return queued;
+    }
+
+    /**
+     * Encodes the header of a CHUNK frame, followed on the wire by the chunk's content.
+     * @param offset Offset of the chunk in the content.
+     * @param length Number of content bytes in the chunk.
+     * @return A buffer in read mode.
+     */
+    private ByteBuffer header(long offset, int length) {
+        Frame frame = new Frame().set(Frame.CHUNK, id, 0).payload(ByteBuffer.allocate(Long.BYTES).putLong(offset).flip());
+        return BinaryCodec.INSTANCE.encodeHeader(frame, length).asReadOnlyBuffer();
+    }
+}
@@ -0,0 +1,112 @@
+package broadcasting;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Receives a large broadcast into a file.
+ * Chunks are written at their offset into a ".part" file that is renamed once complete. Chunks arrive
+ * in order, so the part file always holds a prefix of the content and its length is the offset to resume
+ * from when the same name and size are broadcast again, for example after the worker restarted.
+ */
+class TransferSink implements Closeable {
+    private final Path target;
+    private final Path part;
+    private final long size;
+    private FileChannel channel;
+    private long received;
+
+    /**
+     * Constructor to open the part file, keeping whatever an earlier attempt received.
+     * @param directory Directory the content is stored in.
+     * @param name Name announced by the Master; only its last path element is used.
+     * @param size Size of the content in bytes.
+     * @throws IOException if the part file cannot be opened.
+     */
+    TransferSink(Path directory, String name, long size) throws IOException {
+        Files.createDirectories(directory);
+        this.target = directory.resolve(Path.of(name).getFileName().toString());
+        this.part = directory.resolve(target.getFileName() + ".part");
+        this.size = size;
+        if (Files.isRegularFile(target) && Files.size(target) == size) {
+            // Already complete, nothing to receive
+            received = size;
+            return;
+        }
+        channel = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        received = channel.size();
+        if (received > size) {
+            channel.truncate(0);
+            received = 0;
+        }
+        if (size == 0) {
+            close();
+            Files.move(part, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    /**
+     * Returns the number of bytes held so far, the offset the Master should continue from.
+     * @return The received byte count.
+     */
+    long received() {
+        return received;
+    }
+
+    /**
+     * Tells whether the whole content has been stored under its final name.
+     * @return True once complete.
+     */
+    boolean isComplete() {
+        return received == size;
+    }
+
+    /**
+     * Returns where the content is stored once complete.
+     * @return The target file.
+     */
+    Path target() {
+        return target;
+    }
+
+    /**
+     * Writes one chunk at its offset and moves the file into place after the last one.
+     * @param offset Offset of the chunk in the content.
+     * @param data The chunk's bytes; consumed.
+     * @throws IOException if the chunk cannot be written or does not fit the content.
+     */
+    void write(long offset, ByteBuffer data) throws IOException {
+        if (channel == null) {
+            return;
+        }
+        if (offset > received || offset + data.remaining() > size) {
+            throw new IOException("Chunk at " + offset + " does not continue " + received + " of " + size + " bytes");
+        }
+        long position = offset;
+        while (data.hasRemaining()) {
+            position += channel.write(data, position);
+        }
+        received = Math.max(received, position);
+        if (received == size) {
+            close();
+            Files.move(part, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    /**
+     * Closes the part file; the bytes received so far are kept for a later attempt.
+     * @throws IOException if the file cannot be closed.
+     */
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+}
@@ -1,11 +1,85 @@
 package broadcasting;
 
+import common.Backoff;
+import common.Codec;
+import common.Compression;
+import common.DrainReport;
+import common.Frame;
+import common.FrameReader;
+import common.FrameWriter;
+import common.Lifecycle;
+import common.Log;
+import common.Metrics;
+import common.Sessions;
+import common.Shutdown;
+import common.SocketTuning;
+import common.ThreadMode;
+
 import java.io.*;
+import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class Worker implements Lifecycle {
+    // Directory large broadcasts are stored in
+    public static final String TRANSFER_DIR_PROPERTY = "pingpong.transfer.dir";
+    // Offset of the first logged broadcast to replay on the first connection, -1 for live broadcasts only
+    public static final String REPLAY_FROM_PROPERTY = "pingpong.replay.from";
+    // What to do with broadcasts for a relay child that is falling behind: drop, disconnect or buffer (default)
+    public static final String RELAY_POLICY_PROPERTY = "pingpong.relay.policy";
+    // Unsent bytes kept per relay child under the buffer policy, 1 MiB by default
+    public static final String RELAY_BUFFER_PROPERTY = "pingpong.relay.buffer";
+    // The master's heartbeats wait behind queued chunks, so a receiving worker reports its progress itself
+    private static final long PROGRESS_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(25);
 
-public class Worker {
     private String masterAddress;
     private int masterPort;
+    private Codec codec;
+    private Metrics metrics;
+    private Metrics.Traffic traffic;
+    private LongAdder reconnects;
+    private String workerId;
+    // Replaced on every connection to the master, read by the relay threads
+    private volatile FrameWriter masterOut;
+    private final Path transferDir;
+    // Topic patterns subscribed to on every connection to the master
+    private final List<String> topics;
+    // Large broadcasts being received, only changed by the master connection's reader
+    private final Map<Long, TransferSink> transfers = new ConcurrentHashMap<>();
+    private long lastProgressNanos;
+    // Relay state, only used with the binary protocol
+    private ServerSocket relayServer;
+    private final List<RelayChild> children = new CopyOnWriteArrayList<>();
+    private final SlowConsumerPolicy relayPolicy =
+            SlowConsumerPolicy.valueOf(System.getProperty(RELAY_POLICY_PROPERTY, "buffer").toUpperCase());
+    private final long relayBufferBytes = Long.getLong(RELAY_BUFFER_PROPERTY, 1024 * 1024);
+    private LongAdder relayDropped;
+    private volatile Socket upstream;
+    private volatile String upstreamAddress = "";
+    private final AtomicLong lastDelivered = new AtomicLong();
+    // First broadcast offset not delivered yet, asked for again after a reconnect; negative before the first one
+    private final AtomicLong resumeOffset = new AtomicLong(Long.getLong(REPLAY_FROM_PROPERTY, -1));
+    private LongAdder replayed;
+    // Old and new parent may both deliver while the tree is rebuilt
+    private final ReentrantLock relayLock = new ReentrantLock();
+    private final ExecutorService relayExecutor;
+    private volatile Socket socket;
+    private volatile boolean stopping;
+    private DrainReport drainReport;
 
     /**
      * Constructor to initialize the Worker class with the specified master address and port.
@@ -13,48 +87,547 @@ public class Worker {
      * @param masterPort Port number of the master node.
      */
     public Worker(String masterAddress, int masterPort) {
+        this(masterAddress, masterPort, Paths.get(System.getProperty(TRANSFER_DIR_PROPERTY, "transfers")));
+    }
+
+    /**
+     * Constructor to initialize the Worker class with the directory large broadcasts are stored in.
+     * Workers sharing a directory would resume from each other's partial files, so each needs its own.
+     * @param masterAddress Address of the master node.
+     * @param masterPort Port number of the master node.
+     * @param transferDir Directory large broadcasts are stored in.
+     */
+    public Worker(String masterAddress, int masterPort, Path transferDir) {
+        this(masterAddress, masterPort, transferDir, Collections.emptyList());
+    }
+
+    /**
+     * Constructor to initialize the Worker class with the topic patterns it subscribes to.
+     * Published messages only reach workers with a matching pattern, broadcasts reach every worker.
+     * @param masterAddress Address of the master node.
+     * @param masterPort Port number of the master node.
+     * @param transferDir Directory large broadcasts are stored in.
+     * @param topics Topic patterns to subscribe to, such as "orders.*" or "metrics.#".
+     */
+    public Worker(String masterAddress, int masterPort, Path transferDir, List<String> topics) {
         this.masterAddress = masterAddress;
         this.masterPort = masterPort;
+        this.transferDir = transferDir;
+        this.topics = topics;
+        this.codec = Codec.configured();
+        this.relayExecutor = ThreadMode.configured().newExecutor("broadcast-relay");
+        this.workerId = Sessions.newWorkerId();
+        this.metrics = Metrics.register("broadcasting", "worker", Metrics.nextNodeId());
+        this.traffic = metrics.traffic();
+        this.reconnects = metrics.counter("pingpong_reconnects_total", "Connections to the master after the first");
+        this.replayed = metrics.counter("pingpong_replayed_total", "Broadcasts received from the master's log");
+        this.relayDropped = metrics.counter("pingpong_relay_dropped_total", "Broadcasts not relayed to a child that fell behind");
+        metrics.gauge("pingpong_relay_children", "Workers this worker relays broadcasts to", children::size);
+        metrics.gauge("pingpong_transfers_in_progress", "Large broadcasts being received", transfers::size);
     }
 
     /**
      * Starts the Worker node, connects to the master node, and handles communication.
+     * A master that is not up yet or goes away is retried with jittered exponential backoff;
+     * the relay server and the part files of unfinished transfers are kept across reconnects.
      */
     public void start() {
-        try (Socket socket = new Socket(masterAddress, masterPort);
-             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-             PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
+        Backoff backoff = new Backoff();
+        boolean connectedBefore = false;
+        try {
+            while (!stopping) {
+                try (Socket socket = SocketTuning.connect(masterAddress, masterPort)) {
+                    this.socket = socket;
+                    backoff.reset();
+                    if (connectedBefore) {
+                        reconnects.increment();
+                    }
+                    connectedBefore = true;
+                    serve(socket);
+                    if (!stopping) {
+                        Log.warn("Master at {}:{} closed the connection", masterAddress, masterPort);
+                    }
+                } catch (IOException e) {
+                    if (!stopping) {
+                        Log.warn("Connection to master at {}:{} failed: {}", masterAddress, masterPort, e.getMessage());
+                    }
+                }
+                if (stopping) {
+                    break;
+                }
+                long delay = backoff.nextDelayMillis();
+                Log.info("Reconnecting to master in {} ms", delay);
+                Thread.sleep(delay);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            stopRelay();
+        }
+    }
+
+    /**
+     * Stops reconnecting, waits for the large broadcasts being received to complete and for the relay
+     * children to be sent what was queued for them, and closes the connection to the master and the relay. Unfinished transfers keep their part files and are
+     * counted as dropped; small broadcasts are acknowledged as they arrive, so none are in flight.
+     * @param timeout How long to wait for transfers in progress.
+     * @param unit Unit of the timeout.
+     * @return What was completed and dropped while draining.
+     */
+    public synchronized DrainReport drain(long timeout, TimeUnit unit) {
+        if (drainReport != null) {
+            return drainReport;
+        }
+        long startNanos = System.nanoTime();
+        int inFlight = transfers.size();
+        stopping = true;
+        Shutdown.unregister(this);
+        Shutdown.await(() -> transfers.isEmpty() && children.stream().allMatch(RelayChild::isIdle), startNanos + unit.toNanos(timeout));
+        int dropped = transfers.size();
+
+        FrameWriter out = masterOut;
+        Socket current = socket;
+        try {
+            if (out != null) {
+                out.flush();
+            }
+        } catch (IOException e) {
+            // The master is gone already
+        }
+        if (current != null) {
+            try {
+                current.close();
+            } catch (IOException e) {
+                Log.error("Could not close the connection to the master", e);
+            }
+        }
+        stopRelay();
+        metrics.close();
+        drainReport = new DrainReport(System.nanoTime() - startNanos, Math.max(0, inFlight - dropped), dropped);
+        return drainReport;
+    }
 
-            System.out.println("Connected to master at " + masterAddress + ":" + masterPort);
+    /**
+     * Handles the master's messages until the connection ends.
+     * @param socket The socket connected to the master node.
+     * @throws IOException if the connection fails.
+     */
+    private void serve(Socket socket) throws IOException {
+        FrameReader in = new FrameReader(socket.getInputStream(), codec, traffic);
+        masterOut = new FrameWriter(new BufferedOutputStream(socket.getOutputStream()), codec, traffic);
+
+        Log.info("Connected to master at {}:{} as {}", masterAddress, masterPort, workerId);
+        // Both start empty with every connection, as do the master's counterparts
+        Compression compression = new Compression();
+        PayloadCache payloads = new PayloadCache();
+        try {
+            if (!codec.isText()) {
+                // Name the session first so a restarted connection is recognised as the same worker,
+                // and announce whether the master may send compressed payloads and references
+                byte accepts = Compression.handshakeFlags();
+                if (PayloadCache.enabled()) {
+                    accepts |= PayloadCache.REFERENCE;
+                }
+                masterOut.write(new Frame().set(Frame.SESSION, 0, System.nanoTime()).flags(accepts).payload(workerId));
+                for (String topic : topics) {
+                    masterOut.write(new Frame().set(Frame.SUBSCRIBE, 0, System.nanoTime()).payload(topic), false);
+                }
+                // Ask for what was broadcast while this worker was away, or just where live delivery starts
+                masterOut.write(new Frame().set(Frame.REPLAY, 0, System.nanoTime())
+                        .payload(ByteBuffer.allocate(Long.BYTES).putLong(resumeOffset.get()).flip()), false);
+                startRelay();
+            }
 
             // Listening for messages from the master
-            String message;
-            while ((message = in.readLine()) != null) {
-                System.out.println("Received message from master: " + message);
-                // Respond to the master after receiving the message
-                out.println("Pong: Received your message: " + message);
+            Frame frame = new Frame();
+            while (in.read(frame)) {
+                // Restore referenced and compressed payloads, keeping broadcasts compressed for the children
+                boolean referenced = (frame.flags() & PayloadCache.REFERENCE) != 0;
+                payloads.resolve(frame);
+                ByteBuffer relayed = null;
+                if (frame.type() == Frame.BROADCAST && !children.isEmpty()) {
+                    relayed = encodeForChildren(frame, referenced, compression);
+                }
+                compression.decompress(frame);
+                payloads.store(frame);
+                if (frame.type() == Frame.HEARTBEAT) {
+                    // Echo so the master hears from an otherwise idle worker
+                    masterOut.write(frame);
+                } else if (frame.type() == Frame.PARENT) {
+                    receiveFrom(frame.payloadAsString());
+                } else if (frame.type() == Frame.TRANSFER) {
+                    startTransfer(frame);
+                } else if (frame.type() == Frame.CHUNK) {
+                    receiveChunk(frame);
+                } else if (frame.type() == Frame.REPLAY) {
+                    caughtUp(frame);
+                } else if (frame.type() == Frame.PUBLISH) {
+                    receivePublished(frame);
+                } else {
+                    deliver(frame, relayed);
+                }
+            }
+        } finally {
+            // The next master places this worker in its tree again and may number broadcasts from scratch
+            closeUpstream();
+            upstreamAddress = "";
+            lastDelivered.set(0);
+            closeTransfers();
+            compression.close();
+        }
+    }
+
+    /**
+     * Opens the file for an announced large broadcast and tells the master where to start.
+     * @param frame The TRANSFER frame, carrying the size and the name of the content.
+     * @throws IOException if the file cannot be opened or the master connection fails.
+     */
+    private void startTransfer(Frame frame) throws IOException {
+        ByteBuffer payload = frame.payload();
+        long size = payload.getLong();
+        String name = StandardCharsets.UTF_8.decode(payload).toString();
+        TransferSink sink = new TransferSink(transferDir, name, size);
+        masterOut.write(frame.set(Frame.RESUME, frame.sequence(), frame.timestamp())
+                .payload(ByteBuffer.allocate(Long.BYTES).putLong(sink.received()).flip()));
+        if (sink.isComplete()) {
+            completeTransfer(frame.sequence(), sink);
+        } else {
+            TransferSink previous = transfers.put(frame.sequence(), sink);
+            if (previous != null) {
+                previous.close();
+            }
+            Log.info("Receiving {} ({} bytes) from byte {}", name, size, sink.received());
+        }
+    }
+
+    /**
+     * Writes one chunk of a large broadcast into its file.
+     * @param frame The CHUNK frame, carrying the offset and the chunk's bytes.
+     * @throws IOException if the chunk cannot be written or the master connection fails.
+     */
+    private void receiveChunk(Frame frame) throws IOException {
+        TransferSink sink = transfers.get(frame.sequence());
+        if (sink == null) {
+            return;
+        }
+        ByteBuffer payload = frame.payload();
+        sink.write(payload.getLong(), payload);
+        if (sink.isComplete()) {
+            transfers.remove(frame.sequence());
+            completeTransfer(frame.sequence(), sink);
+            return;
+        }
+        long now = System.nanoTime();
+        if (now - lastProgressNanos >= PROGRESS_INTERVAL_NANOS) {
+            lastProgressNanos = now;
+            masterOut.write(frame.set(Frame.HEARTBEAT, 0, now));
+        }
+    }
+
+    /**
+     * Acknowledges a large broadcast once its content is stored.
+     * @param transferId Sequence id of the broadcast.
+     * @param sink The completed transfer.
+     * @throws IOException if the ack cannot be written.
+     */
+    private void completeTransfer(long transferId, TransferSink sink) throws IOException {
+        Log.info("Stored {}", sink.target());
+        masterOut.write(new Frame().set(Frame.ACK, transferId, System.nanoTime()).payload("Stored " + sink.target().getFileName()));
+    }
+
+    /**
+     * Closes unfinished transfers, keeping their part files for a later attempt.
+     */
+    private void closeTransfers() {
+        for (TransferSink sink : transfers.values()) {
+            try {
+                sink.close();
+            } catch (IOException e) {
+                Log.error("Could not close {}", sink.target(), e);
+            }
+        }
+        transfers.clear();
+    }
+
+    /**
+     * Opens the relay server that children connect to, unless it is open already, and tells the master its port.
+     * @throws IOException if the server socket cannot be opened.
+     */
+    private void startRelay() throws IOException {
+        if (relayServer == null) {
+            relayServer = SocketTuning.listen(0);
+            relayExecutor.execute(this::acceptChildren);
+        }
+        masterOut.write(new Frame().set(Frame.HELLO, 0, System.nanoTime()).payload(Integer.toString(relayServer.getLocalPort())));
+    }
+
+    /**
+     * Accepts children until the relay server is closed. Children never send anything,
+     * so each one is watched only to notice when it goes away.
+     */
+    private void acceptChildren() {
+        try {
+            while (true) {
+                Socket socket = relayServer.accept();
+                SocketTuning.apply(socket);
+                RelayChild child = new RelayChild(socket, new OutboundQueue(relayPolicy, relayBufferBytes, traffic), relayExecutor);
+                children.add(child);
+                relayExecutor.execute(() -> {
+                    try {
+                        while (socket.getInputStream().read() >= 0) {
+                            // Nothing to do, children only read
+                        }
+                    } catch (IOException e) {
+                        // The child is gone either way
+                    }
+                    children.remove(child);
+                    child.close();
+                });
+            }
+        } catch (IOException e) {
+            // Relay server closed
+        }
+    }
+
+    /**
+     * Switches to the parent the master assigned.
+     * @param parent The parent relay as host:port, empty if the master sends to this worker directly.
+     */
+    private void receiveFrom(String parent) {
+        if (parent.equals(upstreamAddress)) {
+            return;
+        }
+        closeUpstream();
+        upstreamAddress = parent;
+        if (parent.isEmpty()) {
+            return;
+        }
+        int colon = parent.lastIndexOf(':');
+        try {
+            Socket socket = SocketTuning.connect(parent.substring(0, colon), Integer.parseInt(parent.substring(colon + 1)));
+            upstream = socket;
+            relayExecutor.execute(() -> readUpstream(socket));
+        } catch (IOException e) {
+            // The master assigns a new parent once it notices the old one is gone
+            Log.warn("Could not connect to relay {}: {}", parent, e.getMessage());
+        }
+    }
+
+    /**
+     * Delivers every broadcast the parent relays until the connection closes.
+     * @param socket The connection to the parent relay.
+     */
+    private void readUpstream(Socket socket) {
+        Compression compression = new Compression();
+        try {
+            FrameReader in = new FrameReader(socket.getInputStream(), codec, traffic);
+            Frame frame = new Frame();
+            while (in.read(frame)) {
+                // Pass a compressed broadcast on the way it came and inflate it only for this worker
+                ByteBuffer relayed = null;
+                if ((frame.flags() & Compression.COMPRESSED) != 0 && !children.isEmpty()) {
+                    relayed = codec.encode(frame);
+                }
+                compression.decompress(frame);
+                deliver(frame, relayed);
             }
         } catch (IOException e) {
-            e.printStackTrace();
+            // Closed by a re-parent or by the parent going away
+        } finally {
+            compression.close();
+        }
+    }
+
+    /**
+     * Encodes a broadcast from the master for the children before its payload is inflated, so a payload
+     * the master compressed once travels compressed through the whole tree. Children keep no payload
+     * cache with this worker, so the store flag is dropped and a resolved reference is deflated here,
+     * once for all children, if this worker compresses.
+     * @param frame The received broadcast, with references resolved and the payload not yet inflated.
+     * @param referenced Whether the master sent a reference to a cached payload.
+     * @param compression The compression of the master connection.
+     * @return The encoded broadcast, or null if it goes to the children uncompressed, encoded once delivered.
+     */
+    private ByteBuffer encodeForChildren(Frame frame, boolean referenced, Compression compression) {
+        byte flags = frame.flags();
+        if ((flags & Compression.COMPRESSED) != 0) {
+            ByteBuffer encoded = codec.encode(frame.flags((byte) (flags & ~PayloadCache.STORE)));
+            frame.flags(flags);
+            return encoded;
+        }
+        if (referenced && Compression.enabled()) {
+            ByteBuffer compressed = compression.compress(frame.payload());
+            if (compressed != null) {
+                return codec.encode(new Frame().set(frame.type(), frame.sequence(), frame.timestamp())
+                        .flags((byte) (flags | Compression.COMPRESSED)).payload(compressed));
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Forwards a broadcast to the children and acknowledges it to the master.
+     * The same broadcast can arrive twice while the tree is being rebuilt; repeats are dropped.
+     * @param frame The received broadcast, inflated.
+     * @param relayed The broadcast encoded for the children, or null to encode it as delivered.
+     * @throws IOException if the ack cannot be written.
+     */
+    private void deliver(Frame frame, ByteBuffer relayed) throws IOException {
+        long sequence = frame.sequence();
+        if (sequence > 0 && !advance(sequence)) {
+            return;
         }
+        if (sequence > 0) {
+            resumeOffset.accumulateAndGet(sequence + 1, Math::max);
+        }
+        if (!children.isEmpty()) {
+            relay(relayed != null ? relayed : codec.encode(frame));
+        }
+        String message = frame.payloadAsString();
+        if (Log.sampled()) {
+            Log.debug("Received message from master: {}", message);
+        }
+        if ((frame.flags() & BroadcastLog.REPLAYED) != 0) {
+            // Nobody waits for acks of old broadcasts
+            replayed.increment();
+            return;
+        }
+        // Respond to the master after receiving the message, echoing the broadcast's sequence id and timestamp
+        masterOut.write(frame.set(Frame.ACK, frame.sequence(), frame.timestamp()).payload("Pong: Received your message: " + message));
+    }
+
+    /**
+     * Acknowledges a message published on a subscribed topic. Published messages come from the master
+     * directly and only to subscribers, so they are neither relayed nor part of the broadcast order.
+     * A message without a topic line is dropped rather than failing the master connection.
+     * @param frame The received PUBLISH frame, carrying the topic and the message on separate lines.
+     * @throws IOException if the ack cannot be written.
+     */
+    private void receivePublished(Frame frame) throws IOException {
+        String payload = frame.payloadAsString();
+        int newline = payload.indexOf('\n');
+        if (newline < 0) {
+            // Not acked, so the master's tracker times the message out for this worker
+            Log.warn("Dropping message {} from master without a topic", frame.sequence());
+            return;
+        }
+        String topic = payload.substring(0, newline);
+        String message = payload.substring(newline + 1);
+        if (Log.sampled()) {
+            Log.debug("Received message on {} from master: {}", topic, message);
+        }
+        masterOut.write(frame.set(Frame.ACK, frame.sequence(), frame.timestamp()).payload("Pong: Received your message on " + topic + ": " + message));
+    }
+
+    /**
+     * Switches to live delivery once the master has sent everything this worker asked for.
+     * @param frame The REPLAY frame, carrying the last offset sent; flagged if the master keeps a log.
+     */
+    private void caughtUp(Frame frame) {
+        if ((frame.flags() & BroadcastLog.REPLAYED) == 0) {
+            Log.info("Master keeps no broadcast log, receiving live broadcasts only");
+            return;
+        }
+        // The master's log is the reference, even if this worker remembers offsets from an earlier log
+        resumeOffset.set(frame.sequence() + 1);
+        Log.info("Caught up with the master at offset {}, {} broadcasts replayed so far", frame.sequence(), replayed.sum());
+    }
+
+    /**
+     * Records a broadcast as delivered unless a later one was delivered already.
+     * @param sequence Sequence id of the broadcast.
+     * @return True if the broadcast is new.
+     */
+    private boolean advance(long sequence) {
+        long last;
+        do {
+            last = lastDelivered.get();
+            if (sequence <= last) {
+                return false;
+            }
+        } while (!lastDelivered.compareAndSet(last, sequence));
+        return true;
+    }
+
+    /**
+     * Queues an encoded broadcast for every child. Each child is written to by its own task, so a slow
+     * child only loses broadcasts or its connection under the slow consumer policy.
+     * @param encoded The encoded frame.
+     */
+    private void relay(ByteBuffer encoded) {
+        relayLock.lock();
+        try {
+            for (RelayChild child : children) {
+                if (!child.send(encoded.duplicate())) {
+                    relayDropped.increment();
+                }
+            }
+        } finally {
+            relayLock.unlock();
+        }
+    }
+
+    /**
+     * Closes the connection to the current parent relay, if any.
+     */
+    private void closeUpstream() {
+        Socket socket = upstream;
+        upstream = null;
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                Log.error("Could not close the relay connection", e);
+            }
+        }
+    }
+
+    /**
+     * Stops relaying once the worker gives up on the master.
+     */
+    private void stopRelay() {
+        closeUpstream();
+        for (RelayChild child : children) {
+            child.close();
+        }
+        if (relayServer != null) {
+            try {
+                relayServer.close();
+            } catch (IOException e) {
+                Log.error("Could not close the relay server", e);
+            }
+        }
+        relayExecutor.shutdownNow();
     }
 
     /**
      * Main method to initialize and start the Worker node.
-     * @param args Command-line arguments: master address and port number.
+     * @param args Command-line arguments: master address, port number, optionally the directory
+     *             large broadcasts are stored in, overriding the {@value #TRANSFER_DIR_PROPERTY} property,
+     *             and the comma-separated topic patterns to subscribe to.
      */
     public static void main(String[] args) {
         if (args.length < 2) {
-            System.out.println("Usage: java Worker <masterAddress> <masterPort>");
+            System.out.println("Usage: java Worker <masterAddress> <masterPort> [transferDir] [topic,topic,...]");
             return;
         }
 
         // Parse the command-line arguments
         String masterAddress = args[0];
         int masterPort = Integer.parseInt(args[1]);
+        Path transferDir = Paths.get(args.length > 2 ? args[2] : System.getProperty(TRANSFER_DIR_PROPERTY, "transfers"));
+        List<String> topics = new ArrayList<>();
+        if (args.length > 3) {
+            for (String topic : args[3].split(",")) {
+                if (!topic.isBlank()) {
+                    topics.add(topic.trim());
+                }
+            }
+        }
 
         // Create and start the Worker node
-        Worker workerNode = new Worker(masterAddress, masterPort);
+        Worker workerNode = new Worker(masterAddress, masterPort, transferDir, topics);
+        Shutdown.register(workerNode, "Worker " + workerNode.workerId); // Drain when the JVM is stopped
         workerNode.start();
     }
 }
@@ -0,0 +1,54 @@
+package broadcasting;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * A connection to a worker that messages can be queued on without blocking the caller.
+ */
+interface WorkerConnection {
+    /**
+     * Returns the id the Master assigned to this connection, unique for the Master's lifetime
+     * except that a worker resuming its session takes over the id of its earlier connection.
+     * @return The connection id.
+     */
+    int id();
+
+    /**
+     * Takes over the id of an earlier connection of the same worker, so acks still owed under it count.
+     * @param id The id of the earlier connection.
+     */
+    void adoptId(int id);
+
+    /**
+     * Queues bytes for the worker. The buffer must not be modified afterwards;
+     * callers sharing one payload between connections pass a duplicate to each.
+     * @param buffer The bytes to send.
+     * @return True if the bytes were queued, false if the slow consumer policy rejected them.
+     */
+    boolean send(ByteBuffer buffer);
+
+    /**
+     * Queues a control message or the chunks of a large broadcast regardless of the slow consumer policy.
+     * The buffers are queued back to back, so one frame may be split over several of them.
+     * @param buffers The bytes to send, in order.
+     */
+    void sendControl(ByteBuffer... buffers);
+
+    /**
+     * Returns the number of queued bytes not yet written to the worker.
+     * @return Unsent bytes.
+     */
+    long queuedBytes();
+
+    /**
+     * Closes the connection. Safe to call more than once.
+     */
+    void close();
+
+    /**
+     * Returns the address of the connected worker.
+     * @return The remote socket address.
+     */
+    SocketAddress remoteAddress();
+}
@@ -18,6 +18,14 @@ if [[ -z "$MASTER_PORT"  || -z "$NUM_WORKERS" || -z "$MASTER_ADDRESS"
     exit 1
 fi
 
+# Create a keystore with a self-signed certificate on first use, every node trusts it
+if [[ "${TLS:-false}" == "true" && ! -f "${TLS_KEYSTORE:-pingpong-tls.p12}" ]]; then
+    keytool -genkeypair -alias pingpong -keyalg EC -groupname secp256r1 -validity 365 -dname "CN=pingpong" \
+        -storetype PKCS12 -keystore "${TLS_KEYSTORE:-pingpong-tls.p12}" -storepass "${TLS_PASSWORD:-changeit}" > /dev/null
+fi
+
 # Start MasterNode
-java -jar ./master.jar $MASTER_PORT &
+java -Dpingpong.protocol=${PROTOCOL:-binary} -Dpingpong.log.level=${LOG_LEVEL:-info} -Dpingpong.log.sample=${LOG_SAMPLE:-1} -Dpingpong.session.ttl=${SESSION_TTL:-60000} -Dpingpong.metrics.port=${METRICS_PORT:-0} -Dpingpong.tcp.nodelay=${TCP_NODELAY:-true} -Dpingpong.socket.sndbuf=${SOCKET_SNDBUF:-0} -Dpingpong.socket.rcvbuf=${SOCKET_RCVBUF:-0} -Dpingpong.write.batch=${WRITE_BATCH:-16384} -Dpingpong.write.linger=${WRITE_LINGER:-0} -Dpingpong.threads=${THREAD_MODE:-platform} -Dpingpong.heartbeat.interval=${HEARTBEAT_INTERVAL:-100} -Dpingpong.failure.detector=${FAILURE_DETECTOR:-phi} -Dpingpong.failure.timeout=${FAILURE_TIMEOUT:-500} -Dpingpong.stats.period=${STATS_PERIOD:-10} -Dpingpong.broadcast.period=${BROADCAST_PERIOD:-10} -Dpingpong.broadcast.file=${BROADCAST_FILE} -Dpingpong.publish.topic=${PUBLISH_TOPIC} -Dpingpong.broadcast.log.dir=${BROADCAST_LOG_DIR} -Dpingpong.broadcast.log.segment=${BROADCAST_LOG_SEGMENT:-67108864} -Dpingpong.broadcast.log.retention.bytes=${BROADCAST_LOG_RETENTION_BYTES:-1073741824} -Dpingpong.broadcast.log.retention.ms=${BROADCAST_LOG_RETENTION_MS:-86400000} -Dpingpong.transfer.chunk=${TRANSFER_CHUNK:-262144} -Dpingpong.compression=${COMPRESSION:-false} -Dpingpong.compression.threshold=${COMPRESSION_THRESHOLD:-1024} -Dpingpong.compression.level=${COMPRESSION_LEVEL:-1} -Dpingpong.dedup=${DEDUP:-false} -Dpingpong.dedup.threshold=${DEDUP_THRESHOLD:-1024} -Dpingpong.shutdown.timeout=${SHUTDOWN_TIMEOUT:-5000} -Dpingpong.tls=${TLS:-false} -Dpingpong.tls.keystore=${TLS_KEYSTORE:-pingpong-tls.p12} -Dpingpong.tls.password=${TLS_PASSWORD:-changeit} -Dpingpong.tls.resumption=${TLS_RESUMPTION:-true} -jar ./master.jar $MASTER_PORT ${IO_MODE:-blocking} ${SLOW_CONSUMER_POLICY:-buffer} ${MAX_BUFFERED_BYTES:-1048576} ${TREE_FANOUT:-0} &
+# SIGTERM drains the master: kill $(cat master.pid)
+echo $! > master.pid
 
@@ -19,10 +19,30 @@ if [[ -z "$MASTER_PORT"  || -z "$NUM_WORKERS" || -z "$MASTER_ADDRESS"
 fi
 
 
+# Create a keystore with a self-signed certificate on first use, every node trusts it
+if [[ "${TLS:-false}" == "true" && ! -f "${TLS_KEYSTORE:-pingpong-tls.p12}" ]]; then
+    keytool -genkeypair -alias pingpong -keyalg EC -groupname secp256r1 -validity 365 -dname "CN=pingpong" \
+        -storetype PKCS12 -keystore "${TLS_KEYSTORE:-pingpong-tls.p12}" -storepass "${TLS_PASSWORD:-changeit}" > /dev/null
+fi
+
+JAVA_OPTS="-Dpingpong.protocol=${PROTOCOL:-binary} -Dpingpong.log.level=${LOG_LEVEL:-info} -Dpingpong.log.sample=${LOG_SAMPLE:-1} -Dpingpong.reconnect.initial=${RECONNECT_INITIAL:-100} -Dpingpong.reconnect.max=${RECONNECT_MAX:-5000} -Dpingpong.tcp.nodelay=${TCP_NODELAY:-true} -Dpingpong.socket.sndbuf=${SOCKET_SNDBUF:-0} -Dpingpong.socket.rcvbuf=${SOCKET_RCVBUF:-0} -Dpingpong.write.batch=${WRITE_BATCH:-16384} -Dpingpong.write.linger=${WRITE_LINGER:-0} -Dpingpong.threads=${THREAD_MODE:-platform} -Dpingpong.replay.from=${REPLAY_FROM:--1} -Dpingpong.relay.policy=${SLOW_CONSUMER_POLICY:-buffer} -Dpingpong.relay.buffer=${MAX_BUFFERED_BYTES:-1048576} -Dpingpong.compression=${COMPRESSION:-false} -Dpingpong.compression.threshold=${COMPRESSION_THRESHOLD:-1024} -Dpingpong.compression.level=${COMPRESSION_LEVEL:-1} -Dpingpong.dedup=${DEDUP:-false} -Dpingpong.dedup.threshold=${DEDUP_THRESHOLD:-1024} -Dpingpong.shutdown.timeout=${SHUTDOWN_TIMEOUT:-5000} -Dpingpong.tls=${TLS:-false} -Dpingpong.tls.keystore=${TLS_KEYSTORE:-pingpong-tls.p12} -Dpingpong.tls.password=${TLS_PASSWORD:-changeit} -Dpingpong.tls.resumption=${TLS_RESUMPTION:-true}"
+
+# SIGTERM drains the workers: kill $(cat workers.pid)
+: > workers.pid
+
+if [[ "${WORKER_LAUNCHER:-process}" == "jvm" ]]; then
+  # Host every worker in one JVM, {index} is replaced by each worker's index; THREAD_MODE=virtual lets thousands share it
+  java $JAVA_OPTS -Dpingpong.metrics.port=$(( ${METRICS_PORT:-0} > 0 ? ${METRICS_PORT:-0} + 1 : 0 )) -cp ./worker.jar common.WorkerLauncher broadcasting $NUM_WORKERS ${START_STAGGER:-0} $MASTER_ADDRESS  $MASTER_PORT ${TRANSFER_DIR:-transfers}/worker{index} "$TOPICS" &
+  echo $! >> workers.pid
+  echo "Started $NUM_WORKERS WorkerNodes in one JVM"
+  exit 0
+fi
+
 for (( i=0; i<$NUM_WORKERS; i++ ))
 do
-  # Usage: java Worker <master_address> <master_port>
-  java -jar ./worker.jar $MASTER_ADDRESS  $MASTER_PORT &
+  # Usage: java Worker <master_address> <master_port> [transfer_dir] [topics]
+  java $JAVA_OPTS -Dpingpong.metrics.port=$(( ${METRICS_PORT:-0} > 0 ? ${METRICS_PORT:-0} + 1 + i : 0 )) -jar ./worker.jar $MASTER_ADDRESS  $MASTER_PORT ${TRANSFER_DIR:-transfers}/worker$i "${TOPICS//\{index\}/$i}" &
+  echo $! >> workers.pid
   echo "Started WorkerNode $i"
 done
 
@@ -0,0 +1,68 @@
+package common;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Jittered exponential backoff for reconnect loops.
+ * The ceiling doubles with every failed attempt up to a maximum and each delay is drawn uniformly
+ * below it ("full jitter"), so thousands of workers that lost the same Master spread their
+ * reconnects over the whole window instead of arriving in synchronized waves.
+ */
+public class Backoff {
+    // Milliseconds of the first delay ceiling
+    public static final String INITIAL_PROPERTY = "pingpong.reconnect.initial";
+    // Milliseconds the delay ceiling grows to at most
+    public static final String MAX_PROPERTY = "pingpong.reconnect.max";
+
+    private final long initialMillis;
+    private final long maxMillis;
+    private int attempt;
+
+    /**
+     * Constructor to initialize the Backoff from the {@value #INITIAL_PROPERTY} and {@value #MAX_PROPERTY} properties.
+     */
+    public Backoff() {
+        this(Long.getLong(INITIAL_PROPERTY, 100), Long.getLong(MAX_PROPERTY, 5000));
+    }
+
+    /**
+     * Constructor to initialize the Backoff.
+     * @param initialMillis Ceiling of the first delay in milliseconds.
+     * @param maxMillis Largest ceiling in milliseconds.
+     */
+    public Backoff(long initialMillis, long maxMillis) {
+        this.initialMillis = Math.max(1, initialMillis);
+        this.maxMillis = Math.max(this.initialMillis, maxMillis);
+    }
+
+    /**
+     * Returns the delay before the next attempt and raises the ceiling for the one after.
+     * @return The delay in milliseconds.
+     */
+    public long nextDelayMillis() {
+        // Stop doubling once the ceiling is reached so the shift cannot overflow
+        long ceiling = attempt >= 62 || initialMillis << attempt >= maxMillis ? maxMillis : initialMillis << attempt;
+        if (ceiling < maxMillis) {
+            attempt++;
+        }
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    /**
+     * Sleeps for the next delay.
+     * @return The delay slept in milliseconds.
+     * @throws InterruptedException if the thread is interrupted while sleeping.
+     */
+    public long pause() throws InterruptedException {
+        long delay = nextDelayMillis();
+        Thread.sleep(delay);
+        return delay;
+    }
+
+    /**
+     * Starts over from the initial ceiling, typically after a connection succeeded.
+     */
+    public void reset() {
+        attempt = 0;
+    }
+}
@@ -0,0 +1,83 @@
+package common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Length-prefixed binary frames.
+ * Layout: int length of the rest, byte type, byte flags, long sequence, long timestamp, payload.
+ */
+public final class BinaryCodec implements Codec {
+    public static final BinaryCodec INSTANCE = new BinaryCodec();
+
+    public static final int LENGTH_FIELD = 4;
+    public static final int HEADER_SIZE = LENGTH_FIELD + 1 + 1 + 8 + 8;
+    public static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+    private BinaryCodec() {
+    }
+
+    public int encodedSize(Frame frame) {
+        checkLength(frame.payloadLength());
+        return HEADER_SIZE + frame.payloadLength();
+    }
+
+    public void encode(Frame frame, ByteBuffer out) {
+        checkLength(frame.payloadLength());
+        out.putInt(HEADER_SIZE - LENGTH_FIELD + frame.payloadLength());
+        out.put(frame.type());
+        out.put(frame.flags());
+        out.putLong(frame.sequence());
+        out.putLong(frame.timestamp());
+        frame.writePayload(out);
+    }
+
+    /**
+     * Encodes a frame whose payload continues past the frame's own payload bytes.
+     * The caller sends the trailing bytes right after the returned buffer, so a large payload can be
+     * written straight from a shared buffer instead of being copied into every frame.
+     * @param frame The frame holding the leading part of the payload.
+     * @param trailingBytes Number of payload bytes that follow the returned buffer.
+     * @return A buffer in read mode holding the header and the leading payload.
+     */
+    public ByteBuffer encodeHeader(Frame frame, int trailingBytes) {
+        checkLength(frame.payloadLength() + trailingBytes);
+        ByteBuffer out = ByteBuffer.allocate(encodedSize(frame));
+        encode(frame, out);
+        out.putInt(0, HEADER_SIZE - LENGTH_FIELD + frame.payloadLength() + trailingBytes);
+        return out.flip();
+    }
+
+    /**
+     * Fails before a frame goes out that the receiving end would take for a corrupt stream.
+     * @param payloadLength The number of payload bytes of the frame.
+     * @throws IllegalArgumentException if the frame exceeds {@link #MAX_FRAME_SIZE}.
+     */
+    private static void checkLength(long payloadLength) {
+        if (HEADER_SIZE - LENGTH_FIELD + payloadLength > MAX_FRAME_SIZE) {
+            throw new IllegalArgumentException("Frame exceeds " + MAX_FRAME_SIZE + " bytes");
+        }
+    }
+
+    public boolean decode(ByteBuffer in, Frame frame) throws IOException {
+        if (in.remaining() < LENGTH_FIELD) {
+            return false;
+        }
+        int start = in.position();
+        int length = in.getInt(start);
+        if (length < HEADER_SIZE - LENGTH_FIELD || length > MAX_FRAME_SIZE) {
+            throw new IOException("Invalid frame length " + length);
+        }
+        if (in.remaining() < LENGTH_FIELD + length) {
+            return false;
+        }
+        in.position(start + LENGTH_FIELD);
+        byte type = in.get();
+        byte flags = in.get();
+        long sequence = in.getLong();
+        long timestamp = in.getLong();
+        frame.set(type, sequence, timestamp).flags(flags);
+        frame.readPayload(in, length - (HEADER_SIZE - LENGTH_FIELD));
+        return true;
+    }
+}
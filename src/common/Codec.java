@@ -0,0 +1,85 @@
+package common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Turns frames into bytes and back. Implementations keep no per-connection state,
+ * so one instance can be shared by every connection.
+ */
+public interface Codec {
+    /**
+     * Name of the system property that selects the wire protocol ("binary" or "text").
+     */
+    String PROTOCOL_PROPERTY = "pingpong.protocol";
+
+    /**
+     * Returns the number of bytes the frame occupies on the wire.
+     * @param frame The frame to measure.
+     * @return The encoded size in bytes.
+     * @throws IllegalArgumentException if the frame is too large for the wire format.
+     */
+    int encodedSize(Frame frame);
+
+    /**
+     * Writes the frame at the current position of the buffer.
+     * @param frame The frame to encode.
+     * @param out The buffer to write into; must have at least {@link #encodedSize(Frame)} bytes remaining.
+     * @throws IllegalArgumentException if the frame is too large for the wire format.
+     */
+    void encode(Frame frame, ByteBuffer out);
+
+    /**
+     * Reads one frame from the buffer if a complete one is available.
+     * On success the position is moved past the frame, otherwise it is left untouched.
+     * @param in The buffer to read from, in read mode.
+     * @param frame The frame to fill.
+     * @return True if a frame was decoded, false if more bytes are needed.
+     * @throws IOException if the bytes do not form a valid frame.
+     */
+    boolean decode(ByteBuffer in, Frame frame) throws IOException;
+
+    /**
+     * Tells whether the codec only carries the payload as a line of text.
+     * Text codecs drop the header fields and cannot carry arbitrary binary payloads.
+     * @return True for line-based text codecs.
+     */
+    default boolean isText() {
+        return false;
+    }
+
+    /**
+     * Encodes the frame into a new buffer that is ready to be written or shared.
+     * @param frame The frame to encode.
+     * @return A buffer in read mode holding the encoded frame.
+     */
+    default ByteBuffer encode(Frame frame) {
+        ByteBuffer out = ByteBuffer.allocate(encodedSize(frame));
+        encode(frame, out);
+        return out.flip();
+    }
+
+    /**
+     * Returns the codec with the given name.
+     * @param name "binary" or "text".
+     * @return The matching codec.
+     */
+    static Codec forName(String name) {
+        switch (name.toLowerCase()) {
+            case "binary":
+                return BinaryCodec.INSTANCE;
+            case "text":
+                return TextCodec.INSTANCE;
+            default:
+                throw new IllegalArgumentException("Unknown protocol: " + name);
+        }
+    }
+
+    /**
+     * Returns the codec selected by the {@value #PROTOCOL_PROPERTY} system property, binary by default.
+     * @return The configured codec.
+     */
+    static Codec configured() {
+        return forName(System.getProperty(PROTOCOL_PROPERTY, "binary"));
+    }
+}
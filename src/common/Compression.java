@@ -0,0 +1,231 @@
+package common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Optional compression of large payloads, negotiated per connection and selected by system properties.
+ *
+ * A node with {@value #ENABLED_PROPERTY} set announces that it takes compressed payloads by setting
+ * {@link #COMPRESSED} in the flags of its handshake frame, and its peers only compress for nodes that
+ * did. Payloads from {@value #THRESHOLD_PROPERTY} bytes up are deflated and sent compressed if that
+ * makes them smaller. A compressed frame carries the {@link #COMPRESSED} flag and its payload is the
+ * original length followed by the raw deflate stream; any node can inflate it, whatever it announced.
+ *
+ * An instance belongs to one connection or reader thread and is not thread-safe. It keeps its Deflater
+ * and Inflater, created on first use, and resets them between payloads, since creating them allocates
+ * native memory. Bytes before and after compression and the time spent are counted for the whole JVM.
+ */
+public final class Compression {
+    // true to compress large payloads for peers that accept it, false (default) to send everything as is
+    public static final String ENABLED_PROPERTY = "pingpong.compression";
+    // Payload bytes from which compression is tried, 1024 by default
+    public static final String THRESHOLD_PROPERTY = "pingpong.compression.threshold";
+    // Deflate level from 1 (fastest, default) to 9 (smallest)
+    public static final String LEVEL_PROPERTY = "pingpong.compression.level";
+
+    // Frame flag of a compressed payload; on a handshake frame, the sender takes compressed payloads
+    public static final byte COMPRESSED = 0x40;
+
+    private static final boolean ENABLED = Boolean.getBoolean(ENABLED_PROPERTY);
+    private static final int THRESHOLD = Math.max(Integer.BYTES + 1, Integer.getInteger(THRESHOLD_PROPERTY, 1024));
+    private static final int LEVEL = Math.min(Deflater.BEST_COMPRESSION,
+            Math.max(Deflater.BEST_SPEED, Integer.getInteger(LEVEL_PROPERTY, Deflater.BEST_SPEED)));
+    private static final int INITIAL_CAPACITY = 8 * 1024;
+
+    private Deflater deflater;
+    private Inflater inflater;
+    // Output of the last compress or decompress, reused for the next one
+    private ByteBuffer scratch = ByteBuffer.allocate(0);
+
+    /**
+     * Returns whether this node compresses and announces that it takes compressed payloads.
+     * @return true if {@value #ENABLED_PROPERTY} is set.
+     */
+    public static boolean enabled() {
+        return ENABLED;
+    }
+
+    /**
+     * Returns the flags a handshake frame carries to announce what this node takes.
+     * @return {@link #COMPRESSED} if compression is enabled, 0 otherwise.
+     */
+    public static byte handshakeFlags() {
+        return ENABLED ? COMPRESSED : 0;
+    }
+
+    /**
+     * Tells whether a peer's handshake frame asks for compressed payloads and this node compresses at all.
+     * @param flags Flags of the peer's handshake frame.
+     * @return true if payloads for the peer should be compressed.
+     */
+    public static boolean negotiated(byte flags) {
+        return ENABLED && (flags & COMPRESSED) != 0;
+    }
+
+    /**
+     * Compresses a payload if it is large enough and the result is smaller.
+     * @param payload The payload from its position to its limit; not consumed.
+     * @return The compressed payload, valid until the next call on this instance, or null to send the payload as is.
+     */
+    public ByteBuffer compress(ByteBuffer payload) {
+        int length = payload.remaining();
+        if (length < THRESHOLD) {
+            return null;
+        }
+        Counters counters = Counters.INSTANCE;
+        long start = System.nanoTime();
+        if (deflater == null) {
+            deflater = new Deflater(LEVEL, true);
+        }
+        deflater.reset();
+        if (payload.hasArray()) {
+            deflater.setInput(payload.array(), payload.arrayOffset() + payload.position(), length);
+        } else {
+            deflater.setInput(payload.duplicate());
+        }
+        deflater.finish();
+        // Output that does not fit in fewer bytes than the original is no gain
+        ensureCapacity(length - 1);
+        scratch.clear().limit(length - 1);
+        scratch.putInt(length);
+        while (!deflater.finished() && scratch.hasRemaining()) {
+            deflater.deflate(scratch);
+        }
+        boolean smaller = deflater.finished();
+        counters.compressTimes.record(System.nanoTime() - start);
+        if (!smaller) {
+            counters.incompressible.increment();
+            return null;
+        }
+        scratch.flip();
+        counters.compressedIn.add(length);
+        counters.compressedOut.add(scratch.remaining());
+        return scratch;
+    }
+
+    /**
+     * Compresses the payload of a frame in place if it is large enough and the result is smaller.
+     * @param frame The frame; a frame that is compressed already is left as is.
+     * @return true if the frame now carries a compressed payload.
+     */
+    public boolean compress(Frame frame) {
+        if ((frame.flags() & COMPRESSED) != 0) {
+            return true;
+        }
+        ByteBuffer compressed = compress(frame.payloadBuffer());
+        if (compressed == null) {
+            return false;
+        }
+        byte flags = frame.flags();
+        frame.payload(compressed).flags((byte) (flags | COMPRESSED));
+        return true;
+    }
+
+    /**
+     * Restores the original payload of a frame flagged {@link #COMPRESSED} and clears the flag.
+     * Other frames are left untouched.
+     * @param frame The received frame.
+     * @throws IOException if the payload is not a valid compressed payload.
+     */
+    public void decompress(Frame frame) throws IOException {
+        if ((frame.flags() & COMPRESSED) == 0) {
+            return;
+        }
+        // Read straight from the frame's heap buffer, which stays untouched until the payload is replaced below
+        ByteBuffer in = frame.payloadBuffer();
+        if (in.remaining() < Integer.BYTES) {
+            throw new IOException("Truncated compressed payload");
+        }
+        int length = in.getInt(in.position());
+        if (length < 0 || length > BinaryCodec.MAX_FRAME_SIZE) {
+            throw new IOException("Invalid compressed payload length " + length);
+        }
+        long start = System.nanoTime();
+        if (inflater == null) {
+            inflater = new Inflater(true);
+        }
+        inflater.reset();
+        inflater.setInput(in.array(), in.arrayOffset() + in.position() + Integer.BYTES, in.remaining() - Integer.BYTES);
+        ensureCapacity(length);
+        scratch.clear().limit(length);
+        try {
+            while (scratch.hasRemaining() && !inflater.finished()) {
+                if (inflater.inflate(scratch) == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed payload: " + e.getMessage());
+        }
+        if (scratch.hasRemaining()) {
+            throw new IOException("Compressed payload shorter than its length " + length);
+        }
+        Counters.INSTANCE.decompressTimes.record(System.nanoTime() - start);
+        Counters.INSTANCE.decompressed.add(length);
+        byte flags = frame.flags();
+        frame.payload(scratch.flip()).flags((byte) (flags & ~COMPRESSED));
+    }
+
+    /**
+     * Releases the native memory of the Deflater and Inflater. The instance can still be used, it creates new ones.
+     */
+    public void close() {
+        if (deflater != null) {
+            deflater.end();
+            deflater = null;
+        }
+        if (inflater != null) {
+            inflater.end();
+            inflater = null;
+        }
+    }
+
+    /**
+     * Grows the scratch buffer so it can hold at least the given number of bytes.
+     * @param capacity The required capacity.
+     */
+    private void ensureCapacity(int capacity) {
+        if (scratch.capacity() < capacity) {
+            scratch = ByteBuffer.allocate(Math.max(Math.max(capacity, INITIAL_CAPACITY), scratch.capacity() * 2));
+        }
+    }
+
+    /**
+     * Counters of the whole JVM, registered when the first payload is compressed or inflated.
+     */
+    private static final class Counters {
+        static final Counters INSTANCE = new Counters();
+
+        final LongAdder compressedIn = new LongAdder();
+        final LongAdder compressedOut = new LongAdder();
+        final LongAdder incompressible = new LongAdder();
+        final LongAdder decompressed = new LongAdder();
+        final Histogram compressTimes = new Histogram(5, TimeUnit.SECONDS.toNanos(10));
+        final Histogram decompressTimes = new Histogram(5, TimeUnit.SECONDS.toNanos(10));
+
+        private Counters() {
+            Metrics metrics = Metrics.register("common", "compression", Metrics.nextNodeId());
+            metrics.counter("pingpong_compression_input_bytes_total", "Original bytes of the payloads sent compressed",
+                    compressedIn::sum);
+            metrics.counter("pingpong_compression_output_bytes_total", "Compressed bytes of the payloads sent compressed",
+                    compressedOut::sum);
+            metrics.counter("pingpong_compression_saved_bytes_total", "Bytes compression took off the payloads sent compressed",
+                    () -> compressedIn.sum() - compressedOut.sum());
+            metrics.counter("pingpong_compression_incompressible_total", "Payloads above the threshold sent as is, as deflating did not shrink them",
+                    incompressible::sum);
+            metrics.counter("pingpong_decompression_output_bytes_total", "Bytes of the compressed payloads received, once inflated",
+                    decompressed::sum);
+            metrics.summary("pingpong_compression_seconds", "CPU-bound time spent deflating one payload, including incompressible ones",
+                    compressTimes::snapshot);
+            metrics.summary("pingpong_decompression_seconds", "CPU-bound time spent inflating one payload",
+                    decompressTimes::snapshot);
+            Log.info("Compression of payloads from {} bytes at level {}, {}", THRESHOLD, LEVEL, ENABLED ? "offered to peers" : "only inflated");
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package common;
+
+/**
+ * Outcome of draining a node: how long it took and how much in-flight work made it or was dropped.
+ * What counts as a message depends on the node: pings, tasks, broadcasts or ring tokens.
+ */
+public final class DrainReport {
+    private final long elapsedNanos;
+    private final long completed;
+    private final long dropped;
+
+    /**
+     * Constructor to initialize the DrainReport.
+     * @param elapsedNanos Time from the start of the drain until the node was closed.
+     * @param completed Messages in flight when the drain started that completed before the deadline.
+     * @param dropped Messages still outstanding when the node was closed.
+     */
+    public DrainReport(long elapsedNanos, long completed, long dropped) {
+        this.elapsedNanos = elapsedNanos;
+        this.completed = completed;
+        this.dropped = dropped;
+    }
+
+    /**
+     * Returns the time from the start of the drain until the node was closed.
+     * @return The drain time in nanoseconds.
+     */
+    public long elapsedNanos() {
+        return elapsedNanos;
+    }
+
+    public long completed() {
+        return completed;
+    }
+
+    public long dropped() {
+        return dropped;
+    }
+
+    /**
+     * Tells whether everything in flight completed before the deadline.
+     * @return True if nothing was dropped.
+     */
+    public boolean isClean() {
+        return dropped == 0;
+    }
+
+    public String toString() {
+        return String.format("drained in %.1f ms, %d in-flight messages completed, %d dropped",
+                elapsedNanos / 1e6, completed, dropped);
+    }
+}
@@ -0,0 +1,27 @@
+package common;
+
+/**
+ * Decides from the arrival times of a peer's heartbeats whether the peer should be considered dead.
+ * Each monitored peer has its own detector; heartbeats are reported by the peer's reader and
+ * availability is queried by the liveness timer.
+ */
+public interface FailureDetector {
+    /**
+     * Records a heartbeat, or any other sign of life, from the peer.
+     * @param nowNanos Monotonic arrival time.
+     */
+    void heartbeat(long nowNanos);
+
+    /**
+     * Returns the arrival time of the last recorded heartbeat.
+     * @return Monotonic time of the last heartbeat.
+     */
+    long lastHeartbeat();
+
+    /**
+     * Tells whether the peer is still considered alive.
+     * @param nowNanos Current monotonic time.
+     * @return True if the peer is available.
+     */
+    boolean isAvailable(long nowNanos);
+}
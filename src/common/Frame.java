@@ -0,0 +1,190 @@
+package common;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A single message exchanged between a Master and its Workers.
+ * Frames are mutable so that readers and writers can reuse one instance per connection
+ * instead of allocating a new object for every message.
+ */
+public final class Frame {
+    // Message types shared by all messaging patterns
+    public static final byte DATA = 0;
+    public static final byte PING = 1;
+    public static final byte PONG = 2;
+    public static final byte BROADCAST = 3;
+    public static final byte ACK = 4;
+    public static final byte TOKEN = 5;
+    public static final byte HEARTBEAT = 6;
+    public static final byte HELLO = 7;
+    public static final byte PARENT = 8;
+    public static final byte SUCCESSOR = 9;
+    public static final byte TRANSFER = 10;
+    public static final byte CHUNK = 11;
+    public static final byte RESUME = 12;
+    public static final byte SESSION = 13;
+    public static final byte TASK = 14;
+    public static final byte RESULT = 15;
+    public static final byte SUBSCRIBE = 16;
+    public static final byte PUBLISH = 17;
+    public static final byte REPLAY = 18;
+    public static final byte LEAVE = 19;
+
+    private static final int INITIAL_PAYLOAD_CAPACITY = 256;
+
+    private byte type;
+    private byte flags;
+    private long sequence;
+    private long timestamp;
+    private ByteBuffer payload = ByteBuffer.allocate(INITIAL_PAYLOAD_CAPACITY);
+
+    /**
+     * Constructor to initialize an empty DATA frame.
+     */
+    public Frame() {
+        payload.flip();
+    }
+
+    /**
+     * Resets the header fields and clears the payload, keeping the payload buffer for reuse.
+     * @param type The message type.
+     * @param sequence The sequence id of the message.
+     * @param timestamp The send timestamp of the message.
+     * @return This frame.
+     */
+    public Frame set(byte type, long sequence, long timestamp) {
+        this.type = type;
+        this.flags = 0;
+        this.sequence = sequence;
+        this.timestamp = timestamp;
+        payload.clear().flip();
+        return this;
+    }
+
+    public byte type() {
+        return type;
+    }
+
+    public byte flags() {
+        return flags;
+    }
+
+    public Frame flags(byte flags) {
+        this.flags = flags;
+        return this;
+    }
+
+    public long sequence() {
+        return sequence;
+    }
+
+    public long timestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Returns the payload as a read-only view positioned at its first byte.
+     * The view is only valid until the frame is reused.
+     * @return The payload bytes.
+     */
+    public ByteBuffer payload() {
+        return payload.asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns the number of payload bytes.
+     * @return The payload length.
+     */
+    public int payloadLength() {
+        return payload.remaining();
+    }
+
+    /**
+     * Replaces the payload with the remaining bytes of the given buffer without consuming it.
+     * @param source The bytes to copy.
+     * @return This frame.
+     */
+    public Frame payload(ByteBuffer source) {
+        ensureCapacity(source.remaining());
+        payload.clear();
+        payload.put(source.duplicate());
+        payload.flip();
+        return this;
+    }
+
+    /**
+     * Replaces the payload with the UTF-8 bytes of the given text.
+     * @param text The text to store.
+     * @return This frame.
+     */
+    public Frame payload(String text) {
+        return payload(ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Replaces the payload with bytes read from a buffer; used by the codecs while decoding.
+     * @param source The buffer to read from, its position is advanced by length.
+     * @param length Number of bytes to copy.
+     */
+    void readPayload(ByteBuffer source, int length) {
+        ensureCapacity(length);
+        // Absolute bulk copy, so decoding allocates no view of the source
+        payload.clear().put(0, source, source.position(), length).limit(length);
+        source.position(source.position() + length);
+    }
+
+    /**
+     * Copies the payload to a buffer with an absolute bulk put, so encoding allocates no view of the payload.
+     * @param out The buffer to write into, its position is advanced by the payload length.
+     */
+    void writePayload(ByteBuffer out) {
+        int length = payload.remaining();
+        out.put(out.position(), payload, payload.position(), length);
+        out.position(out.position() + length);
+    }
+
+    /**
+     * Returns the heap buffer holding the payload from its position to its limit, without creating a view.
+     * Callers must only read it with absolute gets or through its array, and not keep it past the frame's reuse.
+     * @return The payload buffer.
+     */
+    ByteBuffer payloadBuffer() {
+        return payload;
+    }
+
+    /**
+     * Decodes the payload as UTF-8 text. Allocates, so keep it off the hot path.
+     * @return The payload as a string.
+     */
+    public String payloadAsString() {
+        return StandardCharsets.UTF_8.decode(payload.duplicate()).toString();
+    }
+
+    /**
+     * Compares the payload with the given ASCII bytes without allocating.
+     * @param ascii The expected bytes.
+     * @return True if the payload equals the given bytes.
+     */
+    public boolean payloadEquals(byte[] ascii) {
+        if (payload.remaining() != ascii.length) {
+            return false;
+        }
+        for (int i = 0; i < ascii.length; i++) {
+            if (payload.get(payload.position() + i) != ascii[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Grows the payload buffer so it can hold at least the given number of bytes.
+     * @param capacity The required capacity.
+     */
+    private void ensureCapacity(int capacity) {
+        if (payload.capacity() < capacity) {
+            payload = ByteBuffer.allocate(Math.max(capacity, payload.capacity() * 2));
+        }
+    }
+}
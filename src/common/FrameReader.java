@@ -0,0 +1,79 @@
+package common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads frames from a blocking stream through a single reusable buffer.
+ */
+public class FrameReader {
+    private static final int INITIAL_CAPACITY = 8 * 1024;
+
+    private final InputStream in;
+    private final Codec codec;
+    private final Metrics.Traffic traffic;
+    private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_CAPACITY).flip();
+
+    /**
+     * Constructor to initialize the FrameReader.
+     * @param in The stream to read from.
+     * @param codec The codec that splits the stream into frames.
+     */
+    public FrameReader(InputStream in, Codec codec) {
+        this(in, codec, null);
+    }
+
+    /**
+     * Constructor to initialize the FrameReader and count the frames it reads.
+     * @param in The stream to read from.
+     * @param codec The codec that splits the stream into frames.
+     * @param traffic Counters of the node, or null to count nothing.
+     */
+    public FrameReader(InputStream in, Codec codec, Metrics.Traffic traffic) {
+        this.in = in;
+        this.codec = codec;
+        this.traffic = traffic;
+    }
+
+    /**
+     * Blocks until the next frame has been read.
+     * @param frame The frame to fill.
+     * @return True if a frame was read, false if the stream ended.
+     * @throws IOException if an I/O error occurs or the stream is malformed.
+     */
+    public boolean read(Frame frame) throws IOException {
+        int start = buffer.position();
+        while (!codec.decode(buffer, frame)) {
+            buffer.compact();
+            if (!buffer.hasRemaining()) {
+                // The frame is larger than the buffer, grow it and keep reading
+                ByteBuffer bigger = ByteBuffer.allocate(buffer.capacity() * 2);
+                buffer.flip();
+                bigger.put(buffer);
+                buffer = bigger;
+            }
+            int n = in.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            if (n < 0) {
+                buffer.flip();
+                return false;
+            }
+            buffer.position(buffer.position() + n);
+            buffer.flip();
+            start = buffer.position();
+        }
+        if (traffic != null) {
+            traffic.received(buffer.position() - start);
+        }
+        return true;
+    }
+
+    /**
+     * Tells whether bytes that were already received are waiting to be decoded.
+     * Callers that defer their replies use this to write them once the burst they answer is consumed.
+     * @return True if the next read starts from buffered bytes.
+     */
+    public boolean hasBuffered() {
+        return buffer.hasRemaining();
+    }
+}
@@ -0,0 +1,227 @@
+package common;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Writes frames to a blocking stream through a single reusable buffer.
+ * Writes are serialized by a lock rather than a monitor, so a virtual thread blocked
+ * in a socket write does not pin its carrier thread.
+ *
+ * A frame is either written at once or deferred. Deferred frames collect in the buffer and go out
+ * together in one write: once they reach the batch size, on {@link #flush()}, or when the caller
+ * reports it is {@link #idle()}. With a linger configured an idle writer waits that long for more
+ * frames before writing, trading a few microseconds of latency for fewer, fuller segments.
+ */
+public class FrameWriter implements Flushable {
+    // Bytes of deferred frames that are written without waiting for the caller to become idle
+    public static final String BATCH_PROPERTY = "pingpong.write.batch";
+    // Microseconds an idle writer waits for more frames, 0 writes deferred frames as soon as the caller is idle
+    public static final String LINGER_PROPERTY = "pingpong.write.linger";
+
+    private static final int INITIAL_CAPACITY = 8 * 1024;
+    private static final int BATCH_BYTES = Integer.getInteger(BATCH_PROPERTY, 16 * 1024);
+    private static final long LINGER_NANOS = TimeUnit.MICROSECONDS.toNanos(Long.getLong(LINGER_PROPERTY, 0));
+
+    private final OutputStream out;
+    private final Codec codec;
+    private final Metrics.Traffic traffic;
+    private final ReentrantLock lock = new ReentrantLock();
+    // Deferred frames in write mode
+    private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_CAPACITY);
+    private boolean lingering;
+    // Failure of a flush on the linger thread, reported to the next caller
+    private IOException failure;
+
+    /**
+     * Constructor to initialize the FrameWriter.
+     * @param out The stream to write to.
+     * @param codec The codec that encodes the frames.
+     */
+    public FrameWriter(OutputStream out, Codec codec) {
+        this(out, codec, null);
+    }
+
+    /**
+     * Constructor to initialize the FrameWriter and count the frames it writes.
+     * @param out The stream to write to.
+     * @param codec The codec that encodes the frames.
+     * @param traffic Counters of the node, or null to count nothing.
+     */
+    public FrameWriter(OutputStream out, Codec codec, Metrics.Traffic traffic) {
+        this.out = out;
+        this.codec = codec;
+        this.traffic = traffic;
+    }
+
+    /**
+     * Encodes the frame and writes it to the stream together with any deferred frames.
+     * @param frame The frame to write.
+     * @throws IOException if an I/O error occurs.
+     */
+    public void write(Frame frame) throws IOException {
+        write(frame, true);
+    }
+
+    /**
+     * Encodes the frame and either writes it at once or defers it.
+     * @param frame The frame to write.
+     * @param flushNow True for latency-critical frames, false to let the frame wait for more.
+     * @throws IOException if an I/O error occurs.
+     */
+    public void write(Frame frame, boolean flushNow) throws IOException {
+        lock.lock();
+        try {
+            checkFailure();
+            int size = codec.encodedSize(frame);
+            if (buffer.remaining() < size) {
+                writeBuffered();
+                if (buffer.capacity() < size) {
+                    buffer = ByteBuffer.allocate(Math.max(size, buffer.capacity() * 2));
+                }
+            }
+            codec.encode(frame, buffer);
+            if (traffic != null) {
+                traffic.sent(1, size);
+            }
+            if (flushNow || buffer.position() >= BATCH_BYTES) {
+                flushLocked();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes a frame at once unless another write is in progress or frames are deferred, in which case
+     * it is skipped. Meant for heartbeats: traffic already on its way proves the connection alive, and a
+     * heartbeat must not wait behind a write that a peer which stopped reading keeps blocked.
+     * @param frame The frame to write.
+     * @return True if the frame was written, false if it was skipped.
+     * @throws IOException if an I/O error occurs.
+     */
+    public boolean tryWrite(Frame frame) throws IOException {
+        if (!lock.tryLock()) {
+            return false;
+        }
+        try {
+            checkFailure();
+            if (buffer.position() > 0) {
+                return false;
+            }
+            int size = codec.encodedSize(frame);
+            if (buffer.capacity() < size) {
+                buffer = ByteBuffer.allocate(Math.max(size, buffer.capacity() * 2));
+            }
+            codec.encode(frame, buffer);
+            if (traffic != null) {
+                traffic.sent(1, size);
+            }
+            flushLocked();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes every deferred frame.
+     * @throws IOException if an I/O error occurs.
+     */
+    public void flush() throws IOException {
+        lock.lock();
+        try {
+            checkFailure();
+            flushLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Tells the writer that the caller has nothing more to write for now, typically because its
+     * reader ran out of input. Deferred frames are written at once, or after the linger if one is set.
+     * @throws IOException if an I/O error occurs.
+     */
+    public void idle() throws IOException {
+        lock.lock();
+        try {
+            checkFailure();
+            if (buffer.position() == 0) {
+                return;
+            }
+            if (LINGER_NANOS == 0) {
+                flushLocked();
+            } else if (!lingering) {
+                lingering = true;
+                Linger.TIMER.schedule(this::lingerExpired, LINGER_NANOS, TimeUnit.NANOSECONDS);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes the frames deferred while the writer lingered.
+     */
+    private void lingerExpired() {
+        lock.lock();
+        try {
+            lingering = false;
+            if (failure == null) {
+                flushLocked();
+            }
+        } catch (IOException e) {
+            failure = e;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes the deferred frames and flushes the stream. The lock must be held.
+     * @throws IOException if an I/O error occurs.
+     */
+    private void flushLocked() throws IOException {
+        writeBuffered();
+        out.flush();
+    }
+
+    /**
+     * Hands the deferred frames to the stream without flushing it. The lock must be held.
+     * @throws IOException if an I/O error occurs.
+     */
+    private void writeBuffered() throws IOException {
+        if (buffer.position() > 0) {
+            out.write(buffer.array(), buffer.arrayOffset(), buffer.position());
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Rethrows the failure of a flush that ran on the linger thread.
+     * @throws IOException if a lingering flush failed.
+     */
+    private void checkFailure() throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Timer shared by every lingering writer, only started when a linger is configured.
+     */
+    private static final class Linger {
+        static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "frame-linger");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+}
@@ -0,0 +1,37 @@
+package common;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A Master or Worker that can be started and shut down without losing the work it has in flight.
+ *
+ * Draining stops taking on new work first: a Master stops accepting workers and generating pings,
+ * tokens or broadcasts, a Worker leaves its Master and stops reconnecting. It then waits up to a
+ * deadline for what is in flight to come back, flushes what is queued for peers and closes every
+ * connection. Whatever is still outstanding at the deadline is dropped and counted in the report.
+ * A node is drained at most once; later calls return the first report.
+ */
+public interface Lifecycle {
+    /**
+     * Starts the node and serves until it is drained.
+     * @throws IOException if the node cannot start.
+     */
+    void start() throws IOException;
+
+    /**
+     * Stops taking on new work, waits for the work in flight and closes the node.
+     * @param timeout How long to wait for outstanding work.
+     * @param unit Unit of the timeout.
+     * @return What was completed and dropped while draining.
+     */
+    DrainReport drain(long timeout, TimeUnit unit);
+
+    /**
+     * Closes the node right away, dropping whatever is in flight.
+     * @return What was dropped.
+     */
+    default DrainReport stop() {
+        return drain(0, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,234 @@
+package common;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Heartbeat based liveness tracking for the connections of a Master.
+ *
+ * Every registered peer has a failure detector and one timer on a shared {@link TimerWheel},
+ * so no thread is needed per peer. Anything read from a peer counts as a sign of life; a HEARTBEAT
+ * frame is only sent when a peer has been silent for half an interval, which workers echo back.
+ * Busy connections therefore carry no heartbeat traffic at all. Heartbeats are queued for one sender
+ * thread shared by all peers, so a write that blocks never holds up the timer that evicts dead peers. A peer whose detector gives up is
+ * unregistered and handed to the listener, typically to close the connection.
+ *
+ * Heartbeats need typed frames, so tracking is disabled with the text protocol; dead peers are then
+ * only noticed when reading or writing fails.
+ * @param <P> The type identifying a peer, such as its socket or connection.
+ */
+public class Liveness<P> {
+    // Milliseconds between liveness checks of each peer, 0 disables heartbeats
+    public static final String INTERVAL_PROPERTY = "pingpong.heartbeat.interval";
+    // phi (adaptive, default) or timeout
+    public static final String DETECTOR_PROPERTY = "pingpong.failure.detector";
+    // Milliseconds of silence after which the timeout detector declares a peer dead
+    public static final String TIMEOUT_PROPERTY = "pingpong.failure.timeout";
+
+    private static final long TICK_MILLIS = 10;
+    private static final int WHEEL_SLOTS = 512;
+    // Peers waiting for a heartbeat; when full, the next check of a peer tries again
+    private static final int HEARTBEAT_QUEUE = 4096;
+
+    private final Listener<P> listener;
+    private final boolean enabled;
+    private final long intervalNanos;
+    private final long timeoutNanos;
+    private final boolean phi;
+    private final Map<P, Peer> peers = new ConcurrentHashMap<>();
+    private TimerWheel wheel;
+    private BlockingQueue<Peer> heartbeats;
+    private Thread sender;
+
+    /**
+     * Constructor to initialize liveness tracking from the system properties.
+     * @param name Name of the timer thread.
+     * @param codec The codec used on the monitored connections.
+     * @param listener Sends heartbeats and handles dead peers.
+     */
+    public Liveness(String name, Codec codec, Listener<P> listener) {
+        this.listener = listener;
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(Long.getLong(INTERVAL_PROPERTY, 100));
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(Long.getLong(TIMEOUT_PROPERTY, 500));
+        this.phi = !System.getProperty(DETECTOR_PROPERTY, "phi").equalsIgnoreCase("timeout");
+        this.enabled = intervalNanos > 0 && !codec.isText();
+        if (enabled) {
+            this.wheel = new TimerWheel(name, TICK_MILLIS, TimeUnit.MILLISECONDS, WHEEL_SLOTS);
+            this.heartbeats = new ArrayBlockingQueue<>(HEARTBEAT_QUEUE);
+            this.sender = new Thread(this::sendHeartbeats, name + "-heartbeat");
+            this.sender.setDaemon(true);
+            this.sender.start();
+        }
+    }
+
+    /**
+     * Tells whether heartbeats are sent and peers can be declared dead.
+     * @return True if liveness tracking is active.
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Starts monitoring a peer.
+     * @param peer The peer to monitor.
+     */
+    public void register(P peer) {
+        if (!enabled) {
+            return;
+        }
+        long now = System.nanoTime();
+        FailureDetector detector = phi
+                ? new PhiAccrualDetector(PhiAccrualDetector.DEFAULT_THRESHOLD, intervalNanos, intervalNanos / 2, now)
+                : new TimeoutDetector(timeoutNanos, now);
+        Peer state = new Peer(peer, detector);
+        peers.put(peer, state);
+        schedule(state);
+    }
+
+    /**
+     * Records that something was read from a peer.
+     * Samples closer together than half an interval are skipped, so a busy connection does not
+     * teach the detector to expect sub-millisecond gaps.
+     * @param peer The peer that was heard from.
+     */
+    public void heard(P peer) {
+        Peer state = enabled ? peers.get(peer) : null;
+        if (state != null) {
+            long now = System.nanoTime();
+            if (now - state.detector.lastHeartbeat() >= intervalNanos / 2) {
+                state.detector.heartbeat(now);
+            }
+        }
+    }
+
+    /**
+     * Stops monitoring a peer, for example after it disconnected.
+     * @param peer The peer to forget.
+     */
+    public void unregister(P peer) {
+        Peer state = enabled ? peers.remove(peer) : null;
+        if (state != null) {
+            state.timeout.cancel();
+        }
+    }
+
+    /**
+     * Stops monitoring every peer, the timer thread and the heartbeat sender, for a Master that shuts down.
+     */
+    public void stop() {
+        peers.clear();
+        if (enabled) {
+            wheel.stop();
+            sender.interrupt();
+        }
+    }
+
+    /**
+     * Returns the number of monitored peers.
+     * @return The peer count.
+     */
+    public int size() {
+        return peers.size();
+    }
+
+    /**
+     * Schedules the next check of a peer.
+     * @param state The peer to check.
+     */
+    private void schedule(Peer state) {
+        state.timeout = wheel.schedule(() -> check(state), intervalNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Declares the peer dead if its detector gave up, otherwise probes it when it has been silent.
+     * @param state The peer to check.
+     */
+    private void check(Peer state) {
+        if (peers.get(state.peer) != state) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (!state.detector.isAvailable(now)) {
+            dead(state);
+            return;
+        }
+        if (now - state.detector.lastHeartbeat() >= intervalNanos / 2 && state.queued.compareAndSet(false, true)
+                && !heartbeats.offer(state)) {
+            state.queued.set(false);
+        }
+        schedule(state);
+    }
+
+    /**
+     * Sends the queued heartbeats one after the other until {@link #stop()} is called.
+     */
+    private void sendHeartbeats() {
+        try {
+            while (true) {
+                Peer state = heartbeats.take();
+                state.queued.set(false);
+                if (peers.get(state.peer) != state) {
+                    continue;
+                }
+                try {
+                    listener.sendHeartbeat(state.peer);
+                } catch (IOException e) {
+                    dead(state);
+                }
+            }
+        } catch (InterruptedException e) {
+            // Stopped
+        }
+    }
+
+    /**
+     * Removes a dead peer and notifies the listener once.
+     * @param state The dead peer.
+     */
+    private void dead(Peer state) {
+        if (peers.remove(state.peer, state)) {
+            listener.onDead(state.peer);
+        }
+    }
+
+    /**
+     * Callbacks invoked on the heartbeat sender and timer threads, shared by all peers; neither may block.
+     * @param <P> The type identifying a peer.
+     */
+    public interface Listener<P> {
+        /**
+         * Sends a HEARTBEAT frame to a silent peer, skipping it rather than waiting for a busy connection.
+         * @param peer The peer to probe.
+         * @throws IOException if the heartbeat cannot be sent; the peer is then considered dead.
+         */
+        void sendHeartbeat(P peer) throws IOException;
+
+        /**
+         * Handles a peer that is considered dead.
+         * @param peer The dead peer, already unregistered.
+         */
+        void onDead(P peer);
+    }
+
+    /**
+     * Monitoring state of one peer.
+     */
+    private class Peer {
+        final P peer;
+        final FailureDetector detector;
+        volatile TimerWheel.Timeout timeout;
+        // Set while the peer waits in the heartbeat queue, so it is queued once at most
+        final AtomicBoolean queued = new AtomicBoolean();
+
+        Peer(P peer, FailureDetector detector) {
+            this.peer = peer;
+            this.detector = detector;
+        }
+    }
+}
@@ -0,0 +1,306 @@
+package common;
+
+import java.io.PrintStream;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.Instant;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous console logging that keeps the I/O threads off the synchronized System.out.
+ *
+ * Each logging thread owns a single-producer ring of entries holding the message template and its
+ * arguments; a daemon thread drains all rings, formats the lines and prints them, so the logging
+ * thread only pays for a few field writes. A full ring drops the entry and counts it instead of
+ * blocking. Lines from different threads may be printed slightly out of order.
+ *
+ * Per-message lines are logged at DEBUG behind {@link #sampled()}, which costs one volatile read when
+ * DEBUG is off and lets only one in {@value #SAMPLE_PROPERTY} messages through when it is on.
+ * Templates use "{}" placeholders; a Throwable passed as the last argument is printed with its stack trace.
+ */
+public final class Log {
+    // Lowest level printed: debug, info, warn, error or off
+    public static final String LEVEL_PROPERTY = "pingpong.log.level";
+    // Print one in this many per-message DEBUG lines
+    public static final String SAMPLE_PROPERTY = "pingpong.log.sample";
+    private static final int RING_CAPACITY = 1024;
+    private static final long DRAIN_PERIOD_MILLIS = 5;
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("HH:mm:ss.SSS");
+
+    /**
+     * Log levels, from the most to the least verbose.
+     */
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR, OFF
+    }
+
+    private static volatile int threshold = Level.valueOf(
+            System.getProperty(LEVEL_PROPERTY, "info").toUpperCase(Locale.ROOT)).ordinal();
+    private static volatile int sample = Math.max(1, Integer.getInteger(SAMPLE_PROPERTY, 1));
+    private static final Queue<Ring> rings = new ConcurrentLinkedQueue<>();
+    private static final ThreadLocal<Ring> ring = ThreadLocal.withInitial(Log::register);
+    private static final Thread drainer = new Thread(Log::drainLoop, "log-drainer");
+    private static volatile boolean running = true;
+
+    static {
+        drainer.setDaemon(true);
+        drainer.start();
+        // Print what is still queued when the JVM exits
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            // Nodes draining at the same time still log their reports
+            Shutdown.awaitDrained();
+            running = false;
+            LockSupport.unpark(drainer);
+            try {
+                drainer.join(TimeUnit.SECONDS.toMillis(1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "log-shutdown"));
+    }
+
+    private Log() {
+    }
+
+    /**
+     * Changes the lowest level printed, for example to silence a benchmark with {@link Level#OFF}.
+     * @param level The new level.
+     */
+    public static void setLevel(Level level) {
+        threshold = level.ordinal();
+    }
+
+    /**
+     * Changes how many per-message DEBUG lines are skipped for each one printed.
+     * @param oneIn Print one in this many; 1 prints all of them.
+     */
+    public static void setSample(int oneIn) {
+        sample = Math.max(1, oneIn);
+    }
+
+    /**
+     * Tells whether lines of a level are printed.
+     * @param level The level to check.
+     * @return True if the level is enabled.
+     */
+    public static boolean isEnabled(Level level) {
+        return level.ordinal() >= threshold;
+    }
+
+    /**
+     * Guards a per-message DEBUG line: false whenever DEBUG is off, otherwise true for one in
+     * {@value #SAMPLE_PROPERTY} calls on the calling thread.
+     * @return True if the caller should log the message.
+     */
+    public static boolean sampled() {
+        if (threshold > Level.DEBUG.ordinal()) {
+            return false;
+        }
+        int oneIn = sample;
+        return oneIn == 1 || ring.get().sampleCount++ % oneIn == 0;
+    }
+
+    /**
+     * Logs a line at DEBUG.
+     * @param template The message with "{}" placeholders.
+     * @param args Values for the placeholders, optionally followed by a Throwable.
+     */
+    public static void debug(String template, Object... args) {
+        log(Level.DEBUG, template, args);
+    }
+
+    /**
+     * Logs a line at INFO.
+     * @param template The message with "{}" placeholders.
+     * @param args Values for the placeholders, optionally followed by a Throwable.
+     */
+    public static void info(String template, Object... args) {
+        log(Level.INFO, template, args);
+    }
+
+    /**
+     * Logs a line at WARN.
+     * @param template The message with "{}" placeholders.
+     * @param args Values for the placeholders, optionally followed by a Throwable.
+     */
+    public static void warn(String template, Object... args) {
+        log(Level.WARN, template, args);
+    }
+
+    /**
+     * Logs a line at ERROR.
+     * @param template The message with "{}" placeholders.
+     * @param args Values for the placeholders, optionally followed by a Throwable.
+     */
+    public static void error(String template, Object... args) {
+        log(Level.ERROR, template, args);
+    }
+
+    /**
+     * Queues a line on the calling thread's ring if its level is enabled.
+     * The arguments are formatted later on the drainer thread, so they must not change afterwards.
+     * @param level Level of the line.
+     * @param template The message with "{}" placeholders.
+     * @param args Values for the placeholders, optionally followed by a Throwable.
+     */
+    public static void log(Level level, String template, Object... args) {
+        if (level.ordinal() >= threshold && level != Level.OFF) {
+            ring.get().offer(level, template, args);
+        }
+    }
+
+    /**
+     * Creates and registers the ring of the calling thread.
+     * @return The new ring.
+     */
+    private static Ring register() {
+        Ring created = new Ring(Thread.currentThread());
+        rings.add(created);
+        return created;
+    }
+
+    /**
+     * Drains the rings until the JVM shuts down, then once more.
+     */
+    private static void drainLoop() {
+        StringBuilder line = new StringBuilder(256);
+        while (running) {
+            if (!drainAll(line)) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(DRAIN_PERIOD_MILLIS));
+            }
+        }
+        drainAll(line);
+    }
+
+    /**
+     * Prints the queued lines of every ring and forgets the rings of threads that ended.
+     * @param line Reusable builder for formatting.
+     * @return True if anything was printed.
+     */
+    private static boolean drainAll(StringBuilder line) {
+        boolean printed = false;
+        PrintStream out = System.out;
+        PrintStream err = System.err;
+        Iterator<Ring> iterator = rings.iterator();
+        while (iterator.hasNext()) {
+            Ring next = iterator.next();
+            boolean alive = next.owner.isAlive();
+            printed |= next.drain(line, out, err);
+            if (!alive) {
+                iterator.remove();
+            }
+        }
+        if (printed) {
+            out.flush();
+            err.flush();
+        }
+        return printed;
+    }
+
+    /**
+     * Appends a template with its placeholders replaced by the arguments.
+     * @param line The builder to append to.
+     * @param template The message with "{}" placeholders.
+     * @param args Values for the placeholders; extra values are ignored.
+     */
+    static void format(StringBuilder line, String template, Object[] args) {
+        int start = 0;
+        int arg = 0;
+        int placeholder;
+        while (arg < args.length && (placeholder = template.indexOf("{}", start)) >= 0) {
+            line.append(template, start, placeholder).append(args[arg++]);
+            start = placeholder + 2;
+        }
+        line.append(template, start, template.length());
+    }
+
+    /**
+     * The entries queued by one thread. Only the owner offers and only the drainer drains.
+     */
+    private static final class Ring {
+        private final Thread owner;
+        private final Entry[] entries = new Entry[RING_CAPACITY];
+        // Next position the owner writes and the drainer reads
+        private final AtomicLong tail = new AtomicLong();
+        private final AtomicLong head = new AtomicLong();
+        // Entries lost to a full ring, only written by the owner
+        private final AtomicLong dropped = new AtomicLong();
+        // Only touched by the owner
+        private int sampleCount;
+        // Only touched by the drainer
+        private long reportedDrops;
+
+        Ring(Thread owner) {
+            this.owner = owner;
+        }
+
+        void offer(Level level, String template, Object[] args) {
+            long position = tail.get();
+            if (position - head.get() >= entries.length) {
+                dropped.lazySet(dropped.get() + 1);
+                return;
+            }
+            int index = (int) (position & (entries.length - 1));
+            Entry entry = entries[index];
+            if (entry == null) {
+                // Entries are created on first use so idle threads only cost the array
+                entry = entries[index] = new Entry();
+            }
+            entry.millis = System.currentTimeMillis();
+            entry.level = level;
+            entry.template = template;
+            entry.args = args;
+            tail.lazySet(position + 1);
+        }
+
+        boolean drain(StringBuilder line, PrintStream out, PrintStream err) {
+            boolean printed = false;
+            long lost = dropped.get() - reportedDrops;
+            if (lost > 0) {
+                reportedDrops += lost;
+                err.println(LocalTime.now().format(TIME) + " WARN  [" + owner.getName() + "] " + lost + " log lines dropped");
+                printed = true;
+            }
+            long end = tail.get();
+            for (long position = head.get(); position < end; position++) {
+                Entry entry = entries[(int) (position & (entries.length - 1))];
+                line.setLength(0);
+                TIME.formatTo(Instant.ofEpochMilli(entry.millis).atZone(ZoneId.systemDefault()), line);
+                line.append(' ').append(entry.level);
+                for (int i = entry.level.name().length(); i < 5; i++) {
+                    line.append(' ');
+                }
+                line.append(" [").append(owner.getName()).append("] ");
+                format(line, entry.template, entry.args);
+                PrintStream stream = entry.level.compareTo(Level.WARN) >= 0 ? err : out;
+                stream.println(line);
+                Object last = entry.args.length == 0 ? null : entry.args[entry.args.length - 1];
+                if (last instanceof Throwable) {
+                    ((Throwable) last).printStackTrace(stream);
+                }
+                entry.template = null;
+                entry.args = null;
+                head.lazySet(position + 1);
+                printed = true;
+            }
+            return printed;
+        }
+    }
+
+    /**
+     * One queued line.
+     */
+    private static final class Entry {
+        private long millis;
+        private Level level;
+        private String template;
+        private Object[] args;
+    }
+}
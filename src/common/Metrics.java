@@ -0,0 +1,390 @@
+package common;
+
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * The counters, gauges and latency summaries of one node, labelled with its pattern, role and node id.
+ *
+ * Counters are LongAdders, so the I/O threads that update them never contend on one cache line;
+ * gauges and summaries are read from the node's own state only when scraped. Every registry is
+ * exported as an MBean under "pingpong:type=Metrics", and when {@value #PORT_PROPERTY} is set all
+ * registries of the JVM are served in the Prometheus text format at http://127.0.0.1:port/metrics.
+ */
+public class Metrics {
+    // Loopback port of the Prometheus endpoint, 0 disables it
+    public static final String PORT_PROPERTY = "pingpong.metrics.port";
+    private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+    private static final List<Metrics> registries = new CopyOnWriteArrayList<>();
+    private static final AtomicInteger nodeIds = new AtomicInteger();
+    private static HttpServer server;
+
+    private final String labels;
+    private final Map<String, Family> families = new ConcurrentSkipListMap<>();
+    private final ObjectName objectName;
+
+    /**
+     * Constructor to initialize the Metrics of a node; use {@link #register} to export them.
+     * @param pattern The communication pattern, such as round_robin.
+     * @param role master or worker.
+     * @param node Identifies the node among those of the same pattern and role.
+     */
+    private Metrics(String pattern, String role, String node) {
+        this.labels = "pattern=\"" + escape(pattern) + "\",role=\"" + escape(role) + "\",node=\"" + escape(node) + "\"";
+        try {
+            this.objectName = new ObjectName("pingpong:type=Metrics,pattern=" + ObjectName.quote(pattern)
+                    + ",role=" + ObjectName.quote(role) + ",node=" + ObjectName.quote(node));
+        } catch (JMException e) {
+            throw new IllegalArgumentException("Invalid metrics labels " + labels, e);
+        }
+    }
+
+    /**
+     * Creates the Metrics of a node and exports them over JMX and, if configured, HTTP.
+     * @param pattern The communication pattern, such as round_robin.
+     * @param role master or worker.
+     * @param node Identifies the node among those of the same pattern and role, see {@link #nextNodeId()}.
+     * @return The new registry.
+     */
+    public static Metrics register(String pattern, String role, String node) {
+        Metrics metrics = new Metrics(pattern, role, node);
+        registries.add(metrics);
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics.new Bean(), metrics.objectName);
+        } catch (JMException e) {
+            Log.warn("Could not export {} over JMX: {}", metrics.objectName, e.getMessage());
+        }
+        startServer();
+        return metrics;
+    }
+
+    /**
+     * Returns a node id that is unique within the JVM, for nodes that have no natural one.
+     * @return The id.
+     */
+    public static String nextNodeId() {
+        return Integer.toString(nodeIds.getAndIncrement());
+    }
+
+    /**
+     * Starts the shared HTTP endpoint once, if a port is configured.
+     */
+    private static synchronized void startServer() {
+        int port = Integer.getInteger(PORT_PROPERTY, 0);
+        if (server != null || port <= 0) {
+            return;
+        }
+        try {
+            server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+            server.createContext("/metrics", exchange -> {
+                byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            server.setExecutor(null);
+            server.start();
+            Log.info("Metrics are served at http://{}:{}/metrics", server.getAddress().getHostString(), port);
+        } catch (IOException e) {
+            Log.warn("Could not serve metrics on port {}: {}", port, e.getMessage());
+        }
+    }
+
+    /**
+     * Registers a counter that the caller increments.
+     * @param name Metric name, ending in _total.
+     * @param help Description of the metric.
+     * @return The counter.
+     */
+    public LongAdder counter(String name, String help) {
+        LongAdder adder = new LongAdder();
+        counter(name, help, adder::sum);
+        return adder;
+    }
+
+    /**
+     * Registers a counter kept elsewhere.
+     * @param name Metric name, ending in _total.
+     * @param help Description of the metric.
+     * @param value Reads the current count.
+     */
+    public void counter(String name, String help, LongSupplier value) {
+        add(name, help, "counter", sink -> sink.sample(name, "", value.getAsLong()));
+    }
+
+    /**
+     * Registers a gauge.
+     * @param name Metric name.
+     * @param help Description of the metric.
+     * @param value Reads the current value.
+     */
+    public void gauge(String name, String help, LongSupplier value) {
+        add(name, help, "gauge", sink -> sink.sample(name, "", value.getAsLong()));
+    }
+
+    /**
+     * Registers a gauge with one value per connection or other labelled entity.
+     * @param name Metric name.
+     * @param help Description of the metric.
+     * @param label Name of the label that tells the values apart.
+     * @param values Reads the current values by label value.
+     */
+    public void gauge(String name, String help, String label, Supplier<Map<String, ? extends Number>> values) {
+        add(name, help, "gauge", sink -> {
+            for (Map.Entry<String, ? extends Number> entry : values.get().entrySet()) {
+                sink.sample(name, label + "=\"" + escape(entry.getKey()) + "\"", entry.getValue().doubleValue());
+            }
+        });
+    }
+
+    /**
+     * Registers a summary of durations recorded in nanoseconds, exported in seconds.
+     * @param name Metric name, ending in _seconds.
+     * @param help Description of the metric.
+     * @param snapshot Takes a snapshot of the histogram.
+     */
+    public void summary(String name, String help, Supplier<Histogram.Snapshot> snapshot) {
+        add(name, help, "summary", sink -> summarize(sink, name, "", snapshot.get()));
+    }
+
+    /**
+     * Registers summaries of durations recorded in nanoseconds, one per labelled entity.
+     * @param name Metric name, ending in _seconds.
+     * @param help Description of the metric.
+     * @param label Name of the label that tells the summaries apart.
+     * @param snapshots Takes a snapshot of each histogram, by label value.
+     */
+    public void summary(String name, String help, String label, Supplier<Map<String, Histogram.Snapshot>> snapshots) {
+        add(name, help, "summary", sink -> {
+            for (Map.Entry<String, Histogram.Snapshot> entry : snapshots.get().entrySet()) {
+                summarize(sink, name, label + "=\"" + escape(entry.getKey()) + "\"", entry.getValue());
+            }
+        });
+    }
+
+    /**
+     * Registers the message and byte counters of a node's connections.
+     * @return The counters to update.
+     */
+    public Traffic traffic() {
+        return new Traffic(
+                counter("pingpong_messages_received_total", "Frames received"),
+                counter("pingpong_bytes_received_total", "Bytes of the frames received"),
+                counter("pingpong_messages_sent_total", "Frames sent"),
+                counter("pingpong_bytes_sent_total", "Bytes of the frames sent"));
+    }
+
+    /**
+     * Stops exporting the node's metrics, for example when it shuts down.
+     */
+    public void close() {
+        registries.remove(this);
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            // Never exported or already removed
+        }
+    }
+
+    /**
+     * Renders the metrics of every registry in the Prometheus text format, one HELP and TYPE per name.
+     * @return The exposition text.
+     */
+    public static String scrape() {
+        Map<String, List<Metrics>> byName = new TreeMap<>();
+        for (Metrics metrics : registries) {
+            for (String name : metrics.families.keySet()) {
+                byName.computeIfAbsent(name, n -> new ArrayList<>()).add(metrics);
+            }
+        }
+        StringBuilder out = new StringBuilder();
+        for (Map.Entry<String, List<Metrics>> entry : byName.entrySet()) {
+            Family first = entry.getValue().get(0).families.get(entry.getKey());
+            out.append("# HELP ").append(entry.getKey()).append(' ').append(first.help).append('\n');
+            out.append("# TYPE ").append(entry.getKey()).append(' ').append(first.type).append('\n');
+            for (Metrics metrics : entry.getValue()) {
+                metrics.families.get(entry.getKey()).collector.collect((name, extra, value) -> {
+                    out.append(name).append('{').append(metrics.labels);
+                    if (!extra.isEmpty()) {
+                        out.append(',').append(extra);
+                    }
+                    out.append("} ").append(format(value)).append('\n');
+                });
+            }
+        }
+        return out.toString();
+    }
+
+    /**
+     * Reads the current value of every sample of this registry, keyed by name and extra labels.
+     * @return The samples in name order.
+     */
+    Map<String, Double> samples() {
+        Map<String, Double> samples = new LinkedHashMap<>();
+        for (Family family : families.values()) {
+            family.collector.collect((name, extra, value) -> samples.put(extra.isEmpty() ? name : name + "{" + extra + "}", value));
+        }
+        return samples;
+    }
+
+    private void add(String name, String help, String type, Collector collector) {
+        if (families.putIfAbsent(name, new Family(help, type, collector)) != null) {
+            throw new IllegalArgumentException("Metric " + name + " is already registered");
+        }
+    }
+
+    private static void summarize(Sink sink, String name, String labels, Histogram.Snapshot snapshot) {
+        String separator = labels.isEmpty() ? "" : ",";
+        for (double quantile : QUANTILES) {
+            sink.sample(name, labels + separator + "quantile=\"" + quantile + "\"", snapshot.valueAtPercentile(quantile * 100) / 1e9);
+        }
+        sink.sample(name + "_sum", labels, snapshot.sum() / 1e9);
+        sink.sample(name + "_count", labels, snapshot.count());
+    }
+
+    private static String format(double value) {
+        return value == Math.rint(value) && Math.abs(value) < 1e15 ? Long.toString((long) value) : Double.toString(value);
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /**
+     * Message and byte counters of a node's connections, updated by the readers and writers.
+     */
+    public static final class Traffic {
+        private final LongAdder messagesIn;
+        private final LongAdder bytesIn;
+        private final LongAdder messagesOut;
+        private final LongAdder bytesOut;
+
+        private Traffic(LongAdder messagesIn, LongAdder bytesIn, LongAdder messagesOut, LongAdder bytesOut) {
+            this.messagesIn = messagesIn;
+            this.bytesIn = bytesIn;
+            this.messagesOut = messagesOut;
+            this.bytesOut = bytesOut;
+        }
+
+        /**
+         * Counts a received frame.
+         * @param bytes Encoded size of the frame.
+         */
+        public void received(int bytes) {
+            messagesIn.increment();
+            bytesIn.add(bytes);
+        }
+
+        /**
+         * Counts sent frames.
+         * @param messages Number of frames.
+         * @param bytes Encoded size of the frames.
+         */
+        public void sent(int messages, long bytes) {
+            messagesOut.add(messages);
+            bytesOut.add(bytes);
+        }
+    }
+
+    /**
+     * Receives the samples of a metric.
+     */
+    private interface Sink {
+        void sample(String name, String labels, double value);
+    }
+
+    /**
+     * Produces the samples of a metric when it is scraped.
+     */
+    private interface Collector {
+        void collect(Sink sink);
+    }
+
+    /**
+     * A registered metric: its description, Prometheus type and sample source.
+     */
+    private static final class Family {
+        private final String help;
+        private final String type;
+        private final Collector collector;
+
+        Family(String help, String type, Collector collector) {
+            this.help = help;
+            this.type = type;
+            this.collector = collector;
+        }
+    }
+
+    /**
+     * Read-only view of the registry for JMX clients, one attribute per sample.
+     */
+    private class Bean implements DynamicMBean {
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Double value = samples().get(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value;
+        }
+
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+        }
+
+        public AttributeList getAttributes(String[] attributes) {
+            Map<String, Double> samples = samples();
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                if (samples.containsKey(attribute)) {
+                    list.add(new Attribute(attribute, samples.get(attribute)));
+                }
+            }
+            return list;
+        }
+
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(actionName));
+        }
+
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            for (String name : samples().keySet()) {
+                attributes.add(new MBeanAttributeInfo(name, Double.class.getName(), name, true, false, false));
+            }
+            return new MBeanInfo(Metrics.class.getName(), "Metrics of " + labels,
+                    attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+    }
+}
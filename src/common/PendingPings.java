@@ -0,0 +1,67 @@
+package common;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Send times of messages that are still waiting for their reply, keyed by sequence id.
+ * Slots are addressed by sequence modulo capacity, so lookups never allocate or lock;
+ * an entry is overwritten once capacity newer messages have been sent.
+ */
+public class PendingPings {
+    private static final long EMPTY = -1;
+
+    private final int capacity;
+    private final AtomicLongArray sequences;
+    private final AtomicLongArray sendTimes;
+
+    /**
+     * Constructor to initialize PendingPings.
+     * @param capacity Maximum number of outstanding messages that can be matched.
+     */
+    public PendingPings(int capacity) {
+        this.capacity = capacity;
+        this.sequences = new AtomicLongArray(capacity);
+        this.sendTimes = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, EMPTY);
+        }
+    }
+
+    /**
+     * Remembers the send time of a message.
+     * @param sequence The sequence id of the message.
+     * @param sendNanos The monotonic send time from System.nanoTime().
+     */
+    public void register(long sequence, long sendNanos) {
+        int slot = slot(sequence);
+        sendTimes.set(slot, sendNanos);
+        // Publishing the sequence last makes the send time visible to readers that see it
+        sequences.set(slot, sequence);
+    }
+
+    /**
+     * Removes a message and returns its send time.
+     * @param sequence The sequence id of the reply.
+     * @return The send time, or -1 if the message is unknown, already completed or overwritten.
+     */
+    public long complete(long sequence) {
+        int slot = slot(sequence);
+        long sendNanos = sendTimes.get(slot);
+        return sequences.compareAndSet(slot, sequence, EMPTY) ? sendNanos : EMPTY;
+    }
+
+    /**
+     * Returns the send time of a message without removing it, for messages answered by many workers.
+     * @param sequence The sequence id of the reply.
+     * @return The send time, or -1 if the message is unknown or overwritten.
+     */
+    public long sendTime(long sequence) {
+        int slot = slot(sequence);
+        long sendNanos = sendTimes.get(slot);
+        return sequences.get(slot) == sequence ? sendNanos : EMPTY;
+    }
+
+    private int slot(long sequence) {
+        return (int) Math.floorMod(sequence, (long) capacity);
+    }
+}
@@ -0,0 +1,89 @@
+package common;
+
+/**
+ * Phi accrual failure detector (Hayashibara et al.).
+ * Instead of a fixed timeout it keeps a window of recent heartbeat inter-arrival times and turns
+ * the current silence into a suspicion level phi = -log10(P(a heartbeat arrives later than now)),
+ * assuming normally distributed intervals. The peer is considered dead once phi exceeds the threshold,
+ * so the detector adapts to the actual heartbeat rate and jitter of each connection.
+ */
+public class PhiAccrualDetector implements FailureDetector {
+    // Suspicion level at which a peer is considered dead, a 1 in 10^8 chance of a false positive
+    public static final double DEFAULT_THRESHOLD = 8.0;
+    private static final int WINDOW = 64;
+
+    private final double threshold;
+    private final double minStdDeviation;
+    private final long[] intervals = new long[WINDOW];
+    private int count;
+    private int next;
+    private double sum;
+    private double sumOfSquares;
+    private long lastHeartbeat;
+
+    /**
+     * Constructor to initialize the PhiAccrualDetector.
+     * @param threshold Suspicion level at which the peer is considered dead.
+     * @param expectedIntervalNanos Expected time between heartbeats, used until real samples arrive.
+     * @param minStdDeviationNanos Lower bound for the standard deviation, so a very regular peer
+     *                             is not declared dead by a small delay.
+     * @param nowNanos Monotonic time at which monitoring starts.
+     */
+    public PhiAccrualDetector(double threshold, long expectedIntervalNanos, long minStdDeviationNanos, long nowNanos) {
+        this.threshold = threshold;
+        this.minStdDeviation = minStdDeviationNanos;
+        this.lastHeartbeat = nowNanos;
+        add(expectedIntervalNanos);
+    }
+
+    public synchronized void heartbeat(long nowNanos) {
+        add(nowNanos - lastHeartbeat);
+        lastHeartbeat = nowNanos;
+    }
+
+    public synchronized long lastHeartbeat() {
+        return lastHeartbeat;
+    }
+
+    public boolean isAvailable(long nowNanos) {
+        return phi(nowNanos) < threshold;
+    }
+
+    /**
+     * Computes the suspicion level for the current silence.
+     * @param nowNanos Current monotonic time.
+     * @return The phi value, 0 right after a heartbeat and growing while the peer is silent.
+     */
+    public synchronized double phi(long nowNanos) {
+        double elapsed = nowNanos - lastHeartbeat;
+        double mean = sum / count;
+        double variance = Math.max(sumOfSquares / count - mean * mean, 0);
+        double stdDeviation = Math.max(Math.sqrt(variance), minStdDeviation);
+
+        // Logistic approximation of the normal cumulative distribution function
+        double y = (elapsed - mean) / stdDeviation;
+        double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+        if (elapsed > mean) {
+            return -Math.log10(e / (1.0 + e));
+        }
+        return -Math.log10(1.0 - 1.0 / (1.0 + e));
+    }
+
+    /**
+     * Adds an inter-arrival time to the window, evicting the oldest once the window is full.
+     * @param interval The interval in nanoseconds.
+     */
+    private void add(long interval) {
+        if (count == WINDOW) {
+            long evicted = intervals[next];
+            sum -= evicted;
+            sumOfSquares -= (double) evicted * evicted;
+        } else {
+            count++;
+        }
+        intervals[next] = interval;
+        next = (next + 1) % WINDOW;
+        sum += interval;
+        sumOfSquares += (double) interval * interval;
+    }
+}
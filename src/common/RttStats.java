@@ -0,0 +1,189 @@
+package common;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Round-trip time statistics of a Master: a global histogram, one histogram per worker and
+ * message counters. All recording paths are lock-free, so handler threads never wait on each other.
+ */
+public class RttStats {
+    /**
+     * Name of the system property holding the stats dump period in seconds; 0 disables the dump.
+     */
+    public static final String DUMP_PERIOD_PROPERTY = "pingpong.stats.period";
+
+    // Track up to about 68 seconds; the global histogram is finer than the per-worker ones
+    private static final long HIGHEST_TRACKABLE_NANOS = 1L << 36;
+    private static final int GLOBAL_PRECISION_BITS = 7;
+    private static final int WORKER_PRECISION_BITS = 5;
+
+    private final Histogram global = new Histogram(GLOBAL_PRECISION_BITS, HIGHEST_TRACKABLE_NANOS);
+    private final Map<String, Histogram> perWorker = new ConcurrentHashMap<>();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder unmatched = new LongAdder();
+    private final long startNanos = System.nanoTime();
+
+    /**
+     * Returns the dump period selected by the {@value #DUMP_PERIOD_PROPERTY} system property.
+     * @return The period in seconds, 10 by default.
+     */
+    public static long configuredDumpPeriodSeconds() {
+        return Long.getLong(DUMP_PERIOD_PROPERTY, 10);
+    }
+
+    /**
+     * Counts messages sent that expect a reply.
+     * @param count Number of messages sent.
+     */
+    public void sent(int count) {
+        sent.add(count);
+    }
+
+    /**
+     * Records the round-trip time of a reply.
+     * @param worker Identifier of the worker that replied.
+     * @param rttNanos The round-trip time in nanoseconds.
+     */
+    public void record(String worker, long rttNanos) {
+        received.increment();
+        global.record(rttNanos);
+        perWorker.computeIfAbsent(worker, w -> new Histogram(WORKER_PRECISION_BITS, HIGHEST_TRACKABLE_NANOS)).record(rttNanos);
+    }
+
+    /**
+     * Counts a reply whose sequence id could not be matched to a sent message.
+     */
+    public void unmatched() {
+        unmatched.increment();
+    }
+
+    /**
+     * Forgets the histogram of a worker that has disconnected.
+     * @param worker Identifier of the worker.
+     */
+    public void remove(String worker) {
+        perWorker.remove(worker);
+    }
+
+    /**
+     * Returns the number of recorded replies without taking a snapshot.
+     * @return The number of replies recorded so far.
+     */
+    public long receivedCount() {
+        return received.sum();
+    }
+
+    /**
+     * Takes a snapshot of the global and per-worker statistics.
+     * @return The snapshot.
+     */
+    public Snapshot snapshot() {
+        Map<String, Histogram.Snapshot> workers = new TreeMap<>();
+        for (Map.Entry<String, Histogram> entry : perWorker.entrySet()) {
+            workers.put(entry.getKey(), entry.getValue().snapshot());
+        }
+        return new Snapshot(global.snapshot(), workers, sent.sum(), received.sum(), unmatched.sum(),
+                System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Exports the message counters and round-trip times through a node's metrics.
+     * @param metrics The metrics of the Master.
+     */
+    public void register(Metrics metrics) {
+        metrics.counter("pingpong_requests_sent_total", "Messages sent that expect a reply", sent::sum);
+        metrics.counter("pingpong_replies_total", "Replies matched to the message they answer", received::sum);
+        metrics.counter("pingpong_replies_unmatched_total", "Replies that matched no sent message", unmatched::sum);
+        metrics.summary("pingpong_rtt_seconds", "Round-trip time over all workers", global::snapshot);
+        metrics.summary("pingpong_worker_rtt_seconds", "Round-trip time per worker", "worker", () -> snapshot().perWorker());
+    }
+
+    /**
+     * Logs a summary at a fixed period on the given scheduler.
+     * @param scheduler The scheduler that runs the dump.
+     * @param periodSeconds The period in seconds; nothing is scheduled if it is not positive.
+     */
+    public void dumpEvery(ScheduledExecutorService scheduler, long periodSeconds) {
+        if (periodSeconds > 0) {
+            scheduler.scheduleAtFixedRate(() -> Log.info("{}", snapshot()), periodSeconds, periodSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Point-in-time view of the statistics.
+     */
+    public static class Snapshot {
+        private final Histogram.Snapshot global;
+        private final Map<String, Histogram.Snapshot> perWorker;
+        private final long sent;
+        private final long received;
+        private final long unmatched;
+        private final long elapsedNanos;
+
+        Snapshot(Histogram.Snapshot global, Map<String, Histogram.Snapshot> perWorker, long sent, long received,
+                 long unmatched, long elapsedNanos) {
+            this.global = global;
+            this.perWorker = perWorker;
+            this.sent = sent;
+            this.received = received;
+            this.unmatched = unmatched;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public Histogram.Snapshot global() {
+            return global;
+        }
+
+        public Map<String, Histogram.Snapshot> perWorker() {
+            return perWorker;
+        }
+
+        public long sent() {
+            return sent;
+        }
+
+        public long received() {
+            return received;
+        }
+
+        public long unmatched() {
+            return unmatched;
+        }
+
+        /**
+         * Returns the average number of replies per second since the statistics were created.
+         * @return Replies per second.
+         */
+        public double throughput() {
+            return elapsedNanos == 0 ? 0 : received * 1e9 / elapsedNanos;
+        }
+
+        public String toString() {
+            StringBuilder out = new StringBuilder();
+            out.append(String.format("RTT stats: sent=%d received=%d unmatched=%d throughput=%.1f/s%n",
+                    sent, received, unmatched, throughput()));
+            out.append("  global ").append(format(global));
+            for (Map.Entry<String, Histogram.Snapshot> entry : perWorker.entrySet()) {
+                out.append(System.lineSeparator()).append("  ").append(entry.getKey()).append(' ').append(format(entry.getValue()));
+            }
+            return out.toString();
+        }
+
+        /**
+         * Formats the usual percentiles of a histogram in microseconds.
+         * @param h The histogram snapshot.
+         * @return The formatted line.
+         */
+        private static String format(Histogram.Snapshot h) {
+            return String.format("n=%d p50=%.1fus p99=%.1fus p999=%.1fus max=%.1fus",
+                    h.count(), h.valueAtPercentile(50) / 1e3, h.valueAtPercentile(99) / 1e3,
+                    h.valueAtPercentile(99.9) / 1e3, h.max() / 1e3);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package common;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Worker sessions a Master remembers across reconnects.
+ *
+ * A worker names itself with an id that outlives its connections and sends it in a SESSION frame
+ * as soon as it connects. The Master keeps whatever it built up for the worker under that id, so a
+ * worker that comes back within the TTL picks up its old state instead of registering from scratch.
+ * Sessions without a connection for longer than the TTL are forgotten.
+ *
+ * @param <S> The per-worker state.
+ */
+public class Sessions<S> {
+    // Milliseconds a disconnected worker's session is kept for it to resume
+    public static final String TTL_PROPERTY = "pingpong.session.ttl";
+    // Fixed id of the worker, by default a random one per worker
+    public static final String WORKER_ID_PROPERTY = "pingpong.worker.id";
+    private static final long SWEEP_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final Map<String, Session<S>> sessions = new HashMap<>();
+    private final long ttlNanos;
+    private final Consumer<S> onExpire;
+    private final LongAdder resumed = new LongAdder();
+    private long lastSweepNanos = System.nanoTime();
+
+    /**
+     * Constructor to initialize the Sessions with the TTL from the {@value #TTL_PROPERTY} property.
+     * @param onExpire Releases the state of a session that was not resumed in time; may be null.
+     */
+    public Sessions(Consumer<S> onExpire) {
+        this(Long.getLong(TTL_PROPERTY, 60_000), TimeUnit.MILLISECONDS, onExpire);
+    }
+
+    /**
+     * Constructor to initialize the Sessions.
+     * @param ttl How long a disconnected worker's session is kept.
+     * @param unit Unit of the TTL.
+     * @param onExpire Releases the state of a session that was not resumed in time; may be null.
+     */
+    public Sessions(long ttl, TimeUnit unit, Consumer<S> onExpire) {
+        this.ttlNanos = unit.toNanos(ttl);
+        this.onExpire = onExpire;
+    }
+
+    /**
+     * Returns the id a worker identifies itself with, from the {@value #WORKER_ID_PROPERTY} property if set.
+     * @return A new worker id.
+     */
+    public static String newWorkerId() {
+        return System.getProperty(WORKER_ID_PROPERTY, Long.toHexString(ThreadLocalRandom.current().nextLong()));
+    }
+
+    /**
+     * Records a connection of a worker.
+     * @param workerId The id the worker sent.
+     * @param initial State for a worker without a session.
+     * @return The state of the worker's session if it is resumed, otherwise the initial state.
+     */
+    public synchronized S connect(String workerId, S initial) {
+        sweep();
+        Session<S> session = sessions.get(workerId);
+        if (session == null) {
+            sessions.put(workerId, new Session<>(initial));
+            return initial;
+        }
+        session.connections++;
+        resumed.increment();
+        return session.state;
+    }
+
+    /**
+     * Replaces the state kept for a worker.
+     * @param workerId The id of the worker.
+     * @param state The new state.
+     */
+    public synchronized void update(String workerId, S state) {
+        Session<S> session = sessions.get(workerId);
+        if (session != null) {
+            session.state = state;
+        }
+    }
+
+    /**
+     * Records that one of a worker's connections ended; the session is kept for the TTL.
+     * @param workerId The id of the worker.
+     */
+    public synchronized void disconnect(String workerId) {
+        Session<S> session = sessions.get(workerId);
+        if (session != null && --session.connections == 0) {
+            session.disconnectedNanos = System.nanoTime();
+        }
+        sweep();
+    }
+
+    /**
+     * Returns the number of sessions kept, connected or not.
+     * @return The session count.
+     */
+    public synchronized int size() {
+        return sessions.size();
+    }
+
+    /**
+     * Returns how many connections resumed an existing session.
+     * @return The resumed count.
+     */
+    public long resumedCount() {
+        return resumed.sum();
+    }
+
+    /**
+     * Forgets sessions that have been disconnected for longer than the TTL, at most once per interval.
+     */
+    private void sweep() {
+        long now = System.nanoTime();
+        if (now - lastSweepNanos < SWEEP_INTERVAL_NANOS) {
+            return;
+        }
+        lastSweepNanos = now;
+        Iterator<Session<S>> iterator = sessions.values().iterator();
+        while (iterator.hasNext()) {
+            Session<S> session = iterator.next();
+            if (session.connections == 0 && now - session.disconnectedNanos > ttlNanos) {
+                iterator.remove();
+                if (onExpire != null) {
+                    onExpire.accept(session.state);
+                }
+            }
+        }
+    }
+
+    /**
+     * The state and the live connection count of one worker.
+     */
+    private static final class Session<S> {
+        private S state;
+        private int connections = 1;
+        private long disconnectedNanos;
+
+        Session(S state) {
+            this.state = state;
+        }
+    }
+}
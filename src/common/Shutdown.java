@@ -0,0 +1,128 @@
+package common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Drains every node of the JVM when it is asked to exit, for example by SIGTERM or SIGINT.
+ *
+ * Nodes register from their main method; the JVM shutdown hook is installed with the first one.
+ * All registered nodes drain at the same time, each on its own virtual thread so a JVM hosting
+ * thousands of workers does not need as many platform threads, with the deadline of the
+ * {@value #TIMEOUT_PROPERTY} property. Each node's report is logged before the log is closed.
+ */
+public final class Shutdown {
+    // Milliseconds a node waits for its in-flight messages when the JVM exits
+    public static final String TIMEOUT_PROPERTY = "pingpong.shutdown.timeout";
+
+    private static final long POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final Map<Lifecycle, String> nodes = new ConcurrentHashMap<>();
+    private static final CountDownLatch drained = new CountDownLatch(1);
+    private static volatile boolean hookInstalled;
+
+    private Shutdown() {
+    }
+
+    /**
+     * Returns the configured drain deadline.
+     * @return The timeout in milliseconds.
+     */
+    public static long configuredTimeoutMillis() {
+        return Math.max(0, Long.getLong(TIMEOUT_PROPERTY, 5000));
+    }
+
+    /**
+     * Drains a node when the JVM exits.
+     * @param node The node.
+     * @param name Name the node's report is logged under.
+     */
+    public static void register(Lifecycle node, String name) {
+        nodes.put(node, name);
+        if (!hookInstalled) {
+            installHook();
+        }
+    }
+
+    /**
+     * Forgets a node that was drained or stopped by its owner.
+     * @param node The node.
+     */
+    public static void unregister(Lifecycle node) {
+        nodes.remove(node);
+    }
+
+    /**
+     * Waits until a condition holds or a deadline passes, checking it every millisecond.
+     * @param condition The condition, such as no message being outstanding.
+     * @param deadlineNanos Monotonic time to give up at.
+     * @return True if the condition holds.
+     */
+    public static boolean await(BooleanSupplier condition, long deadlineNanos) {
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() - deadlineNanos >= 0 || Thread.currentThread().isInterrupted()) {
+                return condition.getAsBoolean();
+            }
+            LockSupport.parkNanos(POLL_NANOS);
+        }
+        return true;
+    }
+
+    /**
+     * Waits until the registered nodes are drained, so that the log closes only after their reports.
+     * Returns at once if no node was registered.
+     */
+    static void awaitDrained() {
+        if (!hookInstalled) {
+            return;
+        }
+        try {
+            drained.await(configuredTimeoutMillis() + TimeUnit.SECONDS.toMillis(1), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Installs the shutdown hook once.
+     */
+    private static synchronized void installHook() {
+        if (hookInstalled) {
+            return;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(Shutdown::drainAll, "node-shutdown"));
+        hookInstalled = true;
+    }
+
+    /**
+     * Drains every registered node concurrently and logs their reports.
+     */
+    private static void drainAll() {
+        long timeoutMillis = configuredTimeoutMillis();
+        List<Thread> threads = new ArrayList<>();
+        for (Map.Entry<Lifecycle, String> node : nodes.entrySet()) {
+            threads.add(Thread.ofVirtual().name("drain-" + node.getValue()).start(() -> {
+                try {
+                    DrainReport report = node.getKey().drain(timeoutMillis, TimeUnit.MILLISECONDS);
+                    Log.info("{} {}", node.getValue(), report);
+                } catch (RuntimeException e) {
+                    Log.error("{} could not be drained", node.getValue(), e);
+                }
+            }));
+        }
+        try {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            drained.countDown();
+        }
+    }
+}
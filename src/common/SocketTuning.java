@@ -0,0 +1,119 @@
+package common;
+
+import javax.net.ssl.SSLSocket;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Applies the socket options selected by system properties to every socket the nodes open.
+ * Frames are batched by the writers themselves, so Nagle's algorithm is off by default: it would only
+ * hold back the last frame of a batch waiting for an ACK. Buffer sizes of 0 keep the OS defaults.
+ * When {@link Tls} is enabled the blocking sockets opened here speak TLS, transparently to the streams read and written on them.
+ */
+public final class SocketTuning {
+    // true (default) or false
+    public static final String NODELAY_PROPERTY = "pingpong.tcp.nodelay";
+    // Bytes, 0 keeps the OS default
+    public static final String SEND_BUFFER_PROPERTY = "pingpong.socket.sndbuf";
+    // Bytes, 0 keeps the OS default
+    public static final String RECEIVE_BUFFER_PROPERTY = "pingpong.socket.rcvbuf";
+
+    private static final boolean NODELAY = Boolean.parseBoolean(System.getProperty(NODELAY_PROPERTY, "true"));
+    private static final int SEND_BUFFER = Integer.getInteger(SEND_BUFFER_PROPERTY, 0);
+    private static final int RECEIVE_BUFFER = Integer.getInteger(RECEIVE_BUFFER_PROPERTY, 0);
+
+    private SocketTuning() {
+    }
+
+    /**
+     * Opens a connection with the configured options.
+     * The receive buffer is sized before connecting so that the TCP window scale is negotiated for it.
+     * @param host Address of the remote node.
+     * @param port Port of the remote node.
+     * @return The connected socket, with its TLS handshake completed if TLS is enabled.
+     * @throws IOException if the node cannot be reached.
+     */
+    public static Socket connect(String host, int port) throws IOException {
+        Socket socket = new Socket();
+        try {
+            apply(socket);
+            socket.connect(new InetSocketAddress(host, port));
+            if (Tls.enabled()) {
+                return Tls.connect(socket, host, port);
+            }
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return socket;
+    }
+
+    /**
+     * Opens a server socket whose accepted connections inherit the configured receive buffer.
+     * @param port Port to listen on, 0 for any free port.
+     * @return The bound server socket, accepting TLS connections if TLS is enabled.
+     * @throws IOException if the port cannot be bound.
+     */
+    public static ServerSocket listen(int port) throws IOException {
+        ServerSocket serverSocket = Tls.enabled() ? Tls.newServerSocket() : new ServerSocket();
+        try {
+            if (RECEIVE_BUFFER > 0) {
+                serverSocket.setReceiveBufferSize(RECEIVE_BUFFER);
+            }
+            serverSocket.bind(new InetSocketAddress(port));
+        } catch (IOException e) {
+            serverSocket.close();
+            throw e;
+        }
+        return serverSocket;
+    }
+
+    /**
+     * Sizes the receive buffer of a server channel before it is bound.
+     * @param channel The unbound server channel.
+     * @throws IOException if the option cannot be set.
+     */
+    public static void apply(ServerSocketChannel channel) throws IOException {
+        if (RECEIVE_BUFFER > 0) {
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER);
+        }
+    }
+
+    /**
+     * Applies the configured options to a blocking socket, and starts timing the handshake of an accepted TLS socket.
+     * @param socket The socket, connected or not.
+     * @throws IOException if an option cannot be set.
+     */
+    public static void apply(Socket socket) throws IOException {
+        if (socket instanceof SSLSocket tlsSocket && !tlsSocket.getUseClientMode()) {
+            Tls.watch(tlsSocket);
+        }
+        socket.setTcpNoDelay(NODELAY);
+        if (SEND_BUFFER > 0) {
+            socket.setSendBufferSize(SEND_BUFFER);
+        }
+        if (RECEIVE_BUFFER > 0) {
+            socket.setReceiveBufferSize(RECEIVE_BUFFER);
+        }
+    }
+
+    /**
+     * Applies the configured options to a socket channel.
+     * @param channel The channel, connected or not.
+     * @throws IOException if an option cannot be set.
+     */
+    public static void apply(SocketChannel channel) throws IOException {
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, NODELAY);
+        if (SEND_BUFFER > 0) {
+            channel.setOption(StandardSocketOptions.SO_SNDBUF, SEND_BUFFER);
+        }
+        if (RECEIVE_BUFFER > 0) {
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER);
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The original newline-delimited text protocol, kept for nodes that still use readLine.
+ * Only the payload goes on the wire; decoded frames are DATA frames with no sequence or timestamp.
+ */
+public final class TextCodec implements Codec {
+    public static final TextCodec INSTANCE = new TextCodec();
+
+    private static final int MAX_LINE_LENGTH = 1024 * 1024;
+
+    private TextCodec() {
+    }
+
+    public boolean isText() {
+        return true;
+    }
+
+    public int encodedSize(Frame frame) {
+        return frame.payloadLength() + 1;
+    }
+
+    public void encode(Frame frame, ByteBuffer out) {
+        frame.writePayload(out);
+        out.put((byte) '\n');
+    }
+
+    public boolean decode(ByteBuffer in, Frame frame) throws IOException {
+        int start = in.position();
+        for (int i = start; i < in.limit(); i++) {
+            if (in.get(i) == '\n') {
+                int end = i > start && in.get(i - 1) == '\r' ? i - 1 : i;
+                frame.set(Frame.DATA, 0, 0);
+                frame.readPayload(in, end - start);
+                in.position(i + 1);
+                return true;
+            }
+        }
+        if (in.remaining() > MAX_LINE_LENGTH) {
+            throw new IOException("Line longer than " + MAX_LINE_LENGTH + " bytes");
+        }
+        return false;
+    }
+}
@@ -0,0 +1,46 @@
+package common;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * How blocking connection handlers are run. All modes keep the same blocking code style,
+ * so the same Master or Worker can be compared under each of them.
+ */
+public enum ThreadMode {
+    /** A new platform thread for every task. */
+    PLATFORM,
+    /** A cached pool of platform threads that are reused between tasks. */
+    POOLED,
+    /** A new virtual thread for every task; scales to tens of thousands of connections. */
+    VIRTUAL;
+
+    /**
+     * Name of the system property that selects the mode ("platform", "pooled" or "virtual").
+     */
+    public static final String PROPERTY = "pingpong.threads";
+
+    /**
+     * Returns the mode selected by the {@value #PROPERTY} system property, platform by default.
+     * @return The configured mode.
+     */
+    public static ThreadMode configured() {
+        return valueOf(System.getProperty(PROPERTY, "platform").toUpperCase());
+    }
+
+    /**
+     * Creates an executor for connection handlers in this mode.
+     * @param name Prefix of the thread names.
+     * @return A new executor.
+     */
+    public ExecutorService newExecutor(String name) {
+        switch (this) {
+            case VIRTUAL:
+                return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name + "-", 0).factory());
+            case POOLED:
+                return Executors.newCachedThreadPool(Thread.ofPlatform().name(name + "-", 0).factory());
+            default:
+                return Executors.newThreadPerTaskExecutor(Thread.ofPlatform().name(name + "-", 0).factory());
+        }
+    }
+}
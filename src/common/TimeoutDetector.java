@@ -0,0 +1,31 @@
+package common;
+
+/**
+ * Considers a peer dead once nothing has been heard from it for a fixed time.
+ */
+public class TimeoutDetector implements FailureDetector {
+    private final long timeoutNanos;
+    private volatile long lastHeartbeat;
+
+    /**
+     * Constructor to initialize the TimeoutDetector.
+     * @param timeoutNanos Silence after which the peer is considered dead.
+     * @param nowNanos Monotonic time at which monitoring starts.
+     */
+    public TimeoutDetector(long timeoutNanos, long nowNanos) {
+        this.timeoutNanos = timeoutNanos;
+        this.lastHeartbeat = nowNanos;
+    }
+
+    public void heartbeat(long nowNanos) {
+        lastHeartbeat = nowNanos;
+    }
+
+    public long lastHeartbeat() {
+        return lastHeartbeat;
+    }
+
+    public boolean isAvailable(long nowNanos) {
+        return nowNanos - lastHeartbeat < timeoutNanos;
+    }
+}
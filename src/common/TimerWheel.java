@@ -0,0 +1,145 @@
+package common;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A hashed timer wheel: one thread, a ring of buckets and a fixed tick.
+ * Scheduling and cancelling are O(1) and only touch a lock-free queue, so tens of thousands of
+ * per-connection timers cost one small object each instead of a heap entry in a scheduled executor.
+ * Timers fire up to one tick late. Tasks run on the wheel thread and must not block.
+ */
+public class TimerWheel {
+    private final long tickNanos;
+    private final ArrayDeque<Timeout>[] buckets;
+    private final int mask;
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    private final long startNanos;
+    private volatile boolean running = true;
+    private long tick;
+
+    /**
+     * Constructor to initialize the TimerWheel and start its thread.
+     * @param name Name of the wheel thread.
+     * @param tick Length of one tick.
+     * @param unit Unit of the tick.
+     * @param slots Number of buckets, rounded up to a power of two.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public TimerWheel(String name, long tick, TimeUnit unit, int slots) {
+        this.tickNanos = unit.toNanos(tick);
+        int size = Integer.highestOneBit(Math.max(slots, 2) - 1) << 1;
+        this.buckets = new ArrayDeque[size];
+        for (int i = 0; i < size; i++) {
+            buckets[i] = new ArrayDeque<>();
+        }
+        this.mask = size - 1;
+        this.startNanos = System.nanoTime();
+        this.thread = new Thread(this::run, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Schedules a task to run once after a delay.
+     * @param task The task to run on the wheel thread.
+     * @param delay Delay before the task runs.
+     * @param unit Unit of the delay.
+     * @return A handle that can cancel the task.
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        Timeout timeout = new Timeout(task, System.nanoTime() + unit.toNanos(delay));
+        added.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Stops the wheel thread; pending tasks never run.
+     */
+    public void stop() {
+        running = false;
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * Advances one bucket per tick and runs the tasks that are due.
+     */
+    private void run() {
+        while (running) {
+            long deadline = startNanos + (tick + 1) * tickNanos;
+            long sleep;
+            while (running && (sleep = deadline - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(sleep);
+            }
+            transferAdded();
+            expire(buckets[(int) (tick & mask)]);
+            tick++;
+        }
+    }
+
+    /**
+     * Moves newly scheduled timers into their buckets. Timers already due go into the current bucket.
+     */
+    private void transferAdded() {
+        Timeout timeout;
+        while ((timeout = added.poll()) != null) {
+            if (timeout.cancelled) {
+                continue;
+            }
+            long due = Math.max((timeout.deadline - startNanos) / tickNanos, tick);
+            timeout.rounds = (due - tick) / buckets.length;
+            buckets[(int) (due & mask)].add(timeout);
+        }
+    }
+
+    /**
+     * Runs the timers of a bucket that are due in this round.
+     * @param bucket The bucket of the current tick.
+     */
+    private void expire(ArrayDeque<Timeout> bucket) {
+        Iterator<Timeout> iterator = bucket.iterator();
+        while (iterator.hasNext()) {
+            Timeout timeout = iterator.next();
+            if (timeout.cancelled) {
+                iterator.remove();
+            } else if (timeout.rounds > 0) {
+                timeout.rounds--;
+            } else {
+                iterator.remove();
+                try {
+                    timeout.task.run();
+                } catch (RuntimeException e) {
+                    Log.error("Timer task failed", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * A scheduled task.
+     */
+    public static final class Timeout {
+        private final Runnable task;
+        private final long deadline;
+        // Full turns of the wheel left before the timer is due, only touched by the wheel thread
+        private long rounds;
+        private volatile boolean cancelled;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Prevents the task from running if it has not run yet.
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+}
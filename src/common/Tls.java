@@ -0,0 +1,236 @@
+package common;
+
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Optional TLS 1.3 for every connection between nodes, selected by system properties.
+ *
+ * One SSLContext is built per JVM from a PKCS12 keystore holding the node's key and certificate;
+ * unless a separate truststore is given the keystore is also what peers are checked against, so a
+ * single self-signed certificate shared by all nodes is enough on a test cluster. Peers are verified
+ * by certificate only, not by host name. Because the context is shared, a client that reconnects to
+ * the same host and port resumes its earlier session with a pre-shared key instead of repeating the
+ * certificate exchange and signature. Blocking sockets use the JDK's SSLSocket, channels driven by a
+ * selector use {@link TlsChannel}. Handshakes of the whole JVM are counted in one registry.
+ */
+public final class Tls {
+    // true to encrypt every connection, false (default) for plain TCP
+    public static final String ENABLED_PROPERTY = "pingpong.tls";
+    // PKCS12 keystore holding this node's key and certificate
+    public static final String KEYSTORE_PROPERTY = "pingpong.tls.keystore";
+    // Password of the keystore and the key
+    public static final String PASSWORD_PROPERTY = "pingpong.tls.password";
+    // PKCS12 truststore with the certificates of trusted peers, the keystore by default
+    public static final String TRUSTSTORE_PROPERTY = "pingpong.tls.truststore";
+    // true (default) to resume sessions on reconnect, false to do a full handshake every time
+    public static final String RESUMPTION_PROPERTY = "pingpong.tls.resumption";
+
+    private static final String PROTOCOL = "TLSv1.3";
+    private static final boolean ENABLED = Boolean.getBoolean(ENABLED_PROPERTY);
+
+    private static final LongAdder handshakes = new LongAdder();
+    private static final LongAdder resumed = new LongAdder();
+    private static final LongAdder failures = new LongAdder();
+    private static final Histogram handshakeTimes = new Histogram(5, TimeUnit.SECONDS.toNanos(60));
+
+    private Tls() {
+    }
+
+    /**
+     * Returns whether connections are encrypted.
+     * @return true if {@value #ENABLED_PROPERTY} is set.
+     */
+    public static boolean enabled() {
+        return ENABLED;
+    }
+
+    /**
+     * Layers a client TLS session over a connected socket and completes the handshake.
+     * @param socket The connected plain socket, closed together with the returned one.
+     * @param host Host name the socket is connected to, the key under which the session is cached.
+     * @param port Port the socket is connected to.
+     * @return The TLS socket.
+     * @throws IOException if the handshake fails.
+     */
+    public static SSLSocket connect(Socket socket, String host, int port) throws IOException {
+        long startMillis = System.currentTimeMillis();
+        long start = System.nanoTime();
+        SSLSocket tlsSocket = (SSLSocket) clientContext().getSocketFactory().createSocket(socket, host, port, true);
+        try {
+            tlsSocket.setUseClientMode(true);
+            tlsSocket.setEnabledProtocols(new String[]{PROTOCOL});
+            tlsSocket.startHandshake();
+        } catch (IOException e) {
+            failures.increment();
+            tlsSocket.close();
+            throw e;
+        }
+        completed(tlsSocket.getSession(), startMillis, System.nanoTime() - start);
+        return tlsSocket;
+    }
+
+    /**
+     * Creates an unbound server socket whose accepted sockets speak TLS.
+     * @return The server socket.
+     * @throws IOException if the socket cannot be created.
+     */
+    public static ServerSocket newServerSocket() throws IOException {
+        SSLServerSocket serverSocket = (SSLServerSocket) Holder.CONTEXT.getServerSocketFactory().createServerSocket();
+        serverSocket.setEnabledProtocols(new String[]{PROTOCOL});
+        return serverSocket;
+    }
+
+    /**
+     * Counts the handshake of an accepted TLS socket once it completes.
+     * The handshake starts with the first read or write, the time is measured from the call.
+     * @param socket The accepted socket.
+     */
+    public static void watch(SSLSocket socket) {
+        long startMillis = System.currentTimeMillis();
+        long start = System.nanoTime();
+        HandshakeCompletedListener listener = event -> completed(event.getSession(), startMillis, System.nanoTime() - start);
+        socket.addHandshakeCompletedListener(listener);
+    }
+
+    /**
+     * Completes the handshake of an accepted TLS socket now instead of at its first read or write,
+     * so that it is not mistaken for an unresponsive peer. Does nothing to a plain socket.
+     * @param socket The accepted socket.
+     * @throws IOException if the handshake fails.
+     */
+    public static void handshake(Socket socket) throws IOException {
+        if (socket instanceof SSLSocket tlsSocket) {
+            tlsSocket.startHandshake();
+        }
+    }
+
+    /**
+     * Creates an engine for a connection driven by a {@link TlsChannel}.
+     * @param client true for the connecting side.
+     * @param host Host name of the peer, the key under which a client's session is cached; null on the server side.
+     * @param port Port of the peer, ignored without a host.
+     * @return The engine.
+     */
+    public static SSLEngine newEngine(boolean client, String host, int port) {
+        SSLContext context = client ? clientContext() : Holder.CONTEXT;
+        SSLEngine engine = host == null ? context.createSSLEngine() : context.createSSLEngine(host, port);
+        engine.setUseClientMode(client);
+        engine.setEnabledProtocols(new String[]{PROTOCOL});
+        return engine;
+    }
+
+    /**
+     * Counts a completed handshake.
+     * @param session The negotiated session.
+     * @param startMillis Wall-clock time the connection started; a resumed session was created before it.
+     * @param elapsedNanos Time the handshake took.
+     */
+    static void completed(SSLSession session, long startMillis, long elapsedNanos) {
+        handshakes.increment();
+        if (session.getCreationTime() < startMillis) {
+            resumed.increment();
+        }
+        handshakeTimes.record(elapsedNanos);
+    }
+
+    /**
+     * Counts a handshake that ended with an error.
+     */
+    static void failed() {
+        failures.increment();
+    }
+
+    /**
+     * Returns the context clients create their sessions with; a fresh one each time when resumption is off,
+     * so that no cached session is ever found.
+     * @return The client context.
+     */
+    private static SSLContext clientContext() {
+        return Holder.RESUMPTION ? Holder.CONTEXT : Holder.newContext();
+    }
+
+    /**
+     * Loads the keys on first use, so nodes without TLS never read the keystore.
+     */
+    private static final class Holder {
+        private static final boolean RESUMPTION = Boolean.parseBoolean(System.getProperty(RESUMPTION_PROPERTY, "true"));
+        private static final KeyManagerFactory KEY_MANAGERS;
+        private static final TrustManagerFactory TRUST_MANAGERS;
+        private static final SSLContext CONTEXT;
+
+        static {
+            String keystore = System.getProperty(KEYSTORE_PROPERTY);
+            if (keystore == null) {
+                throw new IllegalStateException(ENABLED_PROPERTY + " requires " + KEYSTORE_PROPERTY);
+            }
+            char[] password = System.getProperty(PASSWORD_PROPERTY, "").toCharArray();
+            try {
+                KEY_MANAGERS = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+                KEY_MANAGERS.init(load(keystore, password), password);
+                TRUST_MANAGERS = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+                TRUST_MANAGERS.init(load(System.getProperty(TRUSTSTORE_PROPERTY, keystore), password));
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("Could not load the TLS keys from " + keystore, e);
+            }
+            CONTEXT = newContext();
+
+            Metrics metrics = Metrics.register("common", "tls", Metrics.nextNodeId());
+            metrics.counter("pingpong_tls_handshakes_total", "Completed TLS handshakes, client and server side", handshakes::sum);
+            metrics.counter("pingpong_tls_resumed_handshakes_total", "Completed TLS handshakes that resumed an earlier session",
+                    resumed::sum);
+            metrics.counter("pingpong_tls_handshake_failures_total", "TLS handshakes that ended with an error", failures::sum);
+            metrics.summary("pingpong_tls_handshake_seconds", "Time from connecting to a completed TLS handshake",
+                    handshakeTimes::snapshot);
+            Log.info("TLS enabled with the keys in {}, session resumption {}", keystore, RESUMPTION ? "on" : "off");
+        }
+
+        /**
+         * Creates a context over the loaded keys.
+         * @return The context.
+         */
+        private static SSLContext newContext() {
+            try {
+                SSLContext context = SSLContext.getInstance(PROTOCOL);
+                context.init(KEY_MANAGERS.getKeyManagers(), TRUST_MANAGERS.getTrustManagers(), null);
+                return context;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("Could not create the TLS context", e);
+            }
+        }
+
+        /**
+         * Reads a PKCS12 store.
+         * @param file Path of the store.
+         * @param password Its password.
+         * @return The store.
+         * @throws GeneralSecurityException if the store cannot be decoded.
+         */
+        private static KeyStore load(String file, char[] password) throws GeneralSecurityException {
+            try (InputStream in = Files.newInputStream(Path.of(file))) {
+                KeyStore store = KeyStore.getInstance("PKCS12");
+                store.load(in, password);
+                return store;
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not read " + file, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,350 @@
+package common;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A socket channel carrying TLS records, for connections that are written with channel calls instead of streams.
+ *
+ * Works on blocking and non-blocking channels. On a non-blocking channel nothing ever waits:
+ * {@link #read} returns 0 when no complete record has arrived, and {@link #write} returns the
+ * plaintext bytes it has encrypted, keeping records the socket did not take until the next call;
+ * the owner watches for writability while {@link #hasPendingOutput()} is true. The handshake is
+ * advanced by whichever of the two methods is called, on a blocking channel {@link #handshake()}
+ * completes it up front. One reader and one writer may use the channel concurrently, as SSLEngine
+ * allows wrapping and unwrapping at the same time; the reader only takes the writer's lock to send
+ * handshake messages, never the other way round.
+ */
+public final class TlsChannel implements ByteChannel, GatheringByteChannel {
+    // Records encrypted per write before the socket is asked to take them
+    private static final int RECORDS_PER_WRITE = 4;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private final Object readLock = new Object();
+    private final Object writeLock = new Object();
+    private final long startMillis = System.currentTimeMillis();
+    private final long start = System.nanoTime();
+    // Received records not yet decrypted, in write mode
+    private ByteBuffer netIn;
+    // Decrypted bytes not yet returned by read, in read mode
+    private ByteBuffer appIn;
+    // Encrypted records not yet written to the socket, in read mode
+    private final ByteBuffer netOut;
+    private volatile boolean handshaking = true;
+
+    /**
+     * Constructor to initialize the TlsChannel; the handshake messages are exchanged by the first calls.
+     * @param channel The connected socket channel.
+     * @param engine The engine, see {@link Tls#newEngine}.
+     * @throws SSLException if the engine cannot start the handshake.
+     */
+    public TlsChannel(SocketChannel channel, SSLEngine engine) throws SSLException {
+        this.channel = channel;
+        this.engine = engine;
+        // Until the handshake is begun the engine reports it is not handshaking
+        engine.beginHandshake();
+        int packetSize = engine.getSession().getPacketBufferSize();
+        this.netIn = ByteBuffer.allocate(packetSize);
+        this.appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize()).flip();
+        this.netOut = ByteBuffer.allocate(packetSize * RECORDS_PER_WRITE).flip();
+    }
+
+    /**
+     * Returns the underlying socket channel, for registering with a selector.
+     * @return The socket channel.
+     */
+    public SocketChannel channel() {
+        return channel;
+    }
+
+    /**
+     * Returns the address of the peer.
+     * @return The remote address.
+     * @throws IOException if the channel is closed.
+     */
+    public SocketAddress remoteAddress() throws IOException {
+        return channel.getRemoteAddress();
+    }
+
+    /**
+     * Returns whether the handshake has not completed yet.
+     * @return true while handshaking.
+     */
+    public boolean isHandshaking() {
+        return handshaking;
+    }
+
+    /**
+     * Returns whether encrypted bytes are waiting for the socket to become writable.
+     * @return true if a flush is needed.
+     */
+    public boolean hasPendingOutput() {
+        synchronized (writeLock) {
+            return netOut.hasRemaining();
+        }
+    }
+
+    /**
+     * Advances the handshake as far as the socket allows; on a blocking channel runs it to completion.
+     * @return true once the handshake has completed.
+     * @throws IOException if the handshake fails or the peer closes the connection during it.
+     */
+    public boolean handshake() throws IOException {
+        if (!handshaking) {
+            return true;
+        }
+        synchronized (readLock) {
+            try {
+                while (true) {
+                    switch (engine.getHandshakeStatus()) {
+                        case NEED_TASK -> runTasks();
+                        case NEED_WRAP -> {
+                            if (!wrapHandshake()) {
+                                return false;
+                            }
+                        }
+                        case NEED_UNWRAP, NEED_UNWRAP_AGAIN -> {
+                            SSLEngineResult result = unwrap();
+                            if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                                throw new EOFException("Connection closed during the TLS handshake");
+                            }
+                            if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW && fill() == 0) {
+                                return false;
+                            }
+                        }
+                        default -> {
+                            handshaking = false;
+                            Tls.completed(engine.getSession(), startMillis, System.nanoTime() - start);
+                            return true;
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                Tls.failed();
+                throw e;
+            }
+        }
+    }
+
+    public int read(ByteBuffer dst) throws IOException {
+        synchronized (readLock) {
+            if (!handshake()) {
+                return 0;
+            }
+            while (!appIn.hasRemaining()) {
+                SSLEngineResult result = unwrap();
+                switch (result.getStatus()) {
+                    case CLOSED -> {
+                        return -1;
+                    }
+                    case BUFFER_UNDERFLOW -> {
+                        int n = fill();
+                        if (n <= 0) {
+                            return n;
+                        }
+                    }
+                    default -> {
+                        // A session ticket or key update may need an answer before more data comes
+                        if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                            runTasks();
+                        }
+                        if (engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                            wrapHandshake();
+                        }
+                    }
+                }
+            }
+            int n = Math.min(dst.remaining(), appIn.remaining());
+            dst.put(dst.position(), appIn, appIn.position(), n);
+            dst.position(dst.position() + n);
+            appIn.position(appIn.position() + n);
+            return n;
+        }
+    }
+
+    public int write(ByteBuffer src) throws IOException {
+        return (int) write(new ByteBuffer[]{src}, 0, 1);
+    }
+
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        if (handshaking && !handshake()) {
+            return 0;
+        }
+        synchronized (writeLock) {
+            if (!flush()) {
+                return 0;
+            }
+            long consumed = 0;
+            int last = offset + length;
+            while (offset < last) {
+                if (!srcs[offset].hasRemaining()) {
+                    offset++;
+                    continue;
+                }
+                // Encrypt as many records as fit, then hand them to the socket in one write
+                netOut.compact();
+                SSLEngineResult result;
+                try {
+                    while ((result = engine.wrap(srcs, offset, last - offset, netOut)).getStatus() == SSLEngineResult.Status.OK
+                            && result.bytesConsumed() > 0) {
+                        consumed += result.bytesConsumed();
+                    }
+                } finally {
+                    netOut.flip();
+                }
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    throw new SSLException("TLS session closed");
+                }
+                if (!flush() || result.bytesConsumed() == 0 && result.bytesProduced() == 0) {
+                    // The socket is full, or the engine waits for a message from the peer first
+                    break;
+                }
+            }
+            return consumed;
+        }
+    }
+
+    /**
+     * Writes pending encrypted bytes; on a blocking channel waits until they are all written.
+     * @return true if nothing is left pending.
+     * @throws IOException if the write fails.
+     */
+    public boolean flush() throws IOException {
+        synchronized (writeLock) {
+            while (netOut.hasRemaining()) {
+                if (channel.write(netOut) == 0 && !channel.isBlocking()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    /**
+     * Closes the socket. On a non-blocking channel a close_notify is sent first if the socket takes it
+     * right away; a blocking writer may be stuck holding the write lock, so there the socket is just closed.
+     * @throws IOException if closing the socket fails.
+     */
+    public void close() throws IOException {
+        try {
+            engine.closeOutbound();
+            if (!channel.isBlocking()) {
+                synchronized (writeLock) {
+                    netOut.compact();
+                    try {
+                        engine.wrap(EMPTY, netOut);
+                    } finally {
+                        netOut.flip();
+                    }
+                    channel.write(netOut);
+                }
+            }
+        } catch (IOException e) {
+            // The peer is gone or the session already broken, closing the socket is all that is left
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Decrypts the next record from the received bytes into the plaintext buffer.
+     * Must be called holding the read lock while the plaintext buffer is empty.
+     * @return The engine's result.
+     * @throws SSLException if the record is invalid.
+     */
+    private SSLEngineResult unwrap() throws SSLException {
+        netIn.flip();
+        appIn.clear();
+        try {
+            SSLEngineResult result = engine.unwrap(netIn, appIn);
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                // The peer negotiated larger records than the session announced at first
+                appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+                result = engine.unwrap(netIn, appIn);
+            }
+            return result;
+        } finally {
+            netIn.compact();
+            appIn.flip();
+        }
+    }
+
+    /**
+     * Reads more encrypted bytes from the socket, growing the buffer if a record does not fit.
+     * @return The number of bytes read, 0 if none are available on a non-blocking channel.
+     * @throws IOException if the read fails or the peer closed the connection.
+     */
+    private int fill() throws IOException {
+        if (!netIn.hasRemaining()) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(netIn.capacity() * 2, engine.getSession().getPacketBufferSize()));
+            netIn.flip();
+            bigger.put(netIn);
+            netIn = bigger;
+        }
+        int n = channel.read(netIn);
+        if (n < 0) {
+            engine.closeInbound();
+            if (handshaking) {
+                throw new EOFException("Connection closed during the TLS handshake");
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Produces the handshake message the engine asks for and writes it.
+     * @return true if it was written completely.
+     * @throws IOException if wrapping or writing fails.
+     */
+    private boolean wrapHandshake() throws IOException {
+        synchronized (writeLock) {
+            if (!flush()) {
+                return false;
+            }
+            netOut.compact();
+            SSLEngineResult result;
+            try {
+                result = engine.wrap(EMPTY, netOut);
+            } finally {
+                netOut.flip();
+            }
+            if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                runTasks();
+            }
+            boolean flushed = flush();
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                // The engine gave up and produced an alert for the peer
+                throw new SSLException("TLS session closed during the handshake");
+            }
+            return flushed;
+        }
+    }
+
+    /**
+     * Runs the engine's delegated tasks, such as certificate checks, on the calling thread.
+     */
+    private void runTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+}
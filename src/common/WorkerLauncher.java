@@ -0,0 +1,153 @@
+package common;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Hosts many Workers of one messaging pattern inside a single JVM.
+ *
+ * A separate process per worker pays for JVM startup, class loading and its own heap, which rules
+ * out thousands of workers on one machine. Here every worker runs its usual main method on its own
+ * thread, by default a virtual one, so they share one heap, one log drainer and one metrics endpoint.
+ * The arguments are the ones the pattern's Worker takes on the command line, with "{index}"
+ * replaced by the worker's index. A worker that fails is logged and counted without affecting the others.
+ */
+public final class WorkerLauncher {
+    private static final String INDEX_PLACEHOLDER = "{index}";
+
+    private final Method workerMain;
+    private final int count;
+    private final long staggerNanos;
+    private final String[] arguments;
+    private final ThreadMode threadMode;
+    private final List<Thread> threads = new ArrayList<>();
+    private final AtomicInteger running = new AtomicInteger();
+    private final LongAdder failed = new LongAdder();
+
+    /**
+     * Constructor to initialize the WorkerLauncher.
+     * @param pattern The messaging pattern, which is also the package of its Worker class.
+     * @param count Number of workers to host.
+     * @param staggerMillis Milliseconds between two worker starts, 0 starts them all at once.
+     * @param arguments Command-line arguments of each worker, "{index}" is replaced by its index.
+     * @param threadMode How each worker's main thread is run.
+     * @throws ReflectiveOperationException if the pattern has no Worker with a main method.
+     */
+    public WorkerLauncher(String pattern, int count, long staggerMillis, String[] arguments, ThreadMode threadMode)
+            throws ReflectiveOperationException {
+        this.workerMain = Class.forName(pattern + ".Worker").getMethod("main", String[].class);
+        this.count = count;
+        this.staggerNanos = TimeUnit.MILLISECONDS.toNanos(staggerMillis);
+        this.arguments = arguments;
+        this.threadMode = threadMode;
+        Metrics metrics = Metrics.register(pattern, "launcher", Metrics.nextNodeId());
+        metrics.gauge("pingpong_launcher_workers_running", "Hosted workers whose main method has not returned", running::get);
+        metrics.counter("pingpong_launcher_workers_failed_total", "Hosted workers that ended with an exception", failed::sum);
+    }
+
+    /**
+     * Starts the workers, spaced by the stagger so they do not all connect at the same moment.
+     * @throws InterruptedException if interrupted while waiting between two starts.
+     */
+    public void start() throws InterruptedException {
+        long next = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            long delay = next - System.nanoTime();
+            if (delay > 0) {
+                TimeUnit.NANOSECONDS.sleep(delay);
+            }
+            next += staggerNanos;
+            int index = i;
+            Thread thread = (threadMode == ThreadMode.VIRTUAL ? Thread.ofVirtual() : Thread.ofPlatform())
+                    .name("worker-" + index)
+                    .unstarted(() -> run(index));
+            threads.add(thread);
+            running.incrementAndGet();
+            thread.start();
+        }
+        Log.info("Started {} workers", count);
+    }
+
+    /**
+     * Waits until every worker's main method has returned.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public void join() throws InterruptedException {
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    /**
+     * Returns the number of workers whose main method has not returned.
+     * @return The running worker count.
+     */
+    public int runningWorkers() {
+        return running.get();
+    }
+
+    /**
+     * Runs one worker's main method and keeps whatever it throws away from the other workers.
+     * @param index Index of the worker.
+     */
+    private void run(int index) {
+        String[] args = new String[arguments.length];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = arguments[i].replace(INDEX_PLACEHOLDER, Integer.toString(index));
+        }
+        try {
+            workerMain.invoke(null, (Object) args);
+            Log.info("Worker {} stopped", index);
+        } catch (InvocationTargetException e) {
+            failed.increment();
+            Log.error("Worker {} failed", index, e.getCause());
+        } catch (IllegalAccessException e) {
+            failed.increment();
+            Log.error("Worker {} could not be started", index, e);
+        } finally {
+            running.decrementAndGet();
+        }
+    }
+
+    /**
+     * Main method to host the workers of a pattern in this JVM.
+     * Without an explicit {@value ThreadMode#PROPERTY} setting the workers and their handlers run on virtual threads.
+     * @param args Command-line arguments: pattern, number of workers, milliseconds between starts,
+     *             then the arguments of each worker.
+     * @throws ReflectiveOperationException if the pattern has no Worker with a main method.
+     * @throws InterruptedException if interrupted while starting or waiting for the workers.
+     */
+    public static void main(String[] args) throws ReflectiveOperationException, InterruptedException {
+        if (args.length < 3) {
+            System.out.println("Usage: java common.WorkerLauncher <one_to_one|broadcasting|round_robin> <workers> <stagger_ms> "
+                    + "[worker arguments, {index} is replaced by the worker's index]");
+            return;
+        }
+
+        // Parse the command-line arguments
+        String pattern = args[0];
+        int count = Integer.parseInt(args[1]);
+        long staggerMillis = Long.parseLong(args[2]);
+        String[] workerArgs = Arrays.copyOfRange(args, 3, args.length);
+
+        if (System.getProperty(ThreadMode.PROPERTY) == null) {
+            System.setProperty(ThreadMode.PROPERTY, "virtual");
+        }
+        if (System.getProperty(Sessions.WORKER_ID_PROPERTY) != null) {
+            // One id for every worker would make them resume each other's sessions
+            Log.warn("Ignoring {}, each hosted worker picks its own id", Sessions.WORKER_ID_PROPERTY);
+            System.clearProperty(Sessions.WORKER_ID_PROPERTY);
+        }
+
+        // Create and start the workers; they run until the JVM is stopped
+        WorkerLauncher launcher = new WorkerLauncher(pattern, count, staggerMillis, workerArgs, ThreadMode.configured());
+        launcher.start();
+        launcher.join();
+    }
+}
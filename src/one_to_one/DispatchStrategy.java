@@ -0,0 +1,23 @@
+package one_to_one;
+
+/**
+ * How the Master picks the worker for the next task in dispatch mode.
+ * Workers whose in-flight limit is reached are never picked; a task waits at the Master until one has room.
+ */
+public enum DispatchStrategy {
+    /**
+     * Cycle through the workers in the order they connected.
+     */
+    ROUND_ROBIN,
+
+    /**
+     * Pick the worker with the fewest tasks sent and not yet answered.
+     */
+    LEAST_OUTSTANDING,
+
+    /**
+     * Pick two workers at random and take the one that reported the shorter task queue,
+     * which avoids both herding on one worker and scanning every worker per task.
+     */
+    POWER_OF_TWO
+}
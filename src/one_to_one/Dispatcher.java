@@ -0,0 +1,480 @@
+package one_to_one;
+
+import common.Frame;
+import common.FrameWriter;
+import common.Log;
+import common.Metrics;
+import common.RttStats;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Spreads submitted tasks over the connected workers and collects their results.
+ *
+ * Every worker has an in-flight limit. A task goes to a worker picked by the {@link DispatchStrategy}
+ * among those below the limit; if all of them are full it waits in a backlog that is drained as
+ * results come back or workers join. Picking a worker reserves a slot with a compare-and-set, so
+ * concurrent submitters never push a worker over its limit. Tasks of a worker that disconnects are
+ * dispatched again, so a task runs at least once as long as some worker stays.
+ *
+ * Wire protocol: the Master sends TASK frames carrying the task id and the task as text. The worker
+ * answers with a RESULT frame with the same id, whose payload starts with the worker's current task
+ * queue depth followed by the output, or the error message if the {@link TaskHandler#FAILED} flag is set.
+ */
+class Dispatcher {
+    private final DispatchStrategy strategy;
+    private final int maxInFlight;
+    private final RttStats stats;
+    // Replaced as a whole on every join or leave so pickers can index it without locking
+    private volatile Connection[] workers = new Connection[0];
+    private final Map<Socket, Connection> bySocket = new ConcurrentHashMap<>();
+    private final Queue<Task> backlog = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger backlogSize = new AtomicInteger();
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final AtomicInteger cursor = new AtomicInteger();
+    private final AtomicLong taskIds = new AtomicLong();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder redispatched = new LongAdder();
+    // Set once the Master is drained, after which tasks fail instead of waiting for a worker
+    private volatile Throwable failure;
+    // The one thread waiting in awaitCapacity, if any
+    private volatile Thread capacityWaiter;
+
+    /**
+     * Constructor to initialize the Dispatcher.
+     * @param strategy How the worker for each task is picked.
+     * @param maxInFlight Maximum tasks per worker that were sent and not yet answered.
+     * @param stats Where task latencies are recorded, from submission to result.
+     */
+    Dispatcher(DispatchStrategy strategy, int maxInFlight, RttStats stats) {
+        this.strategy = strategy;
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.stats = stats;
+    }
+
+    /**
+     * Exports the backlog, the tasks in flight per worker and the failed and re-dispatched task counts.
+     * @param metrics The Master's registry.
+     */
+    void register(Metrics metrics) {
+        metrics.gauge("pingpong_tasks_queued", "Tasks waiting at the Master for a worker with room", backlogSize::get);
+        metrics.gauge("pingpong_tasks_outstanding", "Tasks sent to workers and not yet answered", outstanding::get);
+        metrics.gauge("pingpong_worker_tasks_outstanding", "Tasks sent to a worker and not yet answered", "worker", () -> {
+            Map<String, Integer> perWorker = new TreeMap<>();
+            for (Connection worker : workers) {
+                perWorker.put(worker.key, worker.outstanding.get());
+            }
+            return perWorker;
+        });
+        metrics.counter("pingpong_tasks_failed_total", "Tasks whose handler threw on the worker", failed::sum);
+        metrics.counter("pingpong_tasks_redispatched_total", "Tasks sent again because their worker was lost", redispatched::sum);
+    }
+
+    /**
+     * Makes a connected worker available for tasks.
+     * @param socket The socket connected to the worker node.
+     * @param out The writer of the socket, shared with the heartbeat sender.
+     */
+    void add(Socket socket, FrameWriter out) {
+        Connection worker = new Connection(socket, out);
+        bySocket.put(socket, worker);
+        synchronized (this) {
+            Connection[] joined = Arrays.copyOf(workers, workers.length + 1);
+            joined[joined.length - 1] = worker;
+            workers = joined;
+        }
+        drainBacklog();
+        signalCapacity();
+    }
+
+    /**
+     * Names a worker after the session it opened, for its latency histogram and metrics.
+     * @param socket The socket connected to the worker node.
+     * @param key The worker's session id.
+     */
+    void rename(Socket socket, String key) {
+        Connection worker = bySocket.get(socket);
+        if (worker != null) {
+            worker.key = key;
+        }
+    }
+
+    /**
+     * Removes a worker whose connection ended and dispatches its unanswered tasks again.
+     * @param socket The socket connected to the worker node.
+     */
+    void remove(Socket socket) {
+        Connection worker = bySocket.remove(socket);
+        if (worker == null) {
+            return;
+        }
+        synchronized (this) {
+            List<Connection> remaining = new ArrayList<>(Arrays.asList(workers));
+            remaining.remove(worker);
+            workers = remaining.toArray(new Connection[0]);
+        }
+        for (Task task : worker.tasks.values()) {
+            reclaim(worker, task);
+        }
+    }
+
+    /**
+     * Submits a task.
+     * @param task The task as text.
+     * @return A future completed with the result once a worker answered.
+     */
+    CompletableFuture<TaskResult> submit(String task) {
+        Task submitted = new Task(taskIds.incrementAndGet(), task);
+        stats.sent(1);
+        dispatch(submitted);
+        return submitted.future;
+    }
+
+    /**
+     * Completes the task a RESULT frame answers and sends a waiting task to the freed slot.
+     * @param socket The socket the result arrived on.
+     * @param frame The RESULT frame.
+     */
+    void complete(Socket socket, Frame frame) {
+        long receiveNanos = System.nanoTime();
+        Connection worker = bySocket.get(socket);
+        if (worker != null && frame.payloadLength() < Integer.BYTES) {
+            // Without its queue depth the result is malformed; removing the worker dispatches its tasks again
+            Log.warn("Malformed result for task {} from {}, disconnecting it", frame.sequence(), worker.key);
+            closeQuietly(socket);
+            return;
+        }
+        Task task = worker == null ? null : worker.tasks.remove(frame.sequence());
+        if (task == null) {
+            // Answered after its worker was given up on, the task went elsewhere
+            stats.unmatched();
+            return;
+        }
+        worker.outstanding.decrementAndGet();
+        outstanding.decrementAndGet();
+        ByteBuffer payload = frame.payload();
+        worker.reportedDepth = payload.getInt();
+        String output = StandardCharsets.UTF_8.decode(payload).toString();
+        boolean succeeded = (frame.flags() & TaskHandler.FAILED) == 0;
+        if (!succeeded) {
+            failed.increment();
+        }
+        long elapsedNanos = receiveNanos - task.submitNanos;
+        stats.record(worker.key, elapsedNanos);
+        drainBacklog();
+        signalCapacity();
+        task.future.complete(new TaskResult(task.id, worker.key, succeeded, output, elapsedNanos, task.attempts));
+    }
+
+    /**
+     * Blocks until a new task would be sent right away instead of waiting in the backlog.
+     * Only one thread may wait at a time.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    void awaitCapacity() throws InterruptedException {
+        while (!hasCapacity()) {
+            capacityWaiter = Thread.currentThread();
+            if (!hasCapacity()) {
+                LockSupport.park(this);
+            }
+            capacityWaiter = null;
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of connected workers.
+     * @return The worker count.
+     */
+    int size() {
+        return workers.length;
+    }
+
+    /**
+     * Fails every task waiting in the backlog or for a worker's answer, and every task submitted or
+     * dispatched again afterwards, so that nobody waits for the results of a drained Master.
+     * @param cause The exception the tasks' futures complete with.
+     */
+    void failAll(Throwable cause) {
+        failure = cause;
+        failBacklog(cause);
+        for (Connection worker : bySocket.values()) {
+            for (Task task : worker.tasks.values()) {
+                if (worker.tasks.remove(task.id, task)) {
+                    release(worker);
+                    task.future.completeExceptionally(cause);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the tasks submitted and not answered yet, whether sent to a worker or waiting in the backlog.
+     * @return The pending task count.
+     */
+    int pending() {
+        return outstanding.get() + backlogSize.get();
+    }
+
+    /**
+     * Tells whether a new task would be sent right away.
+     * @return True if nothing is waiting and some worker is below its limit.
+     */
+    private boolean hasCapacity() {
+        return backlogSize.get() == 0 && outstanding.get() < workers.length * maxInFlight;
+    }
+
+    /**
+     * Wakes the thread waiting for capacity, if any.
+     */
+    private void signalCapacity() {
+        Thread waiter = capacityWaiter;
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+    }
+
+    /**
+     * Sends a task to a worker with room, or queues it in the backlog.
+     * @param task The task.
+     */
+    private void dispatch(Task task) {
+        Throwable cause = failure;
+        if (cause != null) {
+            task.future.completeExceptionally(cause);
+            return;
+        }
+        Connection worker = reserve();
+        if (worker != null) {
+            send(worker, task);
+            return;
+        }
+        backlog.add(task);
+        backlogSize.incrementAndGet();
+        cause = failure;
+        if (cause != null) {
+            // Failed while the task was being queued, after the backlog was emptied
+            failBacklog(cause);
+            return;
+        }
+        // A slot may have been freed between the failed reservation and the enqueue
+        drainBacklog();
+    }
+
+    /**
+     * Fails every task waiting in the backlog.
+     * @param cause The exception the tasks' futures complete with.
+     */
+    private void failBacklog(Throwable cause) {
+        Task task;
+        while ((task = backlog.poll()) != null) {
+            backlogSize.decrementAndGet();
+            task.future.completeExceptionally(cause);
+        }
+    }
+
+    /**
+     * Sends waiting tasks while workers have room.
+     */
+    private void drainBacklog() {
+        while (backlogSize.get() > 0) {
+            Connection worker = reserve();
+            if (worker == null) {
+                return;
+            }
+            Task task = backlog.poll();
+            if (task == null) {
+                release(worker);
+                return;
+            }
+            backlogSize.decrementAndGet();
+            send(worker, task);
+        }
+    }
+
+    /**
+     * Writes a task to the worker whose slot was reserved for it.
+     * A failed write gives up on the worker; removing it dispatches this task again.
+     * @param worker The worker.
+     * @param task The task.
+     */
+    private void send(Connection worker, Task task) {
+        task.attempts++;
+        worker.tasks.put(task.id, task);
+        if (bySocket.get(worker.socket) != worker) {
+            // Removed while the slot was being reserved, and possibly before the task was visible to the removal
+            reclaim(worker, task);
+            return;
+        }
+        try {
+            worker.out.write(new Frame().set(Frame.TASK, task.id, task.submitNanos).payload(task.text));
+        } catch (IOException e) {
+            // The worker's reader notices the closed socket and removes it with its other tasks
+            Log.warn("Could not send task {} to {}: {}", task.id, worker.key, e.getMessage());
+            closeQuietly(worker.socket);
+            reclaim(worker, task);
+        }
+    }
+
+    /**
+     * Takes a task back from a lost worker and dispatches it again, unless another thread already did.
+     * @param worker The lost worker.
+     * @param task The task.
+     */
+    private void reclaim(Connection worker, Task task) {
+        if (worker.tasks.remove(task.id, task)) {
+            release(worker);
+            redispatched.increment();
+            dispatch(task);
+        }
+    }
+
+    /**
+     * Picks a worker with the configured strategy and reserves one of its slots.
+     * @return The worker, or null if every worker is at its limit.
+     */
+    private Connection reserve() {
+        Connection[] snapshot = workers;
+        int count = snapshot.length;
+        if (count == 0) {
+            return null;
+        }
+        if (strategy == DispatchStrategy.ROUND_ROBIN) {
+            int start = Math.floorMod(cursor.getAndIncrement(), count);
+            for (int i = 0; i < count; i++) {
+                Connection worker = snapshot[(start + i) % count];
+                if (tryAcquire(worker)) {
+                    return worker;
+                }
+            }
+            return null;
+        }
+        if (strategy == DispatchStrategy.POWER_OF_TWO && count > 1) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int first = random.nextInt(count);
+            int second = (first + 1 + random.nextInt(count - 1)) % count;
+            Connection a = snapshot[first];
+            Connection b = snapshot[second];
+            // Queue depth as last reported by the worker, then the Master's own count as a tie breaker
+            boolean preferB = b.reportedDepth < a.reportedDepth
+                    || (b.reportedDepth == a.reportedDepth && b.outstanding.get() < a.outstanding.get());
+            Connection better = preferB ? b : a;
+            Connection other = preferB ? a : b;
+            if (tryAcquire(better)) {
+                return better;
+            }
+            if (tryAcquire(other)) {
+                return other;
+            }
+            // Both sampled workers are full, look for any other one with room
+        }
+        // Least outstanding, retried when another submitter takes the chosen slot first
+        for (int attempt = 0; attempt < count; attempt++) {
+            Connection best = null;
+            for (Connection worker : snapshot) {
+                int load = worker.outstanding.get();
+                if (load < maxInFlight && (best == null || load < best.outstanding.get())) {
+                    best = worker;
+                }
+            }
+            if (best == null) {
+                return null;
+            }
+            if (tryAcquire(best)) {
+                return best;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Takes one of a worker's slots if it is below its limit.
+     * @param worker The worker.
+     * @return True if a slot was taken.
+     */
+    private boolean tryAcquire(Connection worker) {
+        int current;
+        do {
+            current = worker.outstanding.get();
+            if (current >= maxInFlight) {
+                return false;
+            }
+        } while (!worker.outstanding.compareAndSet(current, current + 1));
+        outstanding.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Gives back a slot that is no longer used by a task.
+     * @param worker The worker.
+     */
+    private void release(Connection worker) {
+        worker.outstanding.decrementAndGet();
+        outstanding.decrementAndGet();
+    }
+
+    /**
+     * Closes a worker socket; its reader notices and cleans up.
+     * @param socket The socket to close.
+     */
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Already broken, nothing else to release
+        }
+    }
+
+    /**
+     * A connected worker and the tasks it has not answered yet.
+     */
+    private static final class Connection {
+        private final Socket socket;
+        private final FrameWriter out;
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private final Map<Long, Task> tasks = new ConcurrentHashMap<>();
+        private volatile String key;
+        private volatile int reportedDepth;
+
+        Connection(Socket socket, FrameWriter out) {
+            this.socket = socket;
+            this.out = out;
+            this.key = socket.getRemoteSocketAddress().toString();
+        }
+    }
+
+    /**
+     * A submitted task and the future its result completes.
+     */
+    private static final class Task {
+        private final long id;
+        private final String text;
+        private final long submitNanos = System.nanoTime();
+        private final CompletableFuture<TaskResult> future = new CompletableFuture<>();
+        private volatile int attempts;
+
+        Task(long id, String text) {
+            this.id = id;
+            this.text = text;
+        }
+    }
+}
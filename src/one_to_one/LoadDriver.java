@@ -0,0 +1,209 @@
+package one_to_one;
+
+import common.Codec;
+import common.Frame;
+import common.FrameReader;
+import common.FrameWriter;
+import common.Liveness;
+import common.Log;
+import common.Metrics;
+import common.PendingPings;
+import common.RttStats;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives one worker with a continuous stream of pings, either at a target rate or as fast as
+ * the window allows, keeping at most a fixed number of pings outstanding.
+ *
+ * At a target rate every ping has an intended send time on a fixed schedule and its RTT is measured
+ * from that time, not from when it was actually written. When the window is full the schedule keeps
+ * running, so time spent waiting behind a slow worker shows up in the latencies instead of being
+ * silently omitted.
+ */
+class LoadDriver {
+    private static final ByteBuffer PING = ByteBuffer.wrap("ping".getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+
+    private final Socket socket;
+    private final FrameWriter out;
+    private final Liveness<Socket> liveness;
+    private final Codec codec;
+    private final Metrics.Traffic traffic;
+    private final RttStats stats;
+    private final Function<Frame, String> onSession;
+    private volatile String workerId;
+    private final long intervalNanos;
+    private final int window;
+    private final Semaphore permits;
+    private final PendingPings pending;
+    private final Executor executor;
+    // Pings sent and not answered yet
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final CountDownLatch closed = new CountDownLatch(1);
+    private volatile boolean running = true;
+    // Cleared by a drain: no more pings are sent, but the pongs still due are read
+    private volatile boolean sending = true;
+
+    /**
+     * Constructor to initialize the LoadDriver.
+     * @param socket The socket connected to the worker node.
+     * @param out The writer of the socket, shared with the heartbeat sender.
+     * @param codec The codec used on the connection.
+     * @param traffic Counters the pongs are counted in.
+     * @param stats Where round-trip times are recorded.
+     * @param rate Target pings per second, 0 for as fast as possible.
+     * @param window Maximum number of pings waiting for a pong.
+     * @param executor Executor that runs the pong reader.
+     * @param liveness Liveness tracking told about every frame read from the worker.
+     * @param onSession Opens the session named by a SESSION frame and returns the key to record RTTs under.
+     */
+    LoadDriver(Socket socket, FrameWriter out, Codec codec, Metrics.Traffic traffic, RttStats stats, double rate, int window,
+               Executor executor, Liveness<Socket> liveness, Function<Frame, String> onSession) {
+        this.socket = socket;
+        this.out = out;
+        this.liveness = liveness;
+        this.codec = codec;
+        this.traffic = traffic;
+        this.stats = stats;
+        this.workerId = socket.getRemoteSocketAddress().toString();
+        this.intervalNanos = rate > 0 ? (long) (1e9 / rate) : 0;
+        this.window = window;
+        this.permits = new Semaphore(window);
+        // Sequence ids are consecutive per connection, so twice the window never overwrites a live entry
+        this.pending = new PendingPings(window * 2);
+        this.executor = executor;
+        this.onSession = onSession;
+    }
+
+    /**
+     * Sends pings until the connection closes; pongs are read on a separate thread.
+     * After {@link #finish()} no more pings are sent and the call returns once the connection is closed.
+     */
+    void run() {
+        executor.execute(this::receive);
+        try {
+            Frame frame = new Frame();
+            long sequence = 0;
+            long intendedNanos = System.nanoTime();
+
+            while (running && sending) {
+                if (intervalNanos > 0) {
+                    intendedNanos += intervalNanos;
+                    long delay;
+                    while ((delay = intendedNanos - System.nanoTime()) > 0) {
+                        LockSupport.parkNanos(delay);
+                    }
+                }
+                permits.acquire();
+                if (!running || !sending) {
+                    break;
+                }
+                // Without a target rate there is no schedule, so the actual send time is the intended one
+                long sendNanos = intervalNanos > 0 ? intendedNanos : System.nanoTime();
+                sequence++;
+                pending.register(sequence, sendNanos);
+                outstanding.incrementAndGet();
+                // Paced pings leave on schedule; unpaced ones are batched until the window is full
+                out.write(frame.set(Frame.PING, sequence, sendNanos).payload(PING), intervalNanos > 0);
+                stats.sent(1);
+                if (intervalNanos == 0 && permits.availablePermits() == 0) {
+                    out.idle();
+                }
+            }
+        } catch (IOException e) {
+            Log.warn("Error sending pings to {}: {}", workerId, e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (sending) {
+                stop();
+            }
+        }
+        try {
+            closed.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            stop();
+        }
+    }
+
+    /**
+     * Stops sending pings and leaves the connection open for the pongs still due.
+     */
+    void finish() {
+        sending = false;
+        // Wake up a sender blocked on a full window
+        permits.release();
+    }
+
+    /**
+     * Returns the pings sent and not answered yet.
+     * @return The outstanding ping count.
+     */
+    int outstanding() {
+        return outstanding.get();
+    }
+
+    /**
+     * Reads pongs, records their round-trip time and frees a window slot for each.
+     */
+    private void receive() {
+        try {
+            FrameReader in = new FrameReader(socket.getInputStream(), codec, traffic);
+            Frame frame = new Frame();
+            while (in.read(frame)) {
+                long receiveNanos = System.nanoTime();
+                liveness.heard(socket);
+                if (frame.type() == Frame.SESSION) {
+                    workerId = onSession.apply(frame);
+                    continue;
+                }
+                if (frame.type() != Frame.PONG) {
+                    continue;
+                }
+                long sendNanos = pending.complete(frame.sequence());
+                if (sendNanos < 0) {
+                    stats.unmatched();
+                } else {
+                    stats.record(workerId, receiveNanos - sendNanos);
+                    outstanding.decrementAndGet();
+                }
+                permits.release();
+            }
+            Log.info("Worker {} disconnected", workerId);
+        } catch (IOException e) {
+            if (sending) {
+                Log.warn("Error reading pongs from {}: {}", workerId, e.getMessage());
+            } else {
+                // Closed by the Master's drain
+                Log.info("Worker {} disconnected", workerId);
+            }
+        } finally {
+            stop();
+        }
+    }
+
+    /**
+     * Stops both directions and closes the socket.
+     */
+    private void stop() {
+        running = false;
+        // Wake up a sender blocked on a full window
+        permits.release(window);
+        closed.countDown();
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Already closed by the other direction
+        }
+    }
+}
@@ -1,84 +1,511 @@
 package one_to_one;
 
+import common.Codec;
+import common.DrainReport;
+import common.Frame;
+import common.FrameReader;
+import common.FrameWriter;
+import common.Lifecycle;
+import common.Liveness;
+import common.Log;
+import common.Metrics;
+import common.PendingPings;
+import common.RttStats;
+import common.Sessions;
+import common.Shutdown;
+import common.SocketTuning;
+import common.ThreadMode;
+import common.Tls;
+
 import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+public class Master implements Lifecycle {
+    /**
+     * How each connected worker is pinged.
+     * ONCE sends a single ping, SUSTAINED keeps pinging at a target rate with a window of outstanding pings,
+     * DISPATCH sends submitted tasks to the workers instead of pings.
+     */
+    public enum PingMode { ONCE, SUSTAINED, DISPATCH }
+
+    private static final ByteBuffer PING = ByteBuffer.wrap("ping".getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+    private static final byte[] PONG = "pong".getBytes(StandardCharsets.UTF_8);
 
-public class Master {
     private int port;
-    private List<Socket> workerSockets = new ArrayList<>();
+    private PingMode pingMode;
+    private double rate;
+    private int window;
+    private Codec codec;
+    private Dispatcher dispatcher;
+    private Map<Socket, FrameWriter> writers = new ConcurrentHashMap<>();
+    private Map<Socket, String> sessionIds = new ConcurrentHashMap<>();
+    private Liveness<Socket> liveness;
+    private RttStats stats = new RttStats();
+    // A worker that reconnects keeps its RTT history; it is dropped once the session expires
+    private Sessions<String> sessions = new Sessions<>(stats::remove);
+    private Metrics metrics;
+    private Metrics.Traffic traffic;
+    private LongAdder evictions;
+    private AtomicLong pingSequence = new AtomicLong();
+    private ScheduledExecutorService statsScheduler;
+    private ExecutorService executorService;
+    // Pings of once mode sent and not answered yet, and the drivers of sustained mode
+    private AtomicInteger unansweredPings = new AtomicInteger();
+    private Set<LoadDriver> drivers = ConcurrentHashMap.newKeySet();
+    private volatile ServerSocket serverSocket;
+    private volatile boolean stopping;
+    private DrainReport drainReport;
 
     /**
      * Constructor to initialize the Master class with the specified port.
      * @param port Port number on which the Master node listens for connections.
      */
     public Master(int port) {
+        this(port, PingMode.ONCE, 0, 1);
+    }
+
+    /**
+     * Constructor to initialize the Master class with the specified port and ping mode.
+     * @param port Port number on which the Master node listens for connections.
+     * @param pingMode How each connected worker is pinged.
+     * @param rate Target pings per second per worker in sustained mode, 0 for as fast as possible.
+     * @param window Maximum outstanding pings per worker in sustained mode.
+     */
+    public Master(int port, PingMode pingMode, double rate, int window) {
+        this(port, pingMode, rate, window, DispatchStrategy.LEAST_OUTSTANDING);
+    }
+
+    /**
+     * Constructor to initialize the Master class with the specified port, ping mode and dispatch strategy.
+     * @param port Port number on which the Master node listens for connections.
+     * @param pingMode How each connected worker is pinged.
+     * @param rate Target pings per second per worker in sustained mode, 0 for as fast as possible.
+     * @param window Maximum outstanding pings per worker in sustained mode, or tasks per worker in dispatch mode.
+     * @param strategy How the worker for each task is picked in dispatch mode.
+     */
+    public Master(int port, PingMode pingMode, double rate, int window, DispatchStrategy strategy) {
         this.port = port;
+        this.pingMode = pingMode;
+        this.rate = rate;
+        this.window = window;
+        this.codec = Codec.configured();
+        this.executorService = ThreadMode.configured().newExecutor("one-to-one-worker");
+        this.metrics = Metrics.register("one_to_one", "master", Integer.toString(port));
+        this.traffic = metrics.traffic();
+        this.evictions = metrics.counter("pingpong_workers_evicted_total", "Workers disconnected because they stopped responding");
+        metrics.gauge("pingpong_connected_workers", "Workers currently connected", () -> writers.size());
+        metrics.gauge("pingpong_sessions", "Worker sessions kept, connected or not", sessions::size);
+        metrics.counter("pingpong_sessions_resumed_total", "Connections that resumed an existing worker session", sessions::resumedCount);
+        stats.register(metrics);
+        if (pingMode == PingMode.DISPATCH) {
+            this.dispatcher = new Dispatcher(strategy, window, stats);
+            dispatcher.register(metrics);
+        }
+        this.liveness = new Liveness<>("one-to-one-liveness", codec, new Liveness.Listener<Socket>() {
+            public void sendHeartbeat(Socket socket) {
+                FrameWriter out = writers.get(socket);
+                if (out != null) {
+                    // Skipped while another write is under way, which proves the connection alive anyway
+                    try {
+                        out.tryWrite(new Frame().set(Frame.HEARTBEAT, 0, System.nanoTime()));
+                    } catch (IOException e) {
+                        close(socket);
+                    }
+                }
+            }
+
+            public void onDead(Socket socket) {
+                Log.warn("Worker {} stopped responding, disconnecting it.", socket.getRemoteSocketAddress());
+                evictions.increment();
+                close(socket);
+            }
+        });
+    }
+
+    /**
+     * Returns a snapshot of the round-trip times measured so far.
+     * @return The global and per-worker RTT statistics.
+     */
+    public RttStats.Snapshot stats() {
+        return stats.snapshot();
+    }
+
+    /**
+     * Submits a task to be run by one of the workers.
+     * @param task The task as text, for the default worker handler the microseconds of simulated work.
+     * @return A future completed with the result once a worker answered.
+     */
+    public CompletableFuture<TaskResult> submit(String task) {
+        if (dispatcher == null) {
+            return CompletableFuture.failedFuture(new IllegalStateException("Tasks need the dispatch ping mode"));
+        }
+        if (stopping) {
+            return CompletableFuture.failedFuture(new IllegalStateException("The Master is shutting down"));
+        }
+        if (codec.isText()) {
+            return CompletableFuture.failedFuture(new IllegalStateException("Tasks need the binary protocol"));
+        }
+        return dispatcher.submit(task);
     }
 
     /**
-     * Starts the Master server to accept connections from worker nodes.
+     * Keeps submitting the same task, at a fixed rate or whenever a worker has room, until the Master is drained.
+     * Paced tasks are due at fixed times and wait in the backlog when the workers fall behind, so
+     * their latencies include the queueing delay instead of hiding it.
+     * @param taskRate Tasks per second across all workers, 0 to keep every worker's window full.
+     * @param task The task as text.
+     */
+    public void generateTasks(double taskRate, String task) {
+        if (dispatcher == null || codec.isText()) {
+            Log.warn("Tasks need the dispatch ping mode and the binary protocol, not generating any");
+            return;
+        }
+        long intervalNanos = taskRate > 0 ? (long) (1_000_000_000L / taskRate) : 0;
+        long nextNanos = System.nanoTime();
+        try {
+            while (!stopping && !Thread.currentThread().isInterrupted()) {
+                if (intervalNanos > 0) {
+                    nextNanos += intervalNanos;
+                    long delay = nextNanos - System.nanoTime();
+                    if (delay > 0) {
+                        LockSupport.parkNanos(delay);
+                    }
+                } else {
+                    dispatcher.awaitCapacity();
+                }
+                submit(task);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Starts the Master server to accept connections from worker nodes until it is drained.
      */
     public void start() {
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
-            System.out.println("Master node is running on port " + port);
+        statsScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "stats-dump");
+            thread.setDaemon(true);
+            return thread;
+        });
+        stats.dumpEvery(statsScheduler, RttStats.configuredDumpPeriodSeconds());
 
-            // Accept connections from worker nodes
-            while (true) {
+        try (ServerSocket serverSocket = SocketTuning.listen(port)) {
+            this.serverSocket = serverSocket;
+            Log.info("Master node is running on port {}", port);
+
+            // Accept connections from worker nodes; a drain closes the server socket
+            while (!stopping) {
                 Socket workerSocket = serverSocket.accept();
-                workerSockets.add(workerSocket);
-                System.out.println("Connected to worker: " + workerSocket.getInetAddress());
-                handleWorker(workerSocket);
+                if (stopping) {
+                    close(workerSocket);
+                    break;
+                }
+                SocketTuning.apply(workerSocket);
+                Log.info("Connected to worker: {}", workerSocket.getInetAddress());
+                // The TLS handshake waits for the worker, so it must not hold up the accept loop
+                executorService.execute(() -> handleWorker(workerSocket));
             }
         } catch (IOException e) {
-            e.printStackTrace();
+            if (!stopping) {
+                Log.error("Master on port {} stopped accepting workers", port, e);
+            }
+        }
+    }
+
+    /**
+     * Stops pinging or dispatching, waits for the pongs and results still due, then disconnects every worker.
+     * Dropped messages are the pings or tasks that were not answered in time, including queued tasks.
+     * @param timeout How long to wait for outstanding answers.
+     * @param unit Unit of the timeout.
+     * @return What was completed and dropped while draining.
+     */
+    public synchronized DrainReport drain(long timeout, TimeUnit unit) {
+        if (drainReport != null) {
+            return drainReport;
+        }
+        long startNanos = System.nanoTime();
+        int inFlight = outstanding();
+        stopping = true;
+        Shutdown.unregister(this);
+        ServerSocket listener = serverSocket;
+        if (listener != null) {
+            try {
+                listener.close();
+            } catch (IOException e) {
+                Log.error("Could not close the server socket on port {}", port, e);
+            }
+        }
+        for (LoadDriver driver : drivers) {
+            driver.finish();
         }
+        Shutdown.await(() -> outstanding() == 0, startNanos + unit.toNanos(timeout));
+        int dropped = outstanding();
+        if (dispatcher != null) {
+            // Callers of submit() learn that their remaining tasks will not be answered
+            dispatcher.failAll(new IllegalStateException("The Master was drained before the task was answered"));
+        }
+
+        // Writes go out as they are made, so closing is all that is left
+        for (Socket workerSocket : writers.keySet()) {
+            close(workerSocket);
+        }
+        liveness.stop();
+        executorService.shutdown();
+        if (statsScheduler != null) {
+            statsScheduler.shutdownNow();
+        }
+        metrics.close();
+        drainReport = new DrainReport(System.nanoTime() - startNanos, Math.max(0, inFlight - dropped), dropped);
+        return drainReport;
     }
 
     /**
-     * Handles communication with a connected worker node.
+     * Returns the pings or tasks sent to workers, or queued for them, that were not answered yet.
+     * @return The outstanding message count.
+     */
+    private int outstanding() {
+        if (pingMode == PingMode.DISPATCH) {
+            return dispatcher.pending();
+        }
+        if (pingMode == PingMode.SUSTAINED) {
+            int count = 0;
+            for (LoadDriver driver : drivers) {
+                count += driver.outstanding();
+            }
+            return count;
+        }
+        return unansweredPings.get();
+    }
+
+    /**
+     * Handles communication with a connected worker node until its connection ends, on a task of its own.
      * @param workerSocket The socket connected to the worker node.
      */
     private void handleWorker(Socket workerSocket) {
-        new Thread(() -> {
-            try {
-                PrintWriter out = new PrintWriter(workerSocket.getOutputStream(), true);
-                BufferedReader in = new BufferedReader(new InputStreamReader(workerSocket.getInputStream()));
+        FrameWriter out;
+        try {
+            Tls.handshake(workerSocket);
+            out = new FrameWriter(new BufferedOutputStream(workerSocket.getOutputStream()), codec, traffic);
+        } catch (IOException e) {
+            close(workerSocket);
+            return;
+        }
+        if (stopping) {
+            // Accepted before a drain that has closed the other connections already
+            close(workerSocket);
+            return;
+        }
+        writers.put(workerSocket, out);
+        liveness.register(workerSocket);
+
+        if (pingMode == PingMode.DISPATCH) {
+            dispatcher.add(workerSocket, out);
+            collectResults(workerSocket);
+            return;
+        }
+        if (pingMode == PingMode.SUSTAINED) {
+            LoadDriver driver = new LoadDriver(workerSocket, out, codec, traffic, stats, rate, window, executorService, liveness,
+                    frame -> openSession(workerSocket, frame));
+            drivers.add(driver);
+            driver.run();
+            drivers.remove(driver);
+            forget(workerSocket);
+            return;
+        }
+        pingOnce(workerSocket, out);
+    }
+
+    /**
+     * Sends one ping to a worker and reads its pong, then keeps reading heartbeat echoes until the connection ends.
+     * @param workerSocket The socket connected to the worker node.
+     * @param out The writer of the worker's connection.
+     */
+    private void pingOnce(Socket workerSocket, FrameWriter out) {
+        boolean awaitingPong = false;
+        try {
+            FrameReader in = new FrameReader(workerSocket.getInputStream(), codec, traffic);
+            Frame frame = new Frame();
+            String workerId = workerSocket.getRemoteSocketAddress().toString();
+            PendingPings pending = new PendingPings(1);
 
-                // Send a ping message to the worker
-                out.println("ping");
+            // Send a ping message to the worker, stamped with its sequence id and monotonic send time
+            long sequence = pingSequence.incrementAndGet();
+            long sendNanos = System.nanoTime();
+            pending.register(sequence, sendNanos);
+            unansweredPings.incrementAndGet();
+            awaitingPong = true;
+            out.write(frame.set(Frame.PING, sequence, sendNanos).payload(PING));
+            stats.sent(1);
 
-                // Read the response from the worker
-                String response = in.readLine();
-                if ("pong".equals(response)) {
-                    System.out.println("Received pong from " + workerSocket.getInetAddress());
-                } else {
-                    System.out.println("Unexpected response from " + workerSocket.getInetAddress());
+            // Read the response from the worker; text mode peers only send the payload.
+            // Binary peers name their session first, and heartbeat echoes may come before the pong
+            while (awaitingPong && in.read(frame)) {
+                long receiveNanos = System.nanoTime();
+                liveness.heard(workerSocket);
+                if (frame.type() == Frame.SESSION) {
+                    workerId = openSession(workerSocket, frame);
+                } else if (frame.type() == Frame.PONG || frame.payloadEquals(PONG)) {
+                    if (frame.type() == Frame.PONG) {
+                        recordPong(workerId, frame, pending, receiveNanos);
+                    }
+                    if (Log.sampled()) {
+                        Log.debug("Received pong from {}", workerSocket.getInetAddress());
+                    }
+                    awaitingPong = false;
+                    unansweredPings.decrementAndGet();
+                } else if (frame.type() != Frame.HEARTBEAT) {
+                    Log.warn("Unexpected response from {}", workerSocket.getInetAddress());
+                    awaitingPong = false;
+                    unansweredPings.decrementAndGet();
+                }
+            }
+
+            // Keep reading heartbeat echoes so an idle worker that dies is still noticed
+            while (in.read(frame)) {
+                liveness.heard(workerSocket);
+            }
+            Log.info("Worker {} disconnected", workerSocket.getInetAddress());
+        } catch (IOException e) {
+            Log.info("Connection to worker {} closed: {}", workerSocket.getInetAddress(), e.getMessage());
+        } finally {
+            if (awaitingPong) {
+                // The connection ended before the pong, the ping is lost
+                unansweredPings.decrementAndGet();
+            }
+            forget(workerSocket);
+        }
+    }
+
+    /**
+     * Reads the results a worker sends back in dispatch mode until its connection ends.
+     * @param workerSocket The socket connected to the worker node.
+     */
+    private void collectResults(Socket workerSocket) {
+        try {
+            FrameReader in = new FrameReader(workerSocket.getInputStream(), codec, traffic);
+            Frame frame = new Frame();
+            while (in.read(frame)) {
+                liveness.heard(workerSocket);
+                if (frame.type() == Frame.RESULT) {
+                    dispatcher.complete(workerSocket, frame);
+                } else if (frame.type() == Frame.SESSION) {
+                    dispatcher.rename(workerSocket, openSession(workerSocket, frame));
                 }
-            } catch (IOException e) {
-                System.out.println("Error handling worker " + workerSocket.getInetAddress());
-                e.printStackTrace();
             }
-        }).start();
+            Log.info("Worker {} disconnected", workerSocket.getInetAddress());
+        } catch (IOException e) {
+            Log.info("Connection to worker {} closed: {}", workerSocket.getInetAddress(), e.getMessage());
+        } finally {
+            // Unanswered tasks go to the remaining workers
+            dispatcher.remove(workerSocket);
+            forget(workerSocket);
+        }
+    }
+
+    /**
+     * Stops tracking a worker whose connection ended.
+     * @param workerSocket The socket connected to the worker node.
+     */
+    private void forget(Socket workerSocket) {
+        liveness.unregister(workerSocket);
+        writers.remove(workerSocket);
+        String workerId = sessionIds.remove(workerSocket);
+        if (workerId != null) {
+            sessions.disconnect(workerId);
+        }
+        close(workerSocket);
+    }
+
+    /**
+     * Opens or resumes the session a worker named in its SESSION frame.
+     * @param workerSocket The socket connected to the worker node.
+     * @param frame The SESSION frame carrying the worker id.
+     * @return The key the worker's round-trip times are recorded under.
+     */
+    private String openSession(Socket workerSocket, Frame frame) {
+        String workerId = frame.payloadAsString();
+        if (sessionIds.putIfAbsent(workerSocket, workerId) != null) {
+            return sessionIds.get(workerSocket);
+        }
+        Log.info("Worker {} joined with session {}", workerSocket.getInetAddress(), workerId);
+        return sessions.connect(workerId, workerId);
+    }
+
+    /**
+     * Closes a worker socket; its reader notices and cleans up.
+     * @param workerSocket The socket to close.
+     */
+    private void close(Socket workerSocket) {
+        try {
+            workerSocket.close();
+        } catch (IOException e) {
+            Log.error("Could not close the connection to {}", workerSocket.getRemoteSocketAddress(), e);
+        }
+    }
+
+    /**
+     * Matches a pong to its ping by sequence id and records the round-trip time.
+     * @param workerId Identifier of the worker that replied.
+     * @param frame The received PONG frame.
+     * @param pending The pings of this connection that are waiting for a pong.
+     * @param receiveNanos Monotonic time at which the pong was read.
+     */
+    private void recordPong(String workerId, Frame frame, PendingPings pending, long receiveNanos) {
+        long sendNanos = pending.complete(frame.sequence());
+        if (sendNanos < 0) {
+            stats.unmatched();
+        } else {
+            stats.record(workerId, receiveNanos - sendNanos);
+        }
     }
 
     /**
      * Main method to initialize and start the Master node.
-     * @param args Command-line arguments: port number.
+     * @param args Command-line arguments: port number, optional ping mode (once, sustained or dispatch),
+     *             target rate per worker (0 for as fast as possible) and window size; in dispatch mode
+     *             the rate is tasks per second across all workers, followed by the dispatch strategy
+     *             and the microseconds of simulated work per task.
      */
     public static void main(String[] args) {
         if (args.length < 1) {
-            System.out.println("Usage: java Master <port>");
+            System.out.println("Usage: java Master <port> [once|sustained|dispatch] [pings_per_second] [window] "
+                    + "[round_robin|least_outstanding|power_of_two] [task_micros]");
             return;
         }
 
         // Parse the command-line arguments
         int port = Integer.parseInt(args[0]);
+        PingMode pingMode = args.length > 1 ? PingMode.valueOf(args[1].toUpperCase()) : PingMode.ONCE;
+        double rate = args.length > 2 ? Double.parseDouble(args[2]) : 0;
+        int window = args.length > 3 ? Integer.parseInt(args[3]) : 1;
+        DispatchStrategy strategy = args.length > 4 ? DispatchStrategy.valueOf(args[4].toUpperCase()) : DispatchStrategy.LEAST_OUTSTANDING;
+        String task = args.length > 5 ? args[5] : "1000";
 
-        // Create and start the Master node
-        Master masterNode = new Master(port);
+        // Create and start the Master node; in dispatch mode it generates its own tasks. It drains when the JVM is stopped
+        Master masterNode = new Master(port, pingMode, rate, window, strategy);
+        Shutdown.register(masterNode, "Master on port " + port);
+        if (pingMode == PingMode.DISPATCH) {
+            Thread generator = new Thread(() -> masterNode.generateTasks(rate, task), "task-generator");
+            generator.setDaemon(true);
+            generator.start();
+        }
         masterNode.start();
     }
 }
@@ -0,0 +1,31 @@
+package one_to_one;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Executes the tasks a Worker receives in dispatch mode.
+ */
+public interface TaskHandler {
+    /**
+     * Flag of a RESULT frame whose task threw; the payload then carries the error message.
+     */
+    byte FAILED = 1;
+
+    /**
+     * Stands in for real work: the task is a number of microseconds the handler waits before
+     * answering with the task itself.
+     */
+    TaskHandler SIMULATED = task -> {
+        LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(Long.parseLong(task.trim())));
+        return task;
+    };
+
+    /**
+     * Runs one task on a worker pool thread.
+     * @param task The task as sent by the Master.
+     * @return The result returned to the Master.
+     * @throws Exception if the task fails; the Master completes it as failed.
+     */
+    String execute(String task) throws Exception;
+}
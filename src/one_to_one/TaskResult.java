@@ -0,0 +1,67 @@
+package one_to_one;
+
+/**
+ * Outcome of one dispatched task: what the worker returned or why it failed, and how long it took.
+ */
+public class TaskResult {
+    private final long taskId;
+    private final String worker;
+    private final boolean succeeded;
+    private final String output;
+    private final long elapsedNanos;
+    private final int attempts;
+
+    TaskResult(long taskId, String worker, boolean succeeded, String output, long elapsedNanos, int attempts) {
+        this.taskId = taskId;
+        this.worker = worker;
+        this.succeeded = succeeded;
+        this.output = output;
+        this.elapsedNanos = elapsedNanos;
+        this.attempts = attempts;
+    }
+
+    public long taskId() {
+        return taskId;
+    }
+
+    /**
+     * Returns the worker that ran the task, by session id if it sent one, otherwise by address.
+     * @return The worker identifier.
+     */
+    public String worker() {
+        return worker;
+    }
+
+    /**
+     * Tells whether the task ran without throwing.
+     * @return True if the output is the task's result, false if it is the error message.
+     */
+    public boolean succeeded() {
+        return succeeded;
+    }
+
+    public String output() {
+        return output;
+    }
+
+    /**
+     * Returns the time from submission to the result, including any wait for a free worker.
+     * @return The elapsed time in nanoseconds.
+     */
+    public long elapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * Returns how many workers the task was sent to; more than one if a worker was lost while running it.
+     * @return The number of dispatch attempts.
+     */
+    public int attempts() {
+        return attempts;
+    }
+
+    public String toString() {
+        return String.format("Task %d %s on %s in %.1f us after %d attempts: %s",
+                taskId, succeeded ? "completed" : "failed", worker, elapsedNanos / 1e3, attempts, output);
+    }
+}
@@ -1,11 +1,48 @@
 package one_to_one;
 
+import common.Backoff;
+import common.Codec;
+import common.DrainReport;
+import common.Frame;
+import common.FrameReader;
+import common.FrameWriter;
+import common.Lifecycle;
+import common.Log;
+import common.Metrics;
+import common.Sessions;
+import common.Shutdown;
+import common.SocketTuning;
+
 import java.io.*;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+public class Worker implements Lifecycle {
+    private static final byte[] PING = "ping".getBytes(StandardCharsets.UTF_8);
+    private static final ByteBuffer PONG = ByteBuffer.wrap("pong".getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+    // Threads running tasks in dispatch mode, by default one per core; 0 runs each task on its own virtual thread
+    public static final String TASK_THREADS_PROPERTY = "pingpong.task.threads";
 
-public class Worker {
     private String masterAddress;
     private int masterPort;
+    private Codec codec;
+    private Metrics metrics;
+    private Metrics.Traffic traffic;
+    private LongAdder reconnects;
+    private String workerId;
+    private TaskHandler handler;
+    private ExecutorService tasks;
+    // Tasks received and not yet answered, reported back with every result
+    private AtomicInteger queuedTasks = new AtomicInteger();
+    private volatile Socket socket;
+    private volatile boolean stopping;
+    private DrainReport drainReport;
 
     /**
      * Constructor to initialize the Worker class with the specified master address and port.
@@ -13,35 +50,171 @@ public class Worker {
      * @param masterPort Port number of the master node.
      */
     public Worker(String masterAddress, int masterPort) {
+        this(masterAddress, masterPort, TaskHandler.SIMULATED);
+    }
+
+    /**
+     * Constructor to initialize the Worker class with the specified master address, port and task handler.
+     * @param masterAddress Address of the master node.
+     * @param masterPort Port number of the master node.
+     * @param handler Runs the tasks the master dispatches.
+     */
+    public Worker(String masterAddress, int masterPort, TaskHandler handler) {
+        this.handler = handler;
+        int taskThreads = Integer.getInteger(TASK_THREADS_PROPERTY, Runtime.getRuntime().availableProcessors());
+        this.tasks = taskThreads > 0
+                ? Executors.newFixedThreadPool(taskThreads, Thread.ofPlatform().name("task-", 0).daemon().factory())
+                : Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("task-", 0).factory());
         this.masterAddress = masterAddress;
         this.masterPort = masterPort;
+        this.codec = Codec.configured();
+        this.workerId = Sessions.newWorkerId();
+        this.metrics = Metrics.register("one_to_one", "worker", Metrics.nextNodeId());
+        this.traffic = metrics.traffic();
+        this.reconnects = metrics.counter("pingpong_reconnects_total", "Connections to the master after the first");
+        metrics.gauge("pingpong_worker_tasks_queued", "Tasks received from the master and not yet answered", queuedTasks::get);
     }
 
     /**
      * Starts the Worker node, connects to the master node, and handles communication.
+     * A master that is not up yet or goes away is retried with jittered exponential backoff until the worker is drained.
      */
     public void start() {
-        try {
-            Socket socket = new Socket(masterAddress, masterPort);
-            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-
-            System.out.println("Connected to master at " + masterAddress + ":" + masterPort);
-
-            // Listening for messages from the master
-            String message;
-            while ((message = in.readLine()) != null) {
-                if ("ping".equals(message)) {
-                    System.out.println("Received ping from master");
-                    // Respond with a pong message
-                    out.println("pong");
+        Backoff backoff = new Backoff();
+        boolean connectedBefore = false;
+        while (!stopping) {
+            try (Socket socket = SocketTuning.connect(masterAddress, masterPort)) {
+                this.socket = socket;
+                if (stopping) {
+                    break;
+                }
+                backoff.reset();
+                if (connectedBefore) {
+                    reconnects.increment();
+                }
+                connectedBefore = true;
+                serve(socket);
+                if (!stopping) {
+                    Log.warn("Master at {}:{} closed the connection", masterAddress, masterPort);
+                }
+            } catch (IOException e) {
+                if (!stopping) {
+                    Log.warn("Connection to master at {}:{} failed: {}", masterAddress, masterPort, e.getMessage());
+                }
+            }
+            if (stopping) {
+                break;
+            }
+            long delay = backoff.nextDelayMillis();
+            Log.info("Reconnecting to master in {} ms", delay);
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Stops reconnecting, waits for the tasks received from the master to be answered, then disconnects.
+     * Pings keep being answered meanwhile. Dropped messages are the tasks whose result was not sent in time.
+     * @param timeout How long to wait for running tasks.
+     * @param unit Unit of the timeout.
+     * @return What was completed and dropped while draining.
+     */
+    public synchronized DrainReport drain(long timeout, TimeUnit unit) {
+        if (drainReport != null) {
+            return drainReport;
+        }
+        long startNanos = System.nanoTime();
+        stopping = true;
+        Shutdown.unregister(this);
+        int inFlight = queuedTasks.get();
+        Shutdown.await(() -> queuedTasks.get() == 0, startNanos + unit.toNanos(timeout));
+        int dropped = queuedTasks.get();
+
+        // Replies are flushed by the reader whenever its input runs dry, so closing is all that is left
+        Socket current = socket;
+        if (current != null) {
+            try {
+                current.close();
+            } catch (IOException e) {
+                Log.error("Could not close the connection to the master", e);
+            }
+        }
+        tasks.shutdownNow();
+        metrics.close();
+        drainReport = new DrainReport(System.nanoTime() - startNanos, Math.max(0, inFlight - dropped), dropped);
+        return drainReport;
+    }
+
+    /**
+     * Answers the master's pings and runs its tasks until the connection ends.
+     * @param socket The socket connected to the master node.
+     * @throws IOException if the connection fails.
+     */
+    private void serve(Socket socket) throws IOException {
+        FrameWriter out = new FrameWriter(new BufferedOutputStream(socket.getOutputStream()), codec, traffic);
+        FrameReader in = new FrameReader(socket.getInputStream(), codec, traffic);
+
+        Log.info("Connected to master at {}:{} as {}", masterAddress, masterPort, workerId);
+        if (!codec.isText()) {
+            // Name the session first so a restarted connection is recognised as the same worker
+            out.write(new Frame().set(Frame.SESSION, 0, System.nanoTime()).payload(workerId));
+        }
+
+        // Listening for messages from the master; replies to a burst of pings leave in one write
+        Frame frame = new Frame();
+        while (in.read(frame)) {
+            if (frame.type() == Frame.HEARTBEAT) {
+                // Echo so the master hears from an otherwise idle worker
+                out.write(frame, false);
+            } else if (frame.type() == Frame.PING || frame.payloadEquals(PING)) {
+                if (Log.sampled()) {
+                    Log.debug("Received ping from master");
                 }
+                // Respond with a pong message carrying the ping's sequence id and timestamp
+                out.write(frame.set(Frame.PONG, frame.sequence(), frame.timestamp()).payload(PONG), false);
+            } else if (frame.type() == Frame.TASK) {
+                runTask(out, frame.sequence(), frame.timestamp(), frame.payloadAsString());
+            }
+            if (!in.hasBuffered()) {
+                out.idle();
             }
-        } catch (IOException e) {
-            e.printStackTrace();
         }
     }
 
+    /**
+     * Runs a task on the task pool and sends its result back over the connection it came from.
+     * @param out The writer of the connection to the master.
+     * @param taskId Id of the task, echoed in the result.
+     * @param timestamp Timestamp of the TASK frame, echoed in the result.
+     * @param task The task as text.
+     */
+    private void runTask(FrameWriter out, long taskId, long timestamp, String task) {
+        queuedTasks.incrementAndGet();
+        tasks.execute(() -> {
+            String output;
+            byte flags = 0;
+            try {
+                output = String.valueOf(handler.execute(task));
+            } catch (Exception e) {
+                output = e.toString();
+                flags = TaskHandler.FAILED;
+            }
+            int depth = queuedTasks.decrementAndGet();
+            byte[] bytes = output.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer payload = ByteBuffer.allocate(Integer.BYTES + bytes.length).putInt(depth).put(bytes).flip();
+            try {
+                out.write(new Frame().set(Frame.RESULT, taskId, timestamp).flags(flags).payload(payload));
+            } catch (IOException e) {
+                // The master re-dispatches unanswered tasks of a lost connection
+                Log.debug("Result of task {} lost with the connection: {}", taskId, e.getMessage());
+            }
+        });
+    }
+
     /**
      * Main method to initialize and start the Worker node.
      * @param args Command-line arguments: master address and port number.
@@ -56,8 +229,9 @@ public class Worker {
         String masterAddress = args[0];
         int masterPort = Integer.parseInt(args[1]);
 
-        // Create and start the Worker node
+        // Create and start the Worker node; it drains when the JVM is stopped
         Worker workerNode = new Worker(masterAddress, masterPort);
+        Shutdown.register(workerNode, "Worker " + workerNode.workerId);
         workerNode.start();
     }
 }
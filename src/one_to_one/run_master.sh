@@ -18,6 +18,14 @@ if [[ -z "$MASTER_PORT"  || -z "$NUM_WORKERS" || -z "$MASTER_ADDRESS"
     exit 1
 fi
 
+# Create a keystore with a self-signed certificate on first use, every node trusts it
+if [[ "${TLS:-false}" == "true" && ! -f "${TLS_KEYSTORE:-pingpong-tls.p12}" ]]; then
+    keytool -genkeypair -alias pingpong -keyalg EC -groupname secp256r1 -validity 365 -dname "CN=pingpong" \
+        -storetype PKCS12 -keystore "${TLS_KEYSTORE:-pingpong-tls.p12}" -storepass "${TLS_PASSWORD:-changeit}" > /dev/null
+fi
+
 # Start MasterNode
-java -jar ./master.jar $MASTER_PORT &
+java -Dpingpong.protocol=${PROTOCOL:-binary} -Dpingpong.log.level=${LOG_LEVEL:-info} -Dpingpong.log.sample=${LOG_SAMPLE:-1} -Dpingpong.session.ttl=${SESSION_TTL:-60000} -Dpingpong.metrics.port=${METRICS_PORT:-0} -Dpingpong.tcp.nodelay=${TCP_NODELAY:-true} -Dpingpong.socket.sndbuf=${SOCKET_SNDBUF:-0} -Dpingpong.socket.rcvbuf=${SOCKET_RCVBUF:-0} -Dpingpong.write.batch=${WRITE_BATCH:-16384} -Dpingpong.write.linger=${WRITE_LINGER:-0} -Dpingpong.threads=${THREAD_MODE:-platform} -Dpingpong.heartbeat.interval=${HEARTBEAT_INTERVAL:-100} -Dpingpong.failure.detector=${FAILURE_DETECTOR:-phi} -Dpingpong.failure.timeout=${FAILURE_TIMEOUT:-500} -Dpingpong.stats.period=${STATS_PERIOD:-10} -Dpingpong.shutdown.timeout=${SHUTDOWN_TIMEOUT:-5000} -Dpingpong.tls=${TLS:-false} -Dpingpong.tls.keystore=${TLS_KEYSTORE:-pingpong-tls.p12} -Dpingpong.tls.password=${TLS_PASSWORD:-changeit} -Dpingpong.tls.resumption=${TLS_RESUMPTION:-true} -jar ./master.jar $MASTER_PORT ${PING_MODE:-once} ${PING_RATE:-0} ${PING_WINDOW:-1} ${DISPATCH_STRATEGY:-least_outstanding} ${TASK_MICROS:-1000} &
+# SIGTERM drains the master: kill $(cat master.pid)
+echo $! > master.pid
 
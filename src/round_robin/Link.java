@@ -0,0 +1,175 @@
+package round_robin;
+
+import common.Backoff;
+import common.Codec;
+import common.Frame;
+import common.FrameWriter;
+import common.Log;
+import common.Metrics;
+import common.SocketTuning;
+
+import java.io.*;
+import java.net.Socket;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A long-lived outbound connection to the next node in the ring.
+ * Messages are written back to back without waiting for any reply, so many tokens can be
+ * in flight on the same connection. A broken connection is re-established on the next send.
+ * A lock rather than a monitor guards the connection so virtual thread senders do not pin their carrier.
+ */
+class Link {
+    private static final int MAX_ATTEMPTS = 5;
+
+    private final String host;
+    private final int port;
+    private final Codec codec;
+    private final Metrics.Traffic traffic;
+    private final LongAdder reconnects;
+    private final ReentrantLock lock = new ReentrantLock();
+    // Only used while holding the lock
+    private final Backoff backoff = new Backoff();
+    private volatile Socket socket;
+    private FrameWriter out;
+    private volatile boolean retired;
+    private boolean connectedBefore;
+
+    /**
+     * Constructor to initialize the Link with the address of the remote node.
+     * @param host address of the remote node.
+     * @param port port of the remote node.
+     * @param codec codec used to encode the frames.
+     * @param traffic counters of the node the frames are counted in.
+     * @param reconnects counter of the node's reconnects.
+     */
+    Link(String host, int port, Codec codec, Metrics.Traffic traffic, LongAdder reconnects) {
+        this.host = host;
+        this.port = port;
+        this.codec = codec;
+        this.traffic = traffic;
+        this.reconnects = reconnects;
+    }
+
+    /**
+     * Sends one frame, connecting or reconnecting first if needed.
+     * @param frame the frame to send.
+     * @return true if the frame was written, false if the node could not be reached.
+     */
+    boolean send(Frame frame) {
+        return send(frame, true);
+    }
+
+    /**
+     * Sends one frame, connecting or reconnecting first if needed.
+     * A deferred frame is lost if the connection breaks before it is flushed.
+     * @param frame the frame to send.
+     * @param flushNow false to leave the frame in the writer until the batch fills or {@link #idle()} is called.
+     * @return true if the frame was written or deferred, false if the node could not be reached.
+     */
+    boolean send(Frame frame, boolean flushNow) {
+        lock.lock();
+        try {
+            return sendLocked(frame, flushNow);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes the frames deferred by earlier sends, see {@link FrameWriter#idle()}.
+     */
+    void idle() {
+        lock.lock();
+        try {
+            if (out != null) {
+                out.idle();
+            }
+        } catch (IOException e) {
+            close();
+            Log.warn("Connection to {}:{} failed: {}", host, port, e.getMessage());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sends one frame while holding the lock, retrying with a jittered exponential delay.
+     * @param frame the frame to send.
+     * @param flushNow false to defer the frame.
+     * @return true if the frame was written, false if the node could not be reached.
+     */
+    private boolean sendLocked(Frame frame, boolean flushNow) {
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS && !retired; attempt++) {
+            try {
+                if (socket == null) {
+                    connect();
+                }
+                out.write(frame, flushNow);
+                return true;
+            } catch (IOException e) {
+                close();
+                Log.warn("Connection to {}:{} failed (attempt {}): {}", host, port, attempt, e.getMessage());
+                try {
+                    backoff.pause();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Opens the connection to the remote node.
+     * @throws IOException if the node cannot be reached.
+     */
+    private void connect() throws IOException {
+        socket = SocketTuning.connect(host, port);
+        out = new FrameWriter(new BufferedOutputStream(socket.getOutputStream()), codec, traffic);
+        backoff.reset();
+        if (connectedBefore) {
+            reconnects.increment();
+        }
+        connectedBefore = true;
+        Log.info("Connected to the node at {}:{}", host, port);
+    }
+
+    /**
+     * Closes the connection for good, for example when the ring gives this node a new successor.
+     * A send that is still retrying gives up instead of reconnecting.
+     */
+    void retire() {
+        retired = true;
+        // Closed without the lock: a sender blocked writing to a stalled node holds it
+        Socket current = socket;
+        if (current != null) {
+            try {
+                current.close();
+            } catch (IOException e) {
+                // Already broken, nothing else to release
+            }
+        }
+    }
+
+    /**
+     * Closes the connection; the next send reconnects.
+     */
+    void close() {
+        lock.lock();
+        try {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // Already broken, nothing else to release
+                }
+                socket = null;
+                out = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -1,19 +1,89 @@
 package round_robin;
 
+import common.Codec;
+import common.Compression;
+import common.DrainReport;
+import common.Frame;
+import common.FrameReader;
+import common.FrameWriter;
+import common.Histogram;
+import common.Lifecycle;
+import common.Liveness;
+import common.Log;
+import common.Metrics;
+import common.RttStats;
+import common.Sessions;
+import common.Shutdown;
+import common.SocketTuning;
+import common.ThreadMode;
+
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+public class Master implements Lifecycle {
+    // A lap that has not returned after this long is considered lost with a worker that left
+    private static final long LAP_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(5);
 
-public class Master {
     private final int port;
     private final List<Socket> workerSockets = new CopyOnWriteArrayList<>();
+    private final Map<Socket, FrameWriter> writers = new ConcurrentHashMap<>();
+    // The connection holding each worker session's place in the ring
+    private final Sessions<Socket> sessions = new Sessions<>(null);
+    private final Map<Socket, String> sessionIds = new ConcurrentHashMap<>();
+    // Connections of resumed sessions, mapped to the connection whose place they take once they say hello
+    private final Map<Socket, Socket> replacing = new ConcurrentHashMap<>();
+    private final Codec codec = Codec.configured();
+    private final AtomicLong chainSequence = new AtomicLong();
+    private final Token.Mode tokenMode = Token.configuredMode();
+    private final LongAdder completedLaps = new LongAdder();
+    private final Histogram lapTimes = new Histogram(5, 1L << 36);
+    private final Metrics metrics;
+    private final Metrics.Traffic traffic;
+    private final LongAdder evictions;
+    // Ring membership and laps in flight, only used with the binary protocol
+    private final Ring ring = new Ring();
+    // Workers that announced in their hello frame that they take compressed tokens
+    private final Set<Socket> compressing = ConcurrentHashMap.newKeySet();
+    private final Map<Long, Long> lapsInFlight = new ConcurrentHashMap<>();
+    private volatile int targetTokens;
+    private volatile boolean listening;
+    private volatile ServerSocket serverSocket;
+    private volatile boolean stopping;
+    private DrainReport drainReport;
     private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
+    private final ExecutorService handlerExecutor = ThreadMode.configured().newExecutor("ring-handler");
+    private final Liveness<Socket> liveness = new Liveness<>("ring-liveness", codec, new Liveness.Listener<Socket>() {
+        public void sendHeartbeat(Socket socket) {
+            FrameWriter out = writers.get(socket);
+            if (out != null) {
+                // Skipped while another write is under way, which proves the connection alive anyway
+                try {
+                    out.tryWrite(new Frame().set(Frame.HEARTBEAT, 0, System.nanoTime()));
+                } catch (IOException e) {
+                    closeQuietly(socket);
+                }
+            }
+        }
+
+        public void onDead(Socket socket) {
+            Log.warn("Worker {} stopped responding, disconnecting it.", socket.getRemoteSocketAddress());
+            evictions.increment();
+            closeQuietly(socket);
+        }
+    });
 
     /**
      * Constructor to initialize the Master class with the specified port.
@@ -21,84 +91,367 @@ public class Master {
      */
     public Master(int port) {
         this.port = port;
+        this.metrics = Metrics.register("round_robin", "master", Integer.toString(port));
+        this.traffic = metrics.traffic();
+        this.evictions = metrics.counter("pingpong_workers_evicted_total", "Workers disconnected because they stopped responding");
+        metrics.gauge("pingpong_connected_workers", "Connections from workers", workerSockets::size);
+        metrics.gauge("pingpong_ring_size", "Workers that joined the ring", ring::size);
+        metrics.gauge("pingpong_sessions", "Worker sessions kept, connected or not", sessions::size);
+        metrics.counter("pingpong_sessions_resumed_total", "Connections that resumed an existing worker session", sessions::resumedCount);
+        metrics.gauge("pingpong_tokens_in_flight", "Tokens sent round the ring that have not returned", lapsInFlight::size);
+        metrics.counter("pingpong_laps_completed_total", "Tokens that completed a lap of the ring", completedLaps::sum);
+        metrics.summary("pingpong_lap_seconds", "Time for a token to travel round the ring", lapTimes::snapshot);
     }
 
     /**
-     * Starts the Master server to accept connections from worker nodes.
+     * Tells whether the server socket is bound and accepting workers.
+     * @return True once the Master is listening.
      */
-    public void startServer() {
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
-            System.out.println("Master node is running on port " + port);
+    public boolean isListening() {
+        return listening;
+    }
 
-            // Scheduled task to check and maintain active connections every 30 seconds
-            scheduler.scheduleAtFixedRate(this::checkConnections, 10, 30, TimeUnit.SECONDS);
+    /**
+     * Returns the number of connections from workers. With the binary protocol every worker holds one;
+     * with the text protocol the first worker and the last worker's return connection do.
+     * @return The number of connected sockets.
+     */
+    public int connectedWorkers() {
+        return workerSockets.size();
+    }
+
+    /**
+     * Returns the number of tokens that have completed a lap of the ring.
+     * @return The completed lap count.
+     */
+    public long completedLaps() {
+        return completedLaps.sum();
+    }
 
-            // Continuously accept connections from worker nodes
-            while (true) {
+    /**
+     * Returns the number of workers that joined the ring.
+     * @return The ring size, 0 with the text protocol.
+     */
+    public int ringSize() {
+        return ring.size();
+    }
+
+    /**
+     * Starts the Master server to accept connections from worker nodes until it is drained.
+     */
+    public void start() {
+        startServer();
+    }
+
+    /**
+     * Starts the Master server to accept connections from worker nodes until it is drained.
+     */
+    public void startServer() {
+        try (ServerSocket serverSocket = SocketTuning.listen(port)) {
+            this.serverSocket = serverSocket;
+            Log.info("Master node is running on port {}", port);
+            listening = true;
+
+            // Continuously accept connections from worker nodes; a drain closes the server socket
+            while (!stopping) {
                 Socket workerSocket = serverSocket.accept();
+                if (stopping) {
+                    closeQuietly(workerSocket);
+                    break;
+                }
+                SocketTuning.apply(workerSocket);
                 synchronized (this.workerSockets) {
+                    this.writers.put(workerSocket, new FrameWriter(new BufferedOutputStream(workerSocket.getOutputStream()), codec, traffic));
                     this.workerSockets.add(workerSocket);
-                    System.out.println("Connected to worker: " + workerSocket.getInetAddress());
+                    liveness.register(workerSocket);
+                    Log.info("Connected to worker: {}", workerSocket.getInetAddress());
                 }
-                System.out.println("Total connected workers: " + this.workerSockets.size());
+                Log.info("Total connected workers: {}", this.workerSockets.size());
 
-                // Listen for messages from this worker in a new thread
-                new Thread(new WorkerHandler(workerSocket)).start();
+                // Listen for messages from this worker on its own handler thread
+                handlerExecutor.execute(new WorkerHandler(workerSocket));
             }
         } catch (IOException e) {
-            e.printStackTrace();
+            if (!stopping) {
+                Log.error("Master on port {} stopped accepting workers", port, e);
+            }
         }
     }
 
     /**
-     * Checks if the socket connection is still alive by attempting a minimal write.
-     * @param socket The socket to check.
-     * @return True if the socket is alive, false otherwise.
+     * Stops injecting tokens, waits for the tokens in flight to complete their lap, then disconnects every worker.
+     * Dropped messages are the tokens that had not returned in time; chains of the text protocol are not tracked.
+     * @param timeout How long to wait for tokens in flight.
+     * @param unit Unit of the timeout.
+     * @return What was completed and dropped while draining.
      */
-    private boolean isSocketAlive(Socket socket) {
-        try {
-            // Check connection status
-            socket.getOutputStream().write(0);
-            return true;
-        } catch (IOException e) {
-            return false;
+    public synchronized DrainReport drain(long timeout, TimeUnit unit) {
+        if (drainReport != null) {
+            return drainReport;
+        }
+        long startNanos = System.nanoTime();
+        int inFlight = lapsInFlight.size();
+        stopping = true;
+        Shutdown.unregister(this);
+        ServerSocket listener = serverSocket;
+        if (listener != null) {
+            try {
+                listener.close();
+            } catch (IOException e) {
+                Log.error("Could not close the server socket on port {}", port, e);
+            }
         }
+        scheduler.shutdownNow();
+        Shutdown.await(lapsInFlight::isEmpty, startNanos + unit.toNanos(timeout));
+        int dropped = lapsInFlight.size();
+
+        for (Socket socket : workerSockets) {
+            closeQuietly(socket);
+        }
+        liveness.stop();
+        handlerExecutor.shutdown();
+        metrics.close();
+        drainReport = new DrainReport(System.nanoTime() - startNanos, Math.max(0, inFlight - dropped), dropped);
+        return drainReport;
     }
 
     /**
-     * Periodically checks if each socket in the list is still connected.
-     * If a socket is not alive, it is removed from the list.
+     * Removes a worker whose connection ended, whether it closed, failed or stopped answering heartbeats.
+     * @param socket The socket of the worker.
      */
-    private void checkConnections() {
-        System.out.println("Checking connections...");
-        Iterator<Socket> iterator = this.workerSockets.iterator();
-        while (iterator.hasNext()) {
-            Socket socket = iterator.next();
-            if (!isSocketAlive(socket)) {
-                try {
-                    socket.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-                iterator.remove();
-                System.out.println("Disconnected worker removed from the list.");
+    private void removeWorker(Socket socket) {
+        liveness.unregister(socket);
+        closeQuietly(socket);
+        assignSuccessors(ring.leave(socket));
+        replacing.remove(socket);
+        compressing.remove(socket);
+        String workerId = sessionIds.remove(socket);
+        if (workerId != null) {
+            sessions.disconnect(workerId);
+        }
+        if (workerSockets.remove(socket)) {
+            writers.remove(socket);
+            Log.info("Disconnected worker removed from the list.");
+        }
+    }
+
+    /**
+     * Opens or resumes the session a worker named in its SESSION frame.
+     * A worker that reconnects before its old connection was noticed as dead takes over that connection's place.
+     * @param socket The worker's connection.
+     * @param frame The session frame, carrying the worker id.
+     */
+    private void openSession(Socket socket, Frame frame) {
+        String workerId = frame.payloadAsString();
+        if (sessionIds.putIfAbsent(socket, workerId) != null) {
+            return;
+        }
+        Socket previous = sessions.connect(workerId, socket);
+        if (previous != socket) {
+            sessions.update(workerId, socket);
+            replacing.put(socket, previous);
+        }
+    }
+
+    /**
+     * Adds a worker to the end of the ring once it reported the port it listens on,
+     * or puts it back in its old place if it resumed a session whose connection is still a member.
+     * @param socket The worker's connection.
+     * @param frame The hello frame, carrying the listen port and flagged if the worker takes compressed tokens.
+     */
+    private void joinRing(Socket socket, Frame frame) {
+        if ((frame.flags() & Compression.COMPRESSED) != 0) {
+            compressing.add(socket);
+        }
+        int listenPort = Integer.parseInt(frame.payloadAsString());
+        InetSocketAddress listenAddress = new InetSocketAddress(socket.getInetAddress(), listenPort);
+        Socket previous = replacing.remove(socket);
+        List<Ring.Assignment> assignments = previous == null ? null : ring.replace(previous, socket, listenAddress);
+        if (assignments != null) {
+            assignSuccessors(assignments);
+            // Its handler finds it no longer in the ring and only cleans up the connection
+            closeQuietly(previous);
+            Log.info("Worker {} resumed its place in the ring, size {}", socket.getRemoteSocketAddress(), ring.size());
+            return;
+        }
+        assignSuccessors(ring.join(socket, listenAddress));
+        Log.info("Worker {} joined the ring, size {}", socket.getRemoteSocketAddress(), ring.size());
+    }
+
+    /**
+     * Takes a worker that is shutting down out of the ring and re-points its predecessor past it.
+     * Its connection stays open so it can still return tokens; the LEAVE frame echoed after the
+     * new assignment tells it that no more tokens will be injected into it.
+     * @param socket The worker's connection.
+     */
+    private void leaveRing(Socket socket) {
+        assignSuccessors(ring.leave(socket));
+        Log.info("Worker {} left the ring, size {}", socket.getRemoteSocketAddress(), ring.size());
+        send(socket, new Frame().set(Frame.LEAVE, 0, System.nanoTime()), true);
+    }
+
+    /**
+     * Tells workers where to forward tokens. The assignment is flagged {@link Compression#COMPRESSED}
+     * if the successor, or this Master for the last worker, takes compressed tokens.
+     * @param assignments The new successor of each affected worker.
+     */
+    private void assignSuccessors(List<Ring.Assignment> assignments) {
+        for (Ring.Assignment assignment : assignments) {
+            FrameWriter out = writers.get(assignment.worker);
+            if (out == null) {
+                continue;
+            }
+            String successor = assignment.successor == null ? ""
+                    : assignment.successor.getHostString() + ":" + assignment.successor.getPort();
+            try {
+                byte flags = assignment.next == null ? Compression.handshakeFlags()
+                        : compressing.contains(assignment.next) ? Compression.COMPRESSED : 0;
+                out.write(new Frame().set(Frame.SUCCESSOR, 0, System.nanoTime()).flags(flags).payload(successor));
+            } catch (IOException e) {
+                // Its handler removes the worker and repairs the ring again
+                closeQuietly(assignment.worker);
             }
         }
     }
 
+    /**
+     * Closes a socket; its handler notices and removes the worker.
+     * @param socket The socket to close.
+     */
+    private void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            Log.error("Could not close the connection to {}", socket.getRemoteSocketAddress(), e);
+        }
+    }
+
     /**
      * Initiates a round-robin message chain by sending a message to the first worker.
      */
     public void initiateRoundRobin() {
-        System.out.println("Initiating round-robin message chain.");
-        try {
-            if (this.workerSockets.size() > 0) {
-                Socket firstWorker = workerSockets.get(0);
-                PrintWriter out = new PrintWriter(firstWorker.getOutputStream(), true);
-                out.println("Chain:");
+        initiateRoundRobin(true);
+    }
+
+    /**
+     * Initiates a round-robin message chain.
+     * @param flushNow False to leave a binary token in the first worker's writer until {@link #idle(Socket)}.
+     * @return True if a lap was added to the laps in flight.
+     */
+    private boolean initiateRoundRobin(boolean flushNow) {
+        if (stopping) {
+            return false;
+        }
+        if (targetTokens == 0) {
+            Log.info("Initiating round-robin message chain.");
+        }
+        if (codec.isText()) {
+            // Text mode workers append their names to the chain string
+            if (!workerSockets.isEmpty()) {
+                send(workerSockets.get(0), new Frame().set(Frame.DATA, 0, 0).payload("Chain:"), true);
             }
+            return false;
+        }
+        Socket first = ring.first();
+        if (first == null) {
+            return false;
+        }
+        Frame frame = new Frame();
+        long lap = chainSequence.incrementAndGet();
+        // A fresh token is a few bytes; workers compress it once it has grown past the threshold
+        new Token().start(frame, lap, tokenMode);
+        lapsInFlight.put(lap, frame.timestamp());
+        if (!send(first, frame, flushNow)) {
+            lapsInFlight.remove(lap);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Writes a frame to a worker.
+     * @param socket The worker's connection.
+     * @param frame The frame to write.
+     * @param flushNow False to defer the frame, see {@link FrameWriter#write(Frame, boolean)}.
+     * @return True if the frame was written or deferred.
+     */
+    private boolean send(Socket socket, Frame frame, boolean flushNow) {
+        FrameWriter out = writers.get(socket);
+        if (out == null) {
+            return false;
+        }
+        try {
+            out.write(frame, flushNow);
+            return true;
+        } catch (IOException e) {
+            closeQuietly(socket);
+            return false;
+        }
+    }
+
+    /**
+     * Writes the frames deferred for a worker.
+     * @param socket The worker's connection, may be null.
+     */
+    private void idle(Socket socket) {
+        FrameWriter out = socket == null ? null : writers.get(socket);
+        if (out == null) {
+            return;
+        }
+        try {
+            out.idle();
         } catch (IOException e) {
-            e.printStackTrace();
+            closeQuietly(socket);
+        }
+    }
+
+    /**
+     * Keeps a number of tokens circulating the ring at all times: every token that completes a lap
+     * is sent round again, and tokens lost with a worker that left are replaced.
+     * Ring throughput is reported with the RTT statistics period.
+     * @param tokens Number of concurrent tokens, 0 to stop re-injecting.
+     */
+    public void saturate(int tokens) {
+        if (codec.isText()) {
+            Log.warn("Concurrent tokens need the binary protocol.");
+            return;
+        }
+        boolean started = targetTokens > 0;
+        targetTokens = tokens;
+        topUpTokens();
+        if (started) {
+            return;
+        }
+        scheduler.scheduleAtFixedRate(this::topUpTokens, 1, 1, TimeUnit.SECONDS);
+        long period = RttStats.configuredDumpPeriodSeconds();
+        if (period > 0) {
+            long[] lastLaps = {completedLaps.sum()};
+            scheduler.scheduleAtFixedRate(() -> {
+                long laps = completedLaps.sum();
+                Log.info("Ring throughput: {} laps/s with {} tokens in flight over {} workers",
+                        String.format("%.1f", (laps - lastLaps[0]) / (double) period), lapsInFlight.size(), ring.size());
+                lastLaps[0] = laps;
+            }, period, period, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Drops laps that did not return in time and injects tokens until the target count is in flight.
+     */
+    private void topUpTokens() {
+        long now = System.nanoTime();
+        lapsInFlight.entrySet().removeIf(lap -> {
+            if (now - lap.getValue() > LAP_TIMEOUT_NANOS) {
+                Log.warn("Lap {} lost, the ring changed while it was in flight", lap.getKey());
+                return true;
+            }
+            return false;
+        });
+        // A drain or a first worker that cannot be written to leaves the rest to the next round
+        while (!stopping && lapsInFlight.size() < targetTokens && ring.size() > 0) {
+            if (!initiateRoundRobin(true)) {
+                break;
+            }
         }
     }
 
@@ -115,6 +468,8 @@ public class Master {
      */
     private class WorkerHandler implements Runnable {
         private final Socket workerSocket;
+        // Inflates the tokens the worker returns
+        private final Compression compression = new Compression();
 
         /**
          * Constructor to initialize the WorkerHandler with a worker socket.
@@ -129,36 +484,95 @@ public class Master {
          */
         public void run() {
             try {
-                BufferedReader reader = new BufferedReader(new InputStreamReader(workerSocket.getInputStream()));
-                String message;
-                while ((message = reader.readLine()) != null) {
-                    System.out.println("Received from worker: " + message);
+                FrameReader reader = new FrameReader(workerSocket.getInputStream(), codec, traffic);
+                Frame frame = new Frame();
+                Token token = new Token();
+                while (reader.read(frame)) {
+                    liveness.heard(workerSocket);
+                    if (frame.type() == Frame.TOKEN) {
+                        compression.decompress(frame);
+                        reportLap(frame, token);
+                    } else if (frame.type() == Frame.SESSION) {
+                        openSession(workerSocket, frame);
+                    } else if (frame.type() == Frame.HELLO) {
+                        joinRing(workerSocket, frame);
+                    } else if (frame.type() == Frame.LEAVE) {
+                        leaveRing(workerSocket);
+                    } else if (frame.type() != Frame.HEARTBEAT) {
+                        if (Log.sampled()) {
+                            Log.debug("Received from worker: {}", frame.payloadAsString());
+                        }
+                    }
                     // Additional logic can be implemented here based on the message content
+                    if (!reader.hasBuffered()) {
+                        idle(ring.first());
+                    }
                 }
             } catch (IOException e) {
-                System.out.println("Error handling worker input");
-                e.printStackTrace();
+                Log.info("Connection to worker {} closed: {}", workerSocket.getRemoteSocketAddress(), e.getMessage());
+            } finally {
+                compression.close();
+                removeWorker(workerSocket);
             }
         }
+
+        /**
+         * Decodes a token that completed its lap and reports the lap latency.
+         * While the ring is saturated the token is sent round again and laps are only counted.
+         * @param frame The TOKEN frame returned by the last worker.
+         * @param token The token instance reused by this handler.
+         * @throws IOException if the frame does not carry a valid token.
+         */
+        private void reportLap(Frame frame, Token token) throws IOException {
+            token.read(frame);
+            completedLaps.increment();
+            lapTimes.record(System.nanoTime() - frame.timestamp());
+            if (lapsInFlight.remove(frame.sequence()) != null && targetTokens > 0) {
+                if (!stopping && lapsInFlight.size() < targetTokens) {
+                    // Flushed once this handler has consumed the burst of returning tokens
+                    initiateRoundRobin(false);
+                }
+                return;
+            }
+            long lapMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - frame.timestamp());
+            StringBuilder report = new StringBuilder()
+                    .append("Lap ").append(frame.sequence())
+                    .append(" completed in ").append(lapMicros).append(" us over ")
+                    .append(token.hops()).append(" hops");
+            if (token.visitedCount() >= 0) {
+                report.append(", ").append(token.visitedCount()).append(" distinct workers");
+            }
+            if (token.trace() != null) {
+                report.append(": ").append(token.trace());
+            }
+            Log.info("{}", report);
+        }
     }
 
     /**
      * Main method to initialize and start the Master node.
-     * @param args Command-line arguments: port and round-robin period in seconds.
+     * @param args Command-line arguments: port, round-robin period in seconds and optionally
+     *             the number of tokens to keep circulating instead of starting one chain per period.
      */
     public static void main(String[] args) {
         if (args.length < 2) {
-            System.out.println("Usage: java Master <port> <round-robin period in seconds>");
+            System.out.println("Usage: java Master <port> <round-robin period in seconds> [concurrent_tokens]");
             return;
         }
 
         // Parse the command-line arguments
         int port = Integer.parseInt(args[0]);
         int periodInSeconds = Integer.parseInt(args[1]);
+        int tokens = args.length > 2 ? Integer.parseInt(args[2]) : 0;
 
-        // Create and start the Master node
+        // Create and start the Master node; it drains when the JVM is stopped
         Master masterNode = new Master(port);
-        masterNode.scheduleRoundRobin(periodInSeconds); // Schedule round-robin initiation
+        Shutdown.register(masterNode, "Master on port " + port);
+        if (tokens > 0) {
+            masterNode.saturate(tokens); // Keep the ring busy with concurrent tokens
+        } else {
+            masterNode.scheduleRoundRobin(periodInSeconds); // Schedule round-robin initiation
+        }
         masterNode.startServer(); // Start server to accept connections
     }
 }
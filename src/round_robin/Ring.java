@@ -0,0 +1,118 @@
+package round_robin;
+
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Ring membership kept by the Master.
+ * Workers are ordered by the time they joined. The Master injects tokens into the first member,
+ * every member forwards to the next one and the last member returns the token to the Master.
+ * A join or leave only changes the successor of the neighbouring member, so tokens keep circulating
+ * while the ring grows or shrinks.
+ */
+class Ring {
+    private final List<Socket> members = new ArrayList<>();
+    private final Map<Socket, InetSocketAddress> listenAddresses = new HashMap<>();
+
+    /**
+     * Appends a worker to the end of the ring.
+     * @param worker The worker's connection to the Master.
+     * @param listenAddress Address on which the worker accepts its predecessor.
+     * @return The successor assignments for the previous last member and the new member.
+     */
+    synchronized List<Assignment> join(Socket worker, InetSocketAddress listenAddress) {
+        if (listenAddresses.containsKey(worker)) {
+            return Collections.emptyList();
+        }
+        List<Assignment> assignments = new ArrayList<>(2);
+        if (!members.isEmpty()) {
+            assignments.add(new Assignment(members.get(members.size() - 1), worker, listenAddress));
+        }
+        members.add(worker);
+        listenAddresses.put(worker, listenAddress);
+        assignments.add(new Assignment(worker, null, null));
+        return assignments;
+    }
+
+    /**
+     * Removes a worker and links its predecessor to its successor.
+     * @param worker The connection of the worker that left.
+     * @return The successor assignment for the predecessor, if any.
+     */
+    synchronized List<Assignment> leave(Socket worker) {
+        int position = members.indexOf(worker);
+        if (position < 0) {
+            return Collections.emptyList();
+        }
+        members.remove(position);
+        listenAddresses.remove(worker);
+        if (position == 0) {
+            // The Master simply injects into the new first member
+            return Collections.emptyList();
+        }
+        Socket next = position < members.size() ? members.get(position) : null;
+        return Collections.singletonList(new Assignment(members.get(position - 1), next, listenAddresses.get(next)));
+    }
+
+    /**
+     * Puts a worker's new connection in the place of its old one, keeping its position in the ring.
+     * @param old The worker's earlier connection to the Master.
+     * @param worker The worker's new connection to the Master.
+     * @param listenAddress Address on which the worker accepts its predecessor.
+     * @return The successor assignments for the predecessor and the worker, or null if the old connection is no longer a member.
+     */
+    synchronized List<Assignment> replace(Socket old, Socket worker, InetSocketAddress listenAddress) {
+        int position = members.indexOf(old);
+        if (position < 0 || listenAddresses.containsKey(worker)) {
+            return null;
+        }
+        members.set(position, worker);
+        listenAddresses.remove(old);
+        listenAddresses.put(worker, listenAddress);
+        List<Assignment> assignments = new ArrayList<>(2);
+        if (position > 0) {
+            // The listen address may have changed if the worker was restarted
+            assignments.add(new Assignment(members.get(position - 1), worker, listenAddress));
+        }
+        Socket next = position + 1 < members.size() ? members.get(position + 1) : null;
+        assignments.add(new Assignment(worker, next, listenAddresses.get(next)));
+        return assignments;
+    }
+
+    /**
+     * Returns the member the Master injects tokens into.
+     * @return The first member, or null if the ring is empty.
+     */
+    synchronized Socket first() {
+        return members.isEmpty() ? null : members.get(0);
+    }
+
+    /**
+     * Returns the number of members.
+     * @return The ring size.
+     */
+    synchronized int size() {
+        return members.size();
+    }
+
+    /**
+     * A worker and the node it should forward tokens to.
+     */
+    static class Assignment {
+        final Socket worker;
+        // Both null when the worker returns tokens to the Master
+        final Socket next;
+        final InetSocketAddress successor;
+
+        Assignment(Socket worker, Socket next, InetSocketAddress successor) {
+            this.worker = worker;
+            this.next = next;
+            this.successor = successor;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package round_robin;
+
+import common.Frame;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.BufferUnderflowException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The chain token passed around the ring, carried in the payload of a TOKEN frame.
+ * The frame's sequence id is the lap id and its timestamp the Master's send time, so only the
+ * Master interprets it. The payload holds a hop counter and, depending on the mode, a bitmap of
+ * visited worker indexes and the textual path. A Token instance is reused for every frame a
+ * connection handles, so forwarding a token no longer copies a name list that grows with the ring.
+ *
+ * Payload layout: int hops, short bitmap length, bitmap bytes, UTF-8 trace.
+ */
+class Token {
+    /**
+     * Name of the system property that selects the token mode used by the Master.
+     */
+    static final String MODE_PROPERTY = "pingpong.token";
+
+    static final byte FLAG_VISITED = 1;
+    static final byte FLAG_TRACE = 2;
+
+    /**
+     * How much the token records about its path.
+     */
+    enum Mode {
+        /** Hop counter only; the token size does not depend on the ring size. */
+        COMPACT,
+        /** Hop counter and a bitmap with one bit per worker index. */
+        VISITED,
+        /** Bitmap plus the full list of worker names, for debugging only. */
+        TRACE
+    }
+
+    private int hops;
+    private byte flags;
+    private byte[] bitmap = new byte[0];
+    private int bitmapLength;
+    private final StringBuilder trace = new StringBuilder();
+    private ByteBuffer scratch = ByteBuffer.allocate(64);
+
+    /**
+     * Returns the mode selected by the {@value #MODE_PROPERTY} system property, compact by default.
+     * @return The configured mode.
+     */
+    static Mode configuredMode() {
+        return Mode.valueOf(System.getProperty(MODE_PROPERTY, "compact").toUpperCase());
+    }
+
+    /**
+     * Writes a fresh token for a new lap into the frame.
+     * @param frame the frame to fill.
+     * @param lap the lap id.
+     * @param mode what the token records on its way.
+     */
+    void start(Frame frame, long lap, Mode mode) {
+        hops = 0;
+        flags = 0;
+        if (mode != Mode.COMPACT) {
+            flags |= FLAG_VISITED;
+        }
+        if (mode == Mode.TRACE) {
+            flags |= FLAG_TRACE;
+        }
+        bitmapLength = 0;
+        trace.setLength(0);
+        if (mode == Mode.TRACE) {
+            trace.append("Chain:");
+        }
+        frame.set(Frame.TOKEN, lap, System.nanoTime());
+        write(frame);
+    }
+
+    /**
+     * Loads the token carried by a TOKEN frame.
+     * @param frame the received frame.
+     * @throws IOException if the payload is not a valid token.
+     */
+    void read(Frame frame) throws IOException {
+        ByteBuffer in = frame.payload();
+        flags = frame.flags();
+        try {
+            hops = in.getInt();
+            bitmapLength = in.getShort() & 0xFFFF;
+            ensureBitmap(bitmapLength);
+            in.get(bitmap, 0, bitmapLength);
+            trace.setLength(0);
+            if ((flags & FLAG_TRACE) != 0) {
+                trace.append(StandardCharsets.UTF_8.decode(in));
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated token");
+        }
+    }
+
+    /**
+     * Records a visit by the given worker.
+     * @param index index of the visiting worker.
+     */
+    void visit(int index) {
+        hops++;
+        if ((flags & FLAG_VISITED) != 0) {
+            int needed = index / 8 + 1;
+            if (needed > bitmapLength) {
+                ensureBitmap(needed);
+                Arrays.fill(bitmap, bitmapLength, needed, (byte) 0);
+                bitmapLength = needed;
+            }
+            bitmap[index / 8] |= (byte) (1 << (index % 8));
+        }
+        if ((flags & FLAG_TRACE) != 0) {
+            trace.append(", Worker").append(index);
+        }
+    }
+
+    /**
+     * Writes the token back into the frame payload, keeping the frame's header.
+     * @param frame the frame to update.
+     */
+    void write(Frame frame) {
+        byte[] traceBytes = (flags & FLAG_TRACE) != 0 ? trace.toString().getBytes(StandardCharsets.UTF_8) : null;
+        int size = 4 + 2 + bitmapLength + (traceBytes != null ? traceBytes.length : 0);
+        if (scratch.capacity() < size) {
+            scratch = ByteBuffer.allocate(Math.max(size, scratch.capacity() * 2));
+        }
+        scratch.clear();
+        scratch.putInt(hops);
+        scratch.putShort((short) bitmapLength);
+        scratch.put(bitmap, 0, bitmapLength);
+        if (traceBytes != null) {
+            scratch.put(traceBytes);
+        }
+        scratch.flip();
+        frame.payload(scratch).flags(flags);
+    }
+
+    /**
+     * Returns the number of workers the token has passed.
+     * @return The hop count.
+     */
+    int hops() {
+        return hops;
+    }
+
+    /**
+     * Returns the number of distinct workers recorded in the visited bitmap.
+     * @return The visited count, or -1 if the token does not track visits.
+     */
+    int visitedCount() {
+        if ((flags & FLAG_VISITED) == 0) {
+            return -1;
+        }
+        int count = 0;
+        for (int i = 0; i < bitmapLength; i++) {
+            count += Integer.bitCount(bitmap[i] & 0xFF);
+        }
+        return count;
+    }
+
+    /**
+     * Returns the recorded path if the token was started in trace mode.
+     * @return The path, or null if tracing is off.
+     */
+    String trace() {
+        return (flags & FLAG_TRACE) != 0 ? trace.toString() : null;
+    }
+
+    /**
+     * Grows the bitmap array so it can hold at least the given number of bytes.
+     * @param length The required length.
+     */
+    private void ensureBitmap(int length) {
+        if (bitmap.length < length) {
+            bitmap = Arrays.copyOf(bitmap, Math.max(length, bitmap.length * 2));
+        }
+    }
+}
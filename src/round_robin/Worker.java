@@ -1,36 +1,91 @@
 package round_robin;
 
+import common.Backoff;
+import common.Codec;
+import common.Compression;
+import common.DrainReport;
+import common.Frame;
+import common.FrameReader;
+import common.FrameWriter;
+import common.Lifecycle;
+import common.Log;
+import common.Metrics;
+import common.Sessions;
+import common.Shutdown;
+import common.SocketTuning;
+import common.ThreadMode;
+
 import java.io.*;
 import java.net.*;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
-public class Worker {
+public class Worker implements Lifecycle {
     // Class member variables
     private final String masterAddress;
     private final int masterPort;
-    private final String previousNodeAddress;
     private final String nextNodeAddress;
     private final int startPort;
     private final int myIndex;
     private final int totalWorkers;
+    private final Codec codec;
+    private final Metrics metrics;
+    private final Metrics.Traffic traffic;
+    private final LongAdder reconnects;
+    private final LongAdder forwarded;
+    private final LongAdder dropped;
+    private final String workerId;
+    private final Link masterLink;
+    private final ExecutorService handlerExecutor;
+    // Where tokens go next; null while the master is the successor
+    private volatile Link successorLink;
+    // Whether the next node, worker or master, negotiated compressed tokens
+    private volatile boolean compressNext;
+    // The connection to the master used for membership with the binary protocol
+    private volatile FrameWriter controlOut;
+    private volatile Socket controlSocket;
+    private volatile ServerSocket serverSocket;
+    // Open connections from predecessors, a leaving worker waits for them to be closed
+    private final Set<Socket> predecessors = ConcurrentHashMap.newKeySet();
+    // Set once the master confirmed this worker left the ring and injects no more tokens into it
+    private volatile boolean left;
+    private volatile boolean stopping;
+    private DrainReport drainReport;
 
     /**
      * Constructor to initialize the Worker class with provided parameters.
+     * With the binary protocol the ring is managed by the master: the worker joins on start and
+     * forwards tokens wherever the master tells it, so the next node address and the total number
+     * of workers are only used by text mode rings, which are fixed at launch.
      * @param masterAddress address of the master node.
      * @param masterPort port of the master node.
-     * @param previousNodeAddress address of the previous node.
      * @param nextNodeAddress address of the next node.
      * @param startPort starting port number for the worker nodes.
      * @param myIndex index of this worker node.
      * @param totalWorkers total number of worker nodes.
      */
-    public Worker(String masterAddress, int masterPort, String previousNodeAddress, String nextNodeAddress, int startPort, int myIndex, int totalWorkers) {
+    public Worker(String masterAddress, int masterPort, String nextNodeAddress, int startPort, int myIndex, int totalWorkers) {
         this.masterAddress = masterAddress;
         this.masterPort = masterPort;
-        this.previousNodeAddress = previousNodeAddress;
         this.nextNodeAddress = nextNodeAddress;
         this.startPort = startPort;
         this.myIndex = myIndex;
         this.totalWorkers = totalWorkers;
+        this.codec = Codec.configured();
+        this.workerId = Sessions.newWorkerId();
+        this.handlerExecutor = ThreadMode.configured().newExecutor("ring-predecessor");
+        this.metrics = Metrics.register("round_robin", "worker", Integer.toString(myIndex));
+        this.traffic = metrics.traffic();
+        this.reconnects = metrics.counter("pingpong_reconnects_total", "Connections re-established after a failure");
+        this.forwarded = metrics.counter("pingpong_tokens_forwarded_total", "Tokens passed on to the next worker or the master");
+        this.dropped = metrics.counter("pingpong_tokens_dropped_total", "Tokens that could not be passed on");
+        this.masterLink = new Link(masterAddress, masterPort, codec, traffic, reconnects);
+        if (codec.isText()) {
+            this.successorLink = new Link(nextNodeAddress, getNextWorkerPort(), codec, traffic, reconnects);
+        }
     }
 
     /**
@@ -38,99 +93,374 @@ public class Worker {
      * @throws IOException if an I/O error occurs.
      */
     public void start() throws IOException {
-        // Start the server thread to accept connections
+        // Start the server thread to accept connections; a platform thread keeps the JVM alive
         new Thread(this::startServer).start();
 
-        // Connect to the previous node and start communication
+        // Connect to the master node and start communication
         connectToNode();
     }
 
     /**
      * Method to start the server and listen for incoming connections.
+     * The predecessor keeps its connection open, so each accepted socket is served until it closes.
      */
     private void startServer() {
-        try (ServerSocket serverSocket = new ServerSocket(startPort + myIndex)) {
-            System.out.println("Worker " + myIndex + " listening on port " + (startPort + myIndex));
-
-            while (true) {
-                try (Socket clientSocket = serverSocket.accept()) {
-                    BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-                    String message = in.readLine();
-                    System.out.println("Received message: " + message);
-
-                    // Process and forward the message
-                    String newMessage = message + ", Worker" + myIndex;
-
-                    if (myIndex == totalWorkers - 1) {
-                        // If the current node is the last one, send the message to the master
-                        sendToMaster(newMessage);
-                    } else {
-                        // Otherwise, continue with the message passing
-                        sendToNextWorker(newMessage);
+        try (ServerSocket serverSocket = SocketTuning.listen(startPort + myIndex)) {
+            this.serverSocket = serverSocket;
+            Log.info("Worker {} listening on port {}", myIndex, startPort + myIndex);
+
+            while (!stopping) {
+                Socket clientSocket = serverSocket.accept();
+                SocketTuning.apply(clientSocket);
+                handlerExecutor.execute(() -> handlePredecessor(clientSocket));
+            }
+        } catch (IOException e) {
+            if (!stopping) {
+                Log.error("Worker {} stopped accepting connections", myIndex, e);
+            }
+        }
+    }
+
+    /**
+     * Method to leave the ring and shut the worker down. With the binary protocol the worker asks the
+     * master to take it out of the ring and keeps forwarding tokens until the master confirms and the
+     * predecessor, re-pointed past it, has closed its connection; then every connection is closed.
+     * Completed messages are the tokens passed on while draining, dropped ones those that could not be.
+     * @param timeout how long to wait for the ring to route around this worker.
+     * @param unit unit of the timeout.
+     * @return what was completed and dropped while draining.
+     */
+    public synchronized DrainReport drain(long timeout, TimeUnit unit) {
+        if (drainReport != null) {
+            return drainReport;
+        }
+        long startNanos = System.nanoTime();
+        long forwardedBefore = forwarded.sum();
+        long droppedBefore = dropped.sum();
+        stopping = true;
+        Shutdown.unregister(this);
+        FrameWriter out = controlOut;
+        if (out != null) {
+            try {
+                out.write(new Frame().set(Frame.LEAVE, 0, System.nanoTime()));
+                // A master that went away confirms nothing, but routes nothing to this worker either
+                Shutdown.await(() -> (left || controlOut == null) && predecessors.isEmpty(), startNanos + unit.toNanos(timeout));
+            } catch (IOException e) {
+                Log.warn("Could not tell the master that worker {} leaves: {}", myIndex, e.getMessage());
+            }
+        }
+
+        closeQuietly(serverSocket);
+        for (Socket socket : predecessors) {
+            closeQuietly(socket);
+        }
+        flushForwarded();
+        Link next = successorLink;
+        if (next != null) {
+            next.retire();
+        }
+        masterLink.retire();
+        closeQuietly(controlSocket);
+        handlerExecutor.shutdownNow();
+        metrics.close();
+        drainReport = new DrainReport(System.nanoTime() - startNanos, forwarded.sum() - forwardedBefore,
+                dropped.sum() - droppedBefore);
+        return drainReport;
+    }
+
+    /**
+     * Method to close a socket that may not have been opened.
+     * @param closeable the socket, may be null.
+     */
+    private void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Already closed, nothing else to release
+        }
+    }
+
+    /**
+     * Method to read every message sent by the previous node on a long-lived connection.
+     * @param clientSocket the socket accepted from the previous node.
+     */
+    private void handlePredecessor(Socket clientSocket) {
+        predecessors.add(clientSocket);
+        try (Socket socket = clientSocket) {
+            FrameReader in = new FrameReader(socket.getInputStream(), codec, traffic);
+            Frame frame = new Frame();
+            Token token = new Token();
+            Compression compression = new Compression();
+            try {
+                while (in.read(frame)) {
+                    forward(frame, token, compression);
+                    if (!in.hasBuffered()) {
+                        flushForwarded();
                     }
-                } catch (IOException e) {
-                    e.printStackTrace();
                 }
+            } finally {
+                compression.close();
             }
         } catch (IOException e) {
-            e.printStackTrace();
+            if (!stopping) {
+                Log.warn("Connection from the previous node lost: {}", e.getMessage());
+            }
+        } finally {
+            predecessors.remove(clientSocket);
         }
     }
 
     /**
-     * Method to connect to the previous node and start communication.
-     * @throws IOException if an I/O error occurs.
+     * Method to connect to the master node and start communication.
+     * With the binary protocol every worker joins the ring over this connection; the master sends it
+     * successor changes and, to the first member, new tokens, and the last member returns tokens on it.
+     * With the text protocol only the first worker connects, to receive new chains.
+     * A master that is not up yet or goes away is retried with jittered exponential backoff.
+     */
+    private void connectToNode() {
+        if (codec.isText() && this.myIndex != 0) {
+            return;
+        }
+        Backoff backoff = new Backoff();
+        boolean connectedBefore = false;
+        while (!stopping) {
+            try (Socket socket = SocketTuning.connect(masterAddress, masterPort)) {
+                controlSocket = socket;
+                if (stopping) {
+                    break;
+                }
+                backoff.reset();
+                if (connectedBefore) {
+                    reconnects.increment();
+                }
+                connectedBefore = true;
+                Log.info("Connected to the master at {}:{} as {}", masterAddress, masterPort, workerId);
+                if (codec.isText()) {
+                    receiveChains(socket);
+                } else {
+                    joinRing(socket);
+                }
+                if (!stopping) {
+                    Log.warn("Master at {}:{} closed the connection", masterAddress, masterPort);
+                }
+            } catch (IOException e) {
+                if (!stopping) {
+                    Log.warn("Connection to the master at {}:{} failed: {}", masterAddress, masterPort, e.getMessage());
+                }
+            } finally {
+                controlOut = null;
+            }
+            if (stopping) {
+                break;
+            }
+            long delay = backoff.nextDelayMillis();
+            Log.info("Reconnecting to the master in {} ms", delay);
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Method to pass on the chains a text mode master starts until the connection closes.
+     * @param socket the connection to the master.
+     * @throws IOException if the connection fails.
      */
-    private void connectToNode() throws IOException {
-        int previousNodePort = this.startPort + this.myIndex - 1;
-        Socket socket;
+    private void receiveChains(Socket socket) throws IOException {
+        FrameReader in = new FrameReader(socket.getInputStream(), codec, traffic);
+        Frame frame = new Frame();
+        Token token = new Token();
+        // Text frames carry no flags, so nothing is ever compressed
+        Compression compression = new Compression();
+        while (in.read(frame)) {
+            forward(frame, token, compression);
+            if (!in.hasBuffered()) {
+                flushForwarded();
+            }
+        }
+    }
+
+    /**
+     * Method to join the ring managed by the master and serve the master connection until it closes.
+     * The session frame goes first, so a master that still holds this worker's place gives it back.
+     * The hello frame announces whether this worker takes compressed tokens; the master passes that on
+     * to its predecessor with the successor assignment.
+     * @param socket the connection to the master.
+     * @throws IOException if the connection fails.
+     */
+    private void joinRing(Socket socket) throws IOException {
+        FrameReader in = new FrameReader(socket.getInputStream(), codec, traffic);
+        FrameWriter out = new FrameWriter(new BufferedOutputStream(socket.getOutputStream()), codec, traffic);
+        out.write(new Frame().set(Frame.SESSION, 0, System.nanoTime()).payload(workerId), false);
+        out.write(new Frame().set(Frame.HELLO, 0, System.nanoTime()).flags(Compression.handshakeFlags())
+                .payload(Integer.toString(startPort + myIndex)));
+        controlOut = out;
+
+        Frame frame = new Frame();
+        Token token = new Token();
+        Compression compression = new Compression();
         try {
-            if (this.myIndex == 0) {
-                // If this is the first node, connect to the master node
-                socket = new Socket(masterAddress, masterPort);
-                System.out.println("Connected to the node at " + masterAddress + ":" + masterPort);
-            } else {
-                // Otherwise, connect to the previous worker node
-                socket = new Socket(previousNodeAddress, previousNodePort);
-                System.out.println("Connected to the node at " + previousNodeAddress + ":" + previousNodePort);
-            }
-            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-
-            String message;
-            while ((message = in.readLine()) != null) {
-                System.out.println("Received message: " + message);
-                String newMessage = message + ", Worker" + myIndex;
-                sendToNextWorker(newMessage);
+            while (in.read(frame)) {
+                if (frame.type() == Frame.HEARTBEAT) {
+                    // Echo so the master hears from a worker that has no tokens to return
+                    out.write(frame);
+                } else if (frame.type() == Frame.SUCCESSOR) {
+                    setSuccessor(frame.payloadAsString(), Compression.negotiated(frame.flags()));
+                } else if (frame.type() == Frame.LEAVE) {
+                    left = true;
+                } else {
+                    forward(frame, token, compression);
+                }
+                if (!in.hasBuffered()) {
+                    flushForwarded();
+                }
             }
-        } catch (IOException e) {
-            e.printStackTrace();
+        } finally {
+            compression.close();
         }
     }
 
     /**
-     * Method to send a message to the next worker node.
-     * @param message the message to send.
+     * Method to switch to the successor assigned by the master.
+     * @param successor the successor as host:port, empty if tokens go back to the master.
+     * @param compressed whether tokens for the successor are compressed once they are large enough.
      */
-    private void sendToNextWorker(String message) {
-        try (Socket nextWorkerSocket = new Socket(nextNodeAddress, getNextWorkerPort())) {
-            PrintWriter out = new PrintWriter(nextWorkerSocket.getOutputStream(), true);
-            out.println(message);
-        } catch (IOException e) {
-            System.err.println("Failed to send message to the next worker: " + e.getMessage());
+    private void setSuccessor(String successor, boolean compressed) {
+        Link previous = successorLink;
+        compressNext = compressed;
+        if (successor.isEmpty()) {
+            successorLink = null;
+        } else {
+            int colon = successor.lastIndexOf(':');
+            successorLink = new Link(successor.substring(0, colon), Integer.parseInt(successor.substring(colon + 1)), codec,
+                    traffic, reconnects);
         }
+        if (previous != null) {
+            // Tokens forwarded just before the change are still waiting in the old link's buffer
+            previous.idle();
+            previous.retire();
+        }
+        Log.info("Worker {} now forwards to {}", myIndex, successor.isEmpty() ? "the master" : successor);
     }
 
     /**
-     * Method to send a message to the master node.
-     * @param message the message to send.
+     * Method to record this worker on a received token and pass it on to the next worker,
+     * or back to the master from the last worker. Heartbeats are not forwarded.
+     * The forwarded frame is deferred; readers call {@link #flushForwarded()} once their input is drained,
+     * so a burst of tokens leaves in one write. A token is inflated on arrival and compressed again
+     * for a next node that negotiated it, as it changes at every hop.
+     * @param frame the received frame, reused for the forwarded message.
+     * @param token the token instance of the calling connection, reused for every frame.
+     * @param compression the compression instance of the calling connection.
+     * @throws IOException if the frame does not carry a valid token.
      */
-    private void sendToMaster(String message) {
-        try (Socket masterSocket = new Socket(masterAddress, masterPort)) {
-            PrintWriter out = new PrintWriter(masterSocket.getOutputStream(), true);
-            out.println(message);
-        } catch (IOException e) {
-            System.err.println("Failed to send message to the master: " + e.getMessage());
+    private void forward(Frame frame, Token token, Compression compression) throws IOException {
+        if (frame.type() == Frame.TOKEN) {
+            compression.decompress(frame);
+            token.read(frame);
+            token.visit(myIndex);
+            token.write(frame);
+            if (compressNext) {
+                compression.compress(frame);
+            }
+            if (Log.sampled()) {
+                Log.debug("Received token for lap {} after {} hops", frame.sequence(), token.hops() - 1);
+            }
+        } else {
+            // Heartbeats arrive as HEARTBEAT frames, or as empty lines from a text mode master
+            if (frame.type() == Frame.HEARTBEAT || frame.payloadLength() == 0) {
+                return;
+            }
+            // Text mode peers cannot carry the binary token, they keep appending names to the chain
+            String message = frame.payloadAsString();
+            if (Log.sampled()) {
+                Log.debug("Received message: {}", message);
+            }
+            frame.payload(message + ", Worker" + myIndex);
+        }
+
+        Link next = successorLink;
+        if (codec.isText() ? myIndex == totalWorkers - 1 : next == null) {
+            // If the current node is the last one, send the message to the master
+            sendToMaster(frame);
+        } else {
+            // Otherwise, continue with the message passing
+            sendToNextWorker(next, frame);
+        }
+    }
+
+    /**
+     * Method to send a message to the next worker node over the persistent successor connection.
+     * A token that cannot be delivered is lost; the master replaces it once the ring is repaired.
+     * @param next the link to the successor.
+     * @param frame the frame to send.
+     */
+    private void sendToNextWorker(Link next, Frame frame) {
+        if (next.send(frame, false)) {
+            forwarded.increment();
+        } else {
+            dropped.increment();
+            Log.warn("Failed to send message to the next worker from worker {}", myIndex);
+        }
+    }
+
+    /**
+     * Method to send a message to the master node, over the membership connection with the binary
+     * protocol or over the persistent return connection with the text protocol.
+     * A failed membership connection is left to its reader, which reconnects; the token is lost.
+     * @param frame the frame to send.
+     */
+    private void sendToMaster(Frame frame) {
+        FrameWriter out = controlOut;
+        if (out != null) {
+            try {
+                out.write(frame, false);
+                forwarded.increment();
+            } catch (IOException e) {
+                dropped.increment();
+                Log.warn("Failed to return token {} to the master: {}", frame.sequence(), e.getMessage());
+            }
+            return;
+        }
+        if (!codec.isText()) {
+            // Between two connections to the master; it replaces the token once it notices the lap is lost
+            dropped.increment();
+            Log.warn("Not connected to the master, dropping token {}", frame.sequence());
+            return;
+        }
+        if (masterLink.send(frame, false)) {
+            forwarded.increment();
+        } else {
+            dropped.increment();
+            Log.warn("Failed to send message to the master at {}:{}", masterAddress, masterPort);
+        }
+    }
+
+    /**
+     * Method to write the frames forwarded since the calling reader last ran out of input.
+     * The successor may have changed in between, so every outbound connection is flushed; a replaced
+     * link is flushed once when it is retired, frames another reader defers on it after that are lost with it.
+     */
+    private void flushForwarded() {
+        Link next = successorLink;
+        if (next != null) {
+            next.idle();
+        }
+        FrameWriter out = controlOut;
+        if (out != null) {
+            try {
+                out.idle();
+            } catch (IOException e) {
+                Log.warn("Failed to return tokens to the master: {}", e.getMessage());
+            }
+        } else if (codec.isText()) {
+            masterLink.idle();
         }
     }
 
@@ -155,16 +485,17 @@ public class Worker {
         }
 
         // Parse the command-line arguments
+        // The previous node address (args[2]) is no longer needed: the previous node connects to us
         String masterAddress = args[0];
         int masterPort = Integer.parseInt(args[1]);
-        String previousNodeAddress = args[2];
         String nextNodeAddress = args[3];
         int startPort = Integer.parseInt(args[4]);
         int index = Integer.parseInt(args[5]);
         int totalWorkers = Integer.parseInt(args[6]);
 
-        // Create and start the Worker node
-        Worker workerNode = new Worker(masterAddress, masterPort, previousNodeAddress, nextNodeAddress, startPort, index, totalWorkers);
+        // Create and start the Worker node; it leaves the ring when the JVM is stopped
+        Worker workerNode = new Worker(masterAddress, masterPort, nextNodeAddress, startPort, index, totalWorkers);
+        Shutdown.register(workerNode, "Worker " + index);
         workerNode.start();
     }
 }